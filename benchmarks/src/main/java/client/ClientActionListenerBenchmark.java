@@ -0,0 +1,56 @@
+package client;
+
+import handlers.Encoding;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.BenchmarkText;
+
+/**
+ * Measures ClientActionListener.handleMessageFromServer for change messages.
+ * The benchmark runs without a MainWindow, so the messages are about another
+ * document than the one the client has open: this covers the regex matching and
+ * tokenizing of the message, which is done for every change the server sends.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientActionListenerBenchmark {
+
+    @Param({"1000", "100000"})
+    public int documentSize;
+
+    private Client client;
+    private ClientActionListener listener;
+    private String changeMessage;
+
+    @Setup
+    public void setup() {
+        client = new Client(0, "localhost", null);
+        client.updateDocumentName("other");
+        listener = new ClientActionListener(client, null);
+        changeMessage = "change bench user 2 0 5 "
+                + Encoding.encode(BenchmarkText.of(documentSize));
+    }
+
+    @Benchmark
+    public int change() {
+        listener.handleMessageFromServer(changeMessage);
+        return client.getVersion();
+    }
+}
@@ -0,0 +1,93 @@
+package handlers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.BenchmarkText;
+
+/**
+ * Measures the CPU cost of compressing protocol lines against the bytes saved.
+ * The bytes counters report the total original and sent bytes of each
+ * iteration, so the ratio of the two is the compression ratio.
+ * - open: an open response compressed on a fresh connection
+ * - change: consecutive change messages of a document being typed into,
+ * compressed on the same connection, so each one benefits from the previous
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int documentSize;
+
+    private String openMessage;
+    private String[] changeMessages;
+    private Compression connection;
+    private int next;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long originalBytes;
+        public long sentBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            originalBytes = 0;
+            sentBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        String text = BenchmarkText.of(documentSize);
+        openMessage = "open bench 1 " + Encoding.encode(text);
+        changeMessages = new String[64];
+        StringBuilder document = new StringBuilder(text);
+        for (int i = 0; i < changeMessages.length; i++) {
+            int offset = (documentSize / 2 + i) % document.length();
+            document.insert(offset, (char) ('a' + i % 26));
+            changeMessages[i] = "change bench user " + (i + 2) + " " + offset + " 1 "
+                    + Encoding.encode(document.toString());
+        }
+        connection = new Compression();
+        next = 0;
+    }
+
+    @Benchmark
+    public String open(Bytes bytes) {
+        Compression compression = new Compression();
+        String line = compression.compress(openMessage);
+        compression.end();
+        bytes.originalBytes += openMessage.length();
+        bytes.sentBytes += line.length();
+        return line;
+    }
+
+    @Benchmark
+    public String change(Bytes bytes) {
+        String message = changeMessages[next];
+        next = (next + 1) % changeMessages.length;
+        String line = connection.compress(message);
+        bytes.originalBytes += message.length();
+        bytes.sentBytes += line.length();
+        return line;
+    }
+}
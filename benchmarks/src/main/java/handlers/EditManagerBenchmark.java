@@ -0,0 +1,64 @@
+package handlers;
+
+import handlers.Edit.Type;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the numbering of an out of date edit by EditManager.manageEdit for
+ * edit histories of different lengths, which doesn't depend on how far behind
+ * the edit is.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EditManagerBenchmark {
+    private static final String documentName = "bench";
+
+    @Param({"10", "1000", "100000"})
+    public int historyLength;
+
+    private EditManager editManager;
+
+    @Setup
+    public void setup() {
+        editManager = new EditManager();
+        editManager.createNewlog(documentName);
+        for (int version = 1; version <= historyLength; version++) {
+            if (version % 4 == 0) {
+                editManager.logEdit(new Edit(documentName, Type.REMOVE, "",
+                        version, version, -1));
+            } else {
+                editManager.logEdit(new Edit(documentName, Type.INSERT, "ab",
+                        version, version, 2));
+            }
+        }
+    }
+
+    /** An edit made on the very first version, behind the whole history. */
+    @Benchmark
+    public String manageOldestEdit() {
+        return editManager.manageEdit(documentName, 1, historyLength / 2);
+    }
+
+    /** An edit that is only one version behind. */
+    @Benchmark
+    public String manageRecentEdit() {
+        return editManager.manageEdit(documentName, historyLength, historyLength / 2);
+    }
+}
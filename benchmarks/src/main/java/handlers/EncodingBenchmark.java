@@ -0,0 +1,51 @@
+package handlers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.BenchmarkText;
+
+/**
+ * Measures the URL encoding and decoding of document text sent over the network.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int textSize;
+
+    private String text;
+    private String encodedText;
+
+    @Setup
+    public void setup() {
+        text = BenchmarkText.of(textSize);
+        encodedText = Encoding.encode(text);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Encoding.encode(text);
+    }
+
+    @Benchmark
+    public String decode() {
+        return Encoding.decode(encodedText);
+    }
+}
@@ -0,0 +1,87 @@
+package handlers;
+
+import handlers.Edit.Type;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.BenchmarkText;
+
+/**
+ * Measures the time to rebuild a random past version of a document with
+ * EditManager.getTextAt for different checkpoint intervals. The storage the
+ * checkpoints take is printed when the history is built, as the number of
+ * characters kept and its ratio to the size of the document: the time to
+ * rebuild a version goes down with the interval while the storage goes up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryBenchmark {
+    private static final String documentName = "bench";
+    private static final int historyLength = 8192;
+
+    @Param({"16", "128", "1024"})
+    public int checkpointInterval;
+
+    @Param({"10000", "100000"})
+    public int documentSize;
+
+    private EditManager editManager;
+    private Random random;
+
+    @Setup
+    public void setup() {
+        editManager = new EditManager();
+        editManager.setCheckpointInterval(checkpointInterval);
+        String text = BenchmarkText.of(documentSize);
+        editManager.createNewlog(documentName, 1, text);
+        StringBuilder document = new StringBuilder(text);
+        Random edits = new Random(42);
+        for (int version = 1; version <= historyLength; version++) {
+            int offset = edits.nextInt(document.length());
+            Edit edit;
+            if (edits.nextInt(4) == 0) {
+                int end = Math.min(document.length(), offset + 1 + edits.nextInt(8));
+                edit = new Edit(documentName, Type.REMOVE, document.substring(offset, end),
+                        version, offset, offset - end);
+                document.delete(offset, end);
+            } else {
+                String inserted = "word ";
+                edit = new Edit(documentName, Type.INSERT, inserted, version, offset,
+                        inserted.length());
+                document.insert(offset, inserted);
+            }
+            // like DocumentShard.logEdit
+            editManager.logEdit(edit);
+            if (editManager.isCheckpointDue(documentName)) {
+                editManager.checkpoint(documentName, version + 1, document.toString());
+            }
+        }
+        long size = editManager.getCheckpointSize(documentName);
+        System.out.println();
+        System.out.println("Checkpoints of interval " + checkpointInterval + ": " + size
+                + " chars, " + (size / document.length()) + "x the document");
+        random = new Random(7);
+    }
+
+    @Benchmark
+    public String rebuildVersion() {
+        return editManager.getTextAt(documentName, 1 + random.nextInt(historyLength));
+    }
+}
@@ -0,0 +1,28 @@
+package server;
+
+/**
+ * Generates deterministic document text for the benchmarks: words of lower case
+ * letters separated by spaces, with a line break every few words.
+ */
+public class BenchmarkText {
+
+    /**
+     * @param length the number of characters of the text
+     * @return a text of exactly length characters
+     */
+    public static String of(int length) {
+        StringBuilder text = new StringBuilder(length);
+        int word = 0;
+        while (text.length() < length) {
+            int wordLength = 2 + (word * 7) % 6;
+            for (int i = 0; i < wordLength && text.length() < length; i++) {
+                text.append((char) ('a' + (word + i) % 26));
+            }
+            if (text.length() < length) {
+                text.append(word % 12 == 11 ? '\n' : ' ');
+            }
+            word++;
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package server;
+
+import handlers.Encoding;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ClientConnectionThread.handleRequest, i.e. parsing a client request,
+ * applying it to the server and building the reply, without any socket involved.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandleRequestBenchmark {
+    private static final String documentName = "bench";
+    private static final String username = "user";
+
+    @Param({"1000", "100000"})
+    public int documentSize;
+
+    private Server server;
+    private ClientConnectionThread thread;
+    private String insertedText;
+
+    @Setup
+    public void setup() {
+        server = new Server(0, new HashMap<String, StringBuffer>(),
+                new HashMap<String, Integer>());
+        server.addNewDocument(documentName);
+        server.insert(documentName, 0, BenchmarkText.of(documentSize));
+        for (int i = 0; i < 100; i++) {
+            server.addNewDocument("document" + i);
+        }
+        thread = new ClientConnectionThread(null, server);
+        insertedText = Encoding.encode("hello world");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public String look() {
+        return thread.handleRequest("look");
+    }
+
+    @Benchmark
+    public String open() {
+        return thread.handleRequest("open " + documentName);
+    }
+
+    @Benchmark
+    public String invalid() {
+        return thread.handleRequest("open");
+    }
+
+    /**
+     * An up to date insert followed by the remove of the same text, so the
+     * document size stays constant.
+     */
+    @Benchmark
+    public String change() {
+        int offset = documentSize / 2;
+        thread.handleRequest("change " + documentName + " " + username + " "
+                + server.getVersion(documentName) + " insert " + insertedText + " " + offset);
+        return thread.handleRequest("change " + documentName + " " + username + " "
+                + server.getVersion(documentName) + " remove " + offset + " " + (offset + 11));
+    }
+}
@@ -0,0 +1,72 @@
+package server;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the document mutations of the Server (insert and delete) on documents
+ * of different sizes. Every invocation inserts a short text in the middle of the
+ * document and deletes it again so that the document size stays constant.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ServerBenchmark {
+    private static final String documentName = "bench";
+    private static final String text = "hello";
+
+    @Param({"1000", "100000", "1000000"})
+    public int documentSize;
+
+    private Server server;
+    private int middle;
+
+    @Setup
+    public void setup() {
+        server = new Server(0, new HashMap<String, StringBuffer>(),
+                new HashMap<String, Integer>());
+        server.addNewDocument(documentName);
+        server.insert(documentName, 0, BenchmarkText.of(documentSize));
+        middle = documentSize / 2;
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public int insert() {
+        server.insert(documentName, middle, text);
+        server.delete(documentName, middle, middle + text.length());
+        return server.getDocumentLength(documentName);
+    }
+
+    @Benchmark
+    public int insertAtEnd() {
+        server.insert(documentName, documentSize, text);
+        server.delete(documentName, documentSize, documentSize + text.length());
+        return server.getDocumentLength(documentName);
+    }
+
+    @Benchmark
+    public String getDocumentText() {
+        return server.getDocumentText(documentName);
+    }
+}
@@ -0,0 +1,85 @@
+package server;
+
+import handlers.Encoding;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replays a whole trace on a fresh server per invocation, closed after it. Pass a recorded trace
+ * with -p trace=path/to/file; by default a synthetic trace of a few editors
+ * typing into two documents is generated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TraceReplayBenchmark {
+
+    @Param({""})
+    public String trace;
+
+    private String tracePath;
+
+    @Setup
+    public void setup() throws IOException {
+        if (!trace.isEmpty()) {
+            tracePath = trace;
+            return;
+        }
+        File file = File.createTempFile("synthetic", ".trace");
+        file.deleteOnExit();
+        tracePath = file.getPath();
+        TraceRecorder recorder = new TraceRecorder(tracePath);
+        Random random = new Random(1);
+        int[] lengths = new int[2];
+        int[] versions = {1, 1};
+        recorder.record(1, "new doc0");
+        recorder.record(1, "new doc1");
+        for (int connection = 1; connection <= 8; connection++) {
+            recorder.record(connection, "name user" + connection);
+            recorder.record(connection, "open doc" + (connection % 2));
+        }
+        for (int i = 0; i < 5000; i++) {
+            int connection = 1 + random.nextInt(8);
+            int document = connection % 2;
+            String prefix = "change doc" + document + " user" + connection + " " + versions[document];
+            if (lengths[document] > 0 && random.nextInt(10) == 0) {
+                int offset = random.nextInt(lengths[document]);
+                recorder.record(connection, prefix + " remove " + offset + " " + (offset + 1));
+                lengths[document]--;
+            } else {
+                String text = Encoding.encode(String.valueOf((char) ('a' + random.nextInt(26))));
+                recorder.record(connection, prefix + " insert " + text + " "
+                        + random.nextInt(lengths[document] + 1));
+                lengths[document]++;
+            }
+            versions[document]++;
+        }
+        recorder.close();
+    }
+
+    @Benchmark
+    public Server replay() throws IOException, InterruptedException {
+        try (TraceReplay replay = new TraceReplay()) {
+            replay.replay(tracePath, false);
+            return replay.getServer();
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package client;
 
 import gui.MainWindow;
+import handlers.Compression;
+import handlers.HeartbeatThread;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Client class receives message from the server and send the message to be
@@ -14,11 +17,39 @@ public class Client {
     private String nameOfDocument;
     private String textOfDocument;
     private int versionOfDocument;
-    private Socket socket;
+    private volatile Socket socket;
     private int port;
     private String host;
     private PrintWriter out;
     private MainWindow mainWindow;
+    // created when compression is requested, so that compressed lines can be
+    // read even before the server's answer
+    private Compression compression;
+    private volatile boolean compressOutgoing;
+    // the length of the whole document on the server, which may be more than
+    // the text loaded when the document is open in partial mode
+    private int documentLength;
+    private boolean rangeRequested;
+    private static final int rangeSize = 65536;
+    // the server evicts clients that are silent for 30 seconds
+    private static final int heartbeatIntervalMillis = 10000;
+    // the server answers every heartbeat, so a longer silence means it is dead
+    private static final int serverTimeoutMillis = 3 * heartbeatIntervalMillis;
+    private HeartbeatThread heartbeat;
+    // the token of the session given by the server when the user was named,
+    // used to resume the session after the connection was lost
+    private volatile String sessionToken;
+    // reconnecting waits twice longer after each failed attempt, from
+    // reconnectDelayMillis up to maxReconnectDelayMillis, plus a random part so
+    // the clients of a server that went down don't all come back at once
+    private static final int reconnectDelayMillis = 500;
+    private static final int maxReconnectDelayMillis = 8000;
+    private static final int maxReconnectAttempts = 12;
+    private volatile boolean resuming;
+    private volatile boolean reconnecting;
+    // set when the server told the client to move: the first attempt waits a
+    // random part of that time instead, see moveTo
+    private volatile int moveSpreadMillis;
 
     public Client(int port, String host, MainWindow main) {
         this.port = port;
@@ -28,22 +59,185 @@ public class Client {
 
     public void start() throws IOException {
         socket = new Socket(host, port);
+        socket.setSoTimeout(serverTimeoutMillis);
+        heartbeat = new HeartbeatThread(this, heartbeatIntervalMillis);
+        heartbeat.start();
+        compression = new Compression();
+        sendMessageToServer("compress " + Compression.name);
         mainWindow.openUsernameDialog();
         new ClientActionListener(this, socket).run();
         out = new PrintWriter(socket.getOutputStream());
     }
 
+    /**
+     * Moves to another node of the cluster, the one owning the document of the
+     * request, and sends the request again there. The new connection asks for
+     * compression and is named like the first one. The ClientActionListener
+     * notices the new socket and closes the previous one.
+     */
+    public void redirect(String newHost, int newPort, String request) {
+        synchronized (this) {
+            try {
+                Socket next = new Socket(newHost, newPort);
+                next.setSoTimeout(serverTimeoutMillis);
+                socket = next;
+                host = newHost;
+                port = newPort;
+                compression = new Compression();
+                compressOutgoing = false;
+            } catch (IOException e) {
+                mainWindow.openErrorView(e.getMessage());
+                return;
+            }
+        }
+        sendMessageToServer("compress " + Compression.name);
+        if (mainWindow.getUsername() != null) {
+            sendMessageToServer("name " + mainWindow.getUsername());
+        }
+        sendMessageToServer(request);
+    }
+
+    /**
+     * Connects again to the server after the connection was lost, waiting
+     * longer after each failed attempt, and resumes the session: the server
+     * gives the username back and sends only the edits of the open document
+     * made meanwhile (see ClientActionListener). The document can't be edited
+     * until then.
+     *
+     * @return false if the server couldn't be reached
+     */
+    public boolean reconnect() {
+        mainWindow.setConnected(false);
+        reconnecting = true;
+        int delay = reconnectDelayMillis;
+        int spread = moveSpreadMillis;
+        moveSpreadMillis = 0;
+        for (int attempt = 0; attempt < maxReconnectAttempts; attempt++) {
+            try {
+                int jitter = attempt == 0 && spread > 0 ? spread : delay;
+                Thread.sleep(delay + ThreadLocalRandom.current().nextInt(jitter));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reconnecting = false;
+                return false;
+            }
+            delay = Math.min(2 * delay, maxReconnectDelayMillis);
+            synchronized (this) {
+                try {
+                    Socket next = new Socket(host, port);
+                    next.setSoTimeout(serverTimeoutMillis);
+                    socket = next;
+                    compression = new Compression();
+                    compressOutgoing = false;
+                    rangeRequested = false;
+                } catch (IOException e) {
+                    continue;
+                }
+            }
+            reconnecting = false;
+            if (!heartbeat.isAlive()) {
+                heartbeat = new HeartbeatThread(this, heartbeatIntervalMillis);
+                heartbeat.start();
+            }
+            sendMessageToServer("compress " + Compression.name);
+            if (sessionToken == null) {
+                resumeFailed();
+            } else {
+                String resumePoint = mainWindow.getResumePoint();
+                resuming = true;
+                sendMessageToServer("resume " + sessionToken
+                        + (resumePoint == null ? "" : " " + resumePoint));
+            }
+            return true;
+        }
+        reconnecting = false;
+        return false;
+    }
+
+    /**
+     * Leaves a server that is shutting down (see ClientActionListener): the
+     * connection is closed at once, after the edits already sent, and the
+     * session resumed at the new host and port, or the same ones if newHost is
+     * "-", after a random part of spreadMillis so the clients of the server
+     * don't all come back at once.
+     */
+    public void moveTo(String newHost, int newPort, int spreadMillis) {
+        Socket current;
+        synchronized (this) {
+            if (!newHost.equals("-")) {
+                host = newHost;
+                port = newPort;
+            }
+            moveSpreadMillis = spreadMillis;
+            reconnecting = true;
+            current = socket;
+        }
+        mainWindow.setConnected(false);
+        try {
+            current.close();
+        } catch (IOException e) {
+            // closed already
+        }
+    }
+
+    /**
+     * Called when the session can't be resumed: names the user and opens the
+     * document again, like the first time
+     */
+    public void resumeFailed() {
+        resuming = false;
+        if (mainWindow.getUsername() != null) {
+            sendMessageToServer("name " + mainWindow.getUsername());
+        }
+        if (nameOfDocument != null) {
+            sendMessageToServer("open " + nameOfDocument + " partial");
+        }
+    }
+
+    /**
+     * Called when the answer to the resume request arrived
+     */
+    public void resumed() {
+        resuming = false;
+        mainWindow.setConnected(true);
+    }
+
+    /**
+     * @return true if the client asked to resume its session and didn't get the
+     * answer yet
+     */
+    public boolean isResuming() {
+        return resuming;
+    }
+
+    public void setSessionToken(String token) {
+        sessionToken = token;
+    }
+
     public void setMainWindow(MainWindow frame) {
         this.mainWindow = frame;
     }
 
-    public void sendMessageToServer(String message) {
+    /**
+     * Sends the message to the server. Synchronized so that messages are
+     * compressed in the order they are written.
+     */
+    public synchronized void sendMessageToServer(String message) {
         try {
+            if (compressOutgoing) {
+                message = compression.compress(message);
+            }
             out = new PrintWriter(socket.getOutputStream());
             out.write(message + "\n");
             out.flush();
         } catch (IOException e) {
-            mainWindow.openErrorView(e.getMessage());
+            // messages are dropped while reconnecting, the text is read-only then
+            if (!reconnecting) {
+                mainWindow.openErrorView(e.getMessage());
+            }
+        } catch (IllegalStateException e) {
+            // the connection was lost and its compression ended just before
+            // reconnecting, the message is dropped too
         }
     }
 
@@ -82,6 +276,54 @@ public class Client {
         textOfDocument = text;
     }
 
+    public synchronized void updateDocumentLength(int length) {
+        documentLength = length;
+    }
+
+    public synchronized int getDocumentLength() {
+        return documentLength;
+    }
+
+    /**
+     * Asks the server for the text following the loaded part of the document,
+     * unless the rest of the document is loaded or a request is already pending.
+     *
+     * @param end the end of the loaded part of the document
+     */
+    public void requestMoreText(int end) {
+        synchronized (this) {
+            if (end >= documentLength || rangeRequested || nameOfDocument == null) {
+                return;
+            }
+            rangeRequested = true;
+        }
+        sendMessageToServer("range " + nameOfDocument + " " + end + " " + (end + rangeSize));
+    }
+
+    /**
+     * Called when the text asked for by requestMoreText arrived
+     */
+    public synchronized void rangeReceived() {
+        rangeRequested = false;
+    }
+
+    /**
+     * Called when the server accepted compression: from now on large messages
+     * to the server are compressed too.
+     */
+    public void enableCompression() {
+        compressOutgoing = true;
+    }
+
+    /**
+     * @return the compression of the current connection, replaced with the
+     * socket (see getSocket). The ClientActionListener reads each connection
+     * with its own and ends it once the connection is left.
+     */
+    public synchronized Compression getCompression() {
+        return compression;
+    }
+
     public void updateVersion(int newVersion) {
         versionOfDocument = newVersion;
     }
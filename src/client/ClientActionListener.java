@@ -1,15 +1,20 @@
 package client;
 
 import gui.MainWindow;
+import handlers.Compression;
+import handlers.Encoding;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.swing.SwingUtilities;
+
 /**
  * Listens for the update from the server, and handles the message from the
  * server.
@@ -21,7 +26,12 @@ public class ClientActionListener {
     private BufferedReader in;
     private final String regex = "(Error: .+)|"
             + "(alldocs [\\w|\\d]+)|(new [\\w|\\d]+)|(open [\\w|\\d]+\\s(\\d+)\\s?(.+)?)|"
-            + "(change [\\w|\\d]+\\s[\\w|\\d]+\\s(\\d+)\\s(\\d+)\\s(-?\\d+)\\s?(.+)?)|(name [\\d\\w]+)";
+            + "(change [\\w|\\d]+\\s[\\w|\\d]+\\s(\\d+)\\s(\\d+)\\s(-?\\d+)\\s?(.+)?)|(name [\\d\\w]+)|(pong)|(compress [\\w\\d]+)"
+            + "|(openbegin [\\w\\d]+ \\d+ \\d+( \\d+)?)|(chunk [\\w\\d]+ \\d+ ?.*)|(openend [\\w\\d]+ \\d+)"
+            + "|(vchange [\\w\\d]+ [\\w\\d]+ \\d+ \\d+ -?\\d+ \\d+ ?.*)|(range [\\w\\d]+ \\d+ \\d+ \\d+ ?.*)"
+            + "|(cursor [\\w\\d]+ [\\w\\d]+ -?\\d+ -?\\d+)|(redirect [\\w.\\-]+ \\d+ .+)"
+            + "|(page \\S+ \\S+( [\\w\\d]+)*)|(patch [\\w\\d]+ \\d+ \\d+ \\d+( \\S+)*)"
+            + "|(move [\\w.\\-]+ \\d+ \\d+)|(diff [\\w\\d]+ \\d+ \\d+ \\d+ \\d+( \\S+)*)";
     private final int groupChangeVersion = 8;
     private final int groupChangePosition = 9;
     private final int groupChangeLength = 10;
@@ -29,6 +39,11 @@ public class ClientActionListener {
     private final int groupOpenVersion = 5;
     private final int groupOpenText = 6;
     private MainWindow main;
+    // while a document is streamed, its changes wait in pendingChanges
+    private boolean streaming;
+    private final List<String> pendingChanges = new ArrayList<String>();
+    private int streamLength;
+    private int streamedLength;
 
     /**
      * Creates a new ClientActionListener with a client and a socket
@@ -43,19 +58,50 @@ public class ClientActionListener {
     }
 
     /**
-     * listens for server updates and handle the message
+     * listens for server updates and handle the message. When the connection is
+     * lost, the client connects again and resumes its session (see
+     * Client.reconnect).
      *
-     * @throws IOException
+     * @throws IOException if the connection was lost and the server can't be
+     * reached again
      */
     public void run() throws IOException {
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        try {
-            for (String line = in.readLine(); line != null; line = in
-                    .readLine()) {
-                handleMessageFromServer(line);
+        while (true) {
+            // the socket and its compression are replaced together, and the
+            // lines of a connection are only decompressed with its own
+            Socket current;
+            Compression codec;
+            synchronized (client) {
+                current = client.getSocket();
+                codec = client.getCompression();
+            }
+            socket = current;
+            in = new BufferedReader(new InputStreamReader(current.getInputStream()));
+            try {
+                for (String line = in.readLine(); line != null; line = in
+                        .readLine()) {
+                    handleMessageFromServer(codec == null ? line : codec.decompress(line));
+                    if (client.getSocket() != current) {
+                        // redirected to another node, the rest of this
+                        // connection is not for us anymore
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                if (client.getSocket() == current && !client.reconnect()) {
+                    throw e;
+                }
+            } finally {
+                in.close();
+                // nothing reads this connection anymore
+                if (codec != null) {
+                    codec.end();
+                }
+            }
+            // the server closed the connection
+            if (client.getSocket() == current && !client.reconnect()) {
+                return;
             }
-        } finally {
-            in.close();
         }
     }
 
@@ -63,7 +109,9 @@ public class ClientActionListener {
      * Handle the message from the server by updating the GUI and the nameOfDocument, textOfDocument as well
      * <p>
      * Server-to-Client Message Protocol
-     * message :== (Error|Alldocs | Newdocument | Opendocument | ChangeText)
+     * message :== (Error|Alldocs | Newdocument | Opendocument | ChangeText | Pong | Compress
+     * | OpenBegin | Chunk | OpenEnd | VChange | Range | Cursor | Redirect | Page | Patch
+     * | Move | Diff)
      * Error :== error [1-6] .+
      * Alldocs :== "alldocs " DocumentName
      * Newdocument:=="new " DocumentName
@@ -75,6 +123,32 @@ public class ClientActionListener {
      * DocumentName:==[\\d\\w]+
      * DocumentText:==(Chars*\n)*
      * Username :==[\\d\\w]+
+     * Pong :== "pong", the answer to a heartbeat
+     * Compress :== "compress " ("deflate" | "none"), the answer to a compression request
+     * OpenBegin :== "openbegin " DocumentName Version Length [Position], Position
+     * the offset of the text in the document when it is not 0
+     * Chunk :== "chunk " DocumentName Index DocumentText
+     * OpenEnd :== "openend " DocumentName Version
+     * VChange :== "vchange " DocumentName Username Version ChangePosition ChangeLength DocumentLength [DocumentText],
+     * a change of a document open in partial mode, with the inserted text when
+     * it is an insert in the loaded text (see TextWindow)
+     * Range :== "range " DocumentName Version Position DocumentLength DocumentText
+     * Cursor :== "cursor " DocumentName Username Dot Mark, Dot is -1 when the user left
+     * Redirect :== "redirect " Host Port Request, the document of the request is
+     * owned by another node of the cluster
+     * Page :== "page " Prefix Next DocumentName*, a page of the document names
+     * asked for with "list", Next is "-" after the last page
+     * Name :== "name " Username SessionToken, the token resumes the session after
+     * the connection was lost
+     * Patch :== "patch " DocumentName Version NewVersion DocumentLength Edit*, the
+     * edits made since Version, the answer to a resume or resync request
+     * Diff :== "diff " DocumentName Version NewVersion DocumentLength Position Edit*,
+     * edits turning the loaded text at Version into the one at NewVersion, from
+     * Position in the document, sent instead of a patch when shorter
+     * Edit :== "+" Position "," DocumentText | "-" Position "," Int
+     * Move :== "move " Host Port Millis, the server is shutting down: the session
+     * is resumed at Host:Port ("-" for the same server once restarted) after a
+     * random part of Millis
      * Chars:== .+
      * Int:== [0-9]
      */
@@ -89,6 +163,57 @@ public class ClientActionListener {
         }
         String[] tokens = input.split(" ");
 
+        // answer to a heartbeat, the connection is alive
+        if (tokens[0].equals("pong")) {
+            return;
+        }
+
+        // a document is being streamed: its changes wait until all of it has arrived
+        if (tokens[0].equals("change") || tokens[0].equals("vchange")) {
+            synchronized (pendingChanges) {
+                if (streaming) {
+                    pendingChanges.add(input);
+                    return;
+                }
+            }
+        }
+
+        // the server accepted compression
+        if (tokens[0].equals("compress")) {
+            if (tokens[1].equals(Compression.name)) {
+                client.enableCompression();
+            }
+            return;
+        }
+
+        // the document is owned by another node of the cluster: move there and
+        // send the request again
+        if (tokens[0].equals("redirect")) {
+            client.redirect(tokens[1], Integer.parseInt(tokens[2]), input.split(" ", 4)[3]);
+            return;
+        }
+
+        // the server is shutting down: leave it and resume the session elsewhere
+        if (tokens[0].equals("move")) {
+            client.moveTo(tokens[1], Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+            return;
+        }
+
+        // the answer to a resume request after the connection was lost: the
+        // session is resumed, or the document opened again
+        if (client.isResuming()) {
+            if (tokens[0].equals("Error:")) {
+                client.resumeFailed();
+                if (input.equals("Error: Session expired.")) {
+                    return;
+                }
+            } else if (tokens[0].equals("patch") || tokens[0].equals("diff")
+                    || tokens[0].equals("name")
+                    || tokens[0].equals("openbegin") || tokens[0].equals("open")) {
+                client.resumed();
+            }
+        }
+
         // 'error' message , only update the front-end
         if (tokens[0].equals("Error:")) {
             main.openErrorView(input);
@@ -102,8 +227,24 @@ public class ClientActionListener {
             }
             main.displayOpenDocuments(names);
 
+        }
+        // "page" message, a page of the document names for the open dialog
+        else if (tokens[0].equals("page")) {
+            ArrayList<String> names = new ArrayList<String>();
+            for (int i = 3; i < tokens.length; i++) {
+                names.add(tokens[i]);
+            }
+            main.displayDocumentPage(tokens[1].equals("-") ? "" : tokens[1],
+                    tokens[2].equals("-") ? null : tokens[2], names);
+
         } else if (tokens[0].equals("name")) {
-            client.setUsername(tokens[1]);
+            if (tokens.length > 2) {
+                client.setSessionToken(tokens[2]);
+            }
+            // after a redirect the client names itself again on the new node
+            if (!tokens[1].equals(main.getUsername())) {
+                client.setUsername(tokens[1]);
+            }
 
 
         }
@@ -111,10 +252,10 @@ public class ClientActionListener {
         // "Create" a document with valid name, needs to update the front and
         // back ends
         else if (tokens[0].equals("new")) {
-            main.switchToDocumentView(tokens[1], "");
             client.updateDocumentName(tokens[1]);
             // add for version: set the version to 1
             client.updateVersion(1);
+            main.switchToDocumentView(tokens[1], "");
         }
 
         // "Open the document", update both front and end
@@ -130,6 +271,114 @@ public class ClientActionListener {
 
         }
 
+        // Start of a streamed document: show the editor right away, the chunks
+        // are appended as they arrive
+        else if (tokens[0].equals("openbegin")) {
+            client.updateDocumentName(tokens[1]);
+            client.updateVersion(Integer.parseInt(tokens[2]));
+            client.updateText(null);
+            streamLength = Integer.parseInt(tokens[3]);
+            client.updateDocumentLength(streamLength);
+            // the text is of the document from there
+            streamedLength = tokens.length > 4 ? Integer.parseInt(tokens[4]) : 0;
+            synchronized (pendingChanges) {
+                streaming = true;
+            }
+            main.switchToDocumentView(tokens[1], "", streamedLength);
+            main.appendDocumentText("", streamedLength, streamLength);
+        }
+
+        else if (tokens[0].equals("chunk")) {
+            if (tokens[1].equals(client.getDocumentName())) {
+                String text = Encoding.decode(tokens.length > 3 ? tokens[3] : "");
+                streamedLength += text.length();
+                main.appendDocumentText(text, streamedLength, streamLength);
+            }
+        }
+
+        // End of a streamed document. The chunks are appended on the event
+        // dispatch thread, so the waiting changes are applied there, after them.
+        else if (tokens[0].equals("openend")) {
+            SwingUtilities.invokeLater(this::finishStream);
+        }
+
+        // Change of a document open in partial mode: the text, if any, is the
+        // text of an insert in the loaded part of the document. A change that
+        // doesn't apply to it means the text fell behind.
+        else if (tokens[0].equals("vchange")) {
+            if (tokens[1].equals(client.getDocumentName())) {
+                int version = Integer.parseInt(tokens[3]);
+                int length = Integer.parseInt(tokens[6]);
+                String inserted = tokens.length > 7 ? Encoding.decode(tokens[7]) : null;
+                if (main.applyWindowChange(Integer.parseInt(tokens[4]),
+                        Integer.parseInt(tokens[5]), inserted, length, tokens[2], version)) {
+                    client.updateDocumentLength(length);
+                    client.updateVersion(version);
+                } else {
+                    resync(version);
+                }
+            }
+        }
+
+        // The edits missed while the connection was lost or the text fell
+        // behind, applied to the text from the server, or asked for again from
+        // the version of the text if they don't apply
+        else if (tokens[0].equals("patch")) {
+            if (tokens[1].equals(client.getDocumentName())) {
+                int version = Integer.parseInt(tokens[3]);
+                int length = Integer.parseInt(tokens[4]);
+                List<String> edits = new ArrayList<String>();
+                for (int i = 5; i < tokens.length; i++) {
+                    edits.add(tokens[i]);
+                }
+                if (main.applyPatch(Integer.parseInt(tokens[2]), version, length, edits)) {
+                    client.updateDocumentLength(length);
+                    client.updateVersion(version);
+                } else {
+                    resync(version);
+                }
+            }
+        }
+
+        // Like a patch, but the edits apply to the loaded text as it is
+        else if (tokens[0].equals("diff")) {
+            if (tokens[1].equals(client.getDocumentName())) {
+                int version = Integer.parseInt(tokens[3]);
+                int length = Integer.parseInt(tokens[4]);
+                List<String> edits = new ArrayList<String>();
+                for (int i = 6; i < tokens.length; i++) {
+                    edits.add(tokens[i]);
+                }
+                if (main.applyDiff(Integer.parseInt(tokens[2]), version,
+                        Integer.parseInt(tokens[5]), edits)) {
+                    client.updateDocumentLength(length);
+                    client.updateVersion(version);
+                } else {
+                    resync(version);
+                }
+            }
+        }
+
+        // Caret and selection of another user of the document
+        else if (tokens[0].equals("cursor")) {
+            if (tokens[1].equals(client.getDocumentName())) {
+                main.updateRemoteCursor(tokens[2], Integer.parseInt(tokens[3]),
+                        Integer.parseInt(tokens[4]));
+            }
+        }
+
+        // The text following the loaded part of a document open in partial mode
+        else if (tokens[0].equals("range")) {
+            if (tokens[1].equals(client.getDocumentName())) {
+                int total = Integer.parseInt(tokens[4]);
+                client.updateDocumentLength(total);
+                String text = Encoding.decode(tokens.length > 5 ? tokens[5] : "");
+                main.appendDocumentRange(Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]),
+                        text, total);
+            }
+            client.rangeReceived();
+        }
+
         // Change the document.
         else if (tokens[0].equals("change")) {
             // first, need to check the documents are the same
@@ -155,4 +404,33 @@ public class ClientActionListener {
 
     }
 
+    /**
+     * Called when a patch or diff doesn't apply to the text of the open
+     * document: the text moved on meanwhile, so the edits from its version are
+     * asked for again, unless it is already at the version they lead to. The
+     * server answers with whatever is shortest, so a small drift never costs
+     * the whole document.
+     */
+    private void resync(int version) {
+        String resumePoint = main.getResumePoint();
+        if (resumePoint != null && Integer.parseInt(resumePoint.split(" ")[1]) < version) {
+            client.sendMessageToServer("resync " + resumePoint);
+        }
+    }
+
+    /**
+     * Ends the streaming of a document and applies the changes that arrived
+     * meanwhile, in order.
+     */
+    private void finishStream() {
+        List<String> changes;
+        synchronized (pendingChanges) {
+            streaming = false;
+            changes = new ArrayList<String>(pendingChanges);
+            pendingChanges.clear();
+        }
+        for (String change : changes) {
+            handleMessageFromServer(change);
+        }
+    }
 }
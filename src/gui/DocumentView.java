@@ -1,11 +1,24 @@
 package gui;
 
+import handlers.EditManager;
 import handlers.Encoding;
+import handlers.LineIndex;
 import handlers.MessageSwingWorker;
+import handlers.TextWindow;
 
+import java.awt.Color;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.BoundedRangeModel;
 import javax.swing.GroupLayout;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -16,10 +29,15 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultCaret;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Highlighter;
 
 import client.Client;
 
@@ -32,9 +50,21 @@ public class DocumentView extends JPanel {
     private JFrame frame;
     private JMenuBar menu;
     private JMenu file, edit;
-    private JMenuItem newfile, open, exit, copy, cut, paste;
+    private JMenuItem newfile, open, exit, copy, cut, paste, undo, redo;
     private JLabel documentNameLabel;
+    // the line and column of the caret, found with the index of the lines of the
+    // text area, kept up to date by every change of the text
+    private JLabel positionLabel;
+    private LineIndex lines;
+    // the text from the server, all of the document or its loaded part, at
+    // textVersion: what the text area shows without the changes of the user
+    // not yet sent back by the server. A lost connection resumes from it.
     private String documentName, documentText;
+    private int textVersion;
+    // the offset of the text in the document, when only a part of the document
+    // from there is loaded (see TextWindow): the offsets of the text area are
+    // moved by it in the messages to the server and back
+    private int windowStart;
     private JTextArea area;
     private JScrollPane scrollpane;
     private DefaultCaret caret;
@@ -43,6 +73,16 @@ public class DocumentView extends JPanel {
     private final String username;
     private int currentVersion;
     private boolean sent = false; //used in cursor managing
+    // undos and redos sent whose change didn't come back yet: unlike the echo of
+    // a typed change, it must be applied to the text area
+    private int pendingUndos = 0;
+    // the caret and selection (dot, mark) of the other users of the document
+    private final Map<String, int[]> remoteCursors = new HashMap<String, int[]>();
+    private final List<Object> remoteCursorHighlights = new ArrayList<Object>();
+    // the caret is sent to the server at most once per cursorIntervalMillis
+    private static final int cursorIntervalMillis = 100;
+    private Timer cursorTimer;
+    private int sentDot = -1, sentMark = -1;
 
     // Rep invariant:
     // documentText can be null
@@ -63,13 +103,16 @@ public class DocumentView extends JPanel {
      * text of the document.
      *
      * @param documentName
+     * @param windowStart the offset of the text in the document
      */
-    public DocumentView(MainWindow frame, String documentName, String text) {
+    public DocumentView(MainWindow frame, String documentName, String text, int windowStart) {
         this.frame = frame;
         this.client = frame.getClient();
         this.documentName = documentName;
         this.username = frame.getUsername();
         documentText = Encoding.decode(text);
+        textVersion = client.getVersion();
+        this.windowStart = windowStart;
         documentNameLabel = new JLabel("<html><B>" + documentName + "</B></html>");
         createLayout();
     }
@@ -101,6 +144,17 @@ public class DocumentView extends JPanel {
         paste.addActionListener(new PasteListener());
         edit.add(paste);
 
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        undo = new JMenuItem("Undo");
+        undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut));
+        undo.addActionListener(new UndoListener("undo"));
+        edit.add(undo);
+
+        redo = new JMenuItem("Redo");
+        redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcut));
+        redo.addActionListener(new UndoListener("redo"));
+        edit.add(redo);
+
         open = new JMenuItem("Open");
         open.addActionListener(new OpenFileListener());
         file.add(open);
@@ -120,9 +174,26 @@ public class DocumentView extends JPanel {
         area.setCaret(caret);
         documentListener = new TextDocumentListener();
         area.getDocument().addDocumentListener(documentListener);
+        lines = new LineIndex(area.getText());
+        area.getDocument().addDocumentListener(new LineIndexListener());
+        positionLabel = new JLabel();
+        showCaretPosition();
+        area.addCaretListener(e -> showCaretPosition());
+        if (client != null) {
+            cursorTimer = new Timer(cursorIntervalMillis, e -> sendCursor());
+            cursorTimer.setRepeats(false);
+            area.addCaretListener(e -> {
+                if (!cursorTimer.isRunning()) {
+                    cursorTimer.start();
+                }
+            });
+        }
 
         scrollpane = new JScrollPane(area);
         scrollpane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        if (client != null) {
+            scrollpane.getVerticalScrollBar().addAdjustmentListener(new ScrollListener());
+        }
 
         GroupLayout layout = new GroupLayout(this);
         setLayout(layout);
@@ -131,10 +202,12 @@ public class DocumentView extends JPanel {
 
         layout.setHorizontalGroup(layout.createParallelGroup()
                 .addComponent(documentNameLabel)
-                .addComponent(scrollpane));
+                .addComponent(scrollpane)
+                .addComponent(positionLabel));
         layout.setVerticalGroup(layout.createSequentialGroup()
                 .addComponent(documentNameLabel)
-                .addComponent(scrollpane));
+                .addComponent(scrollpane)
+                .addComponent(positionLabel));
     }
 
 
@@ -157,7 +230,7 @@ public class DocumentView extends JPanel {
                     String encodedText = Encoding.encode(addedText);
                     currentVersion = client.getVersion();
                     message = "change " + documentName + " " + username + " " + currentVersion + " insert " + encodedText
-                            + " " + insert;
+                            + " " + (windowStart + insert);
                     sent = true;
                     MessageSwingWorker worker = new MessageSwingWorker(client,
                             message, sent);
@@ -175,7 +248,7 @@ public class DocumentView extends JPanel {
             synchronized (area) {
                 int changeLength = e.getLength();
                 currentVersion = client.getVersion();
-                int offset = e.getOffset();
+                int offset = windowStart + e.getOffset();
                 int endPosition = offset + changeLength;
                 String message = "change " + documentName + " " + username + " " + currentVersion + " remove " + offset
                         + " " + endPosition;
@@ -194,6 +267,48 @@ public class DocumentView extends JPanel {
     }
 
 
+    /**
+     * Class representing the DocumentListener that keeps the index of the lines
+     * of the text area up to date. Unlike the TextDocumentListener, it is never
+     * removed, so it also sees the text set from the server.
+     */
+    private class LineIndexListener implements DocumentListener {
+        public void insertUpdate(DocumentEvent e) {
+            try {
+                String addedText = e.getDocument().getText(e.getOffset(), e.getLength());
+                synchronized (lines) {
+                    lines.insert(e.getOffset(), addedText);
+                }
+            } catch (BadLocationException e1) {
+                e1.printStackTrace();
+            }
+        }
+
+        public void removeUpdate(DocumentEvent e) {
+            synchronized (lines) {
+                lines.remove(e.getOffset(), e.getLength());
+            }
+        }
+
+        public void changedUpdate(DocumentEvent e) {
+            // Plain text components do not fire these events
+        }
+    }
+
+    /**
+     * Shows the line and column of the caret, counted from 1, below the text
+     */
+    private void showCaretPosition() {
+        int dot = caret.getDot();
+        int line, column;
+        synchronized (lines) {
+            line = lines.lineOf(dot);
+            column = dot - lines.lineStart(line);
+        }
+        final String position = "Line " + (line + 1) + ", Column " + (column + 1);
+        SwingUtilities.invokeLater(() -> positionLabel.setText(position));
+    }
+
     /**
      * Manages the cursor given the current cursor position,
      * the position the edit was made, and the length of the change
@@ -225,25 +340,406 @@ public class DocumentView extends JPanel {
      */
     public void updateDocument(String updatedText, int editPosition,
                                int editLength, String username, int version) {
-        documentText = Encoding.decode(updatedText);
         int pos = caret.getDot();
         synchronized (area) {
-            if (this.username != null && !this.username.equals(username)) {
+            documentText = Encoding.decode(updatedText);
+            textVersion = version;
+            if (showChange(pos, editPosition, editLength, username)) {
+                rebaseRemoteCursors(editPosition, editLength);
+            }
+        }
+    }
+
+    /**
+     * Shows the text from the server after a change of a user, unless it is a
+     * change of this user already in the text area, and moves the caret.
+     * Must be called holding the lock of the area.
+     *
+     * @param pos          the caret before the change
+     * @param editPosition the offset of the change in the text area
+     * @param editLength   the length of the change in the text area
+     * @return true if the text was shown
+     */
+    private boolean showChange(int pos, int editPosition, int editLength, String username) {
+        if (this.username != null && !this.username.equals(username)) {
+            area.getDocument().removeDocumentListener(documentListener);
+            area.setText(documentText);
+            area.getDocument().addDocumentListener(documentListener);
+            manageCursor(pos, editPosition, editLength);
+            return true;
+        } else if (this.username != null && this.username.equals(username)) {
+            //check if version matches up, an undo is never applied locally
+            if (currentVersion < textVersion - 1 || pendingUndos > 0) {
+                pendingUndos = Math.max(0, pendingUndos - 1);
                 area.getDocument().removeDocumentListener(documentListener);
                 area.setText(documentText);
                 area.getDocument().addDocumentListener(documentListener);
-                manageCursor(pos, editPosition, editLength);
-            } else if (this.username != null && this.username.equals(username)) {
-                //check if version matches up
-                if (currentVersion < version - 1) {
-                    area.getDocument().removeDocumentListener(documentListener);
-                    area.setText(documentText);
-                    area.getDocument().addDocumentListener(documentListener);
-                    caret.setDot(editPosition + editLength);
+                // after an insert, or at the place of a remove
+                caret.setDot(Math.max(editPosition, editPosition + editLength));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies a change of a document open in partial mode to the text from the
+     * server, and moves the text in the document like the server moves the
+     * viewport of the client (see TextWindow). The text area is updated like
+     * by updateDocument if the change is in the text.
+     *
+     * @param position       the offset of the change in the document
+     * @param length         the length of the change, negative for a remove
+     * @param inserted       the text of an insert in the text, null otherwise
+     * @param documentLength the length of the document after the change
+     * @return false if the change doesn't apply to the text, which is then
+     * left as it is
+     */
+    public boolean applyWindowChange(int position, int length, String inserted,
+                                     int documentLength, String username, int version) {
+        int pos = caret.getDot();
+        synchronized (area) {
+            int start = windowStart;
+            TextWindow window = new TextWindow(start, start + documentText.length());
+            StringBuilder text = new StringBuilder(documentText);
+            boolean changed;
+            try {
+                changed = window.apply(text, position, length, inserted, documentLength);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            windowStart = window.getStart();
+            textVersion = version;
+            if (changed) {
+                int editPosition = Math.max(position, start) - start;
+                int editLength = text.length() - documentText.length();
+                documentText = text.toString();
+                showChange(pos, editPosition, editLength, username);
+            }
+            rebaseRemoteCursors(position, length);
+            return true;
+        }
+    }
+
+    /**
+     * Applies the edits a client missed while its connection was lost, sent by
+     * the server when the client resumed, to the text from the server. The
+     * changes of the user that the server didn't send back are dropped: they
+     * may not have reached it. The edits are applied to the loaded part of the
+     * document like the server moves its viewport (see TextWindow).
+     *
+     * @param fromVersion    the version the edits start from
+     * @param toVersion      the version of the document after the edits
+     * @param documentLength the length of the document after the edits
+     * @param edits          "+Position,EncodedText" or "-Position,Length" each
+     * @return false if the edits don't start from the version of the text
+     */
+    public boolean applyPatch(int fromVersion, int toVersion, int documentLength,
+                              List<String> edits) {
+        synchronized (area) {
+            if (fromVersion != textVersion) {
+                return false;
+            }
+            int[] positions = new int[edits.size()];
+            int[] lengths = new int[edits.size()];
+            String[] texts = new String[edits.size()];
+            int length = documentLength;
+            for (int i = 0; i < edits.size(); i++) {
+                String edit = edits.get(i);
+                int comma = edit.indexOf(',');
+                positions[i] = Integer.parseInt(edit.substring(1, comma));
+                if (edit.charAt(0) == '+') {
+                    texts[i] = Encoding.decode(edit.substring(comma + 1));
+                    lengths[i] = texts[i].length();
+                } else {
+                    lengths[i] = -Integer.parseInt(edit.substring(comma + 1));
+                }
+                length -= lengths[i];
+            }
+            StringBuilder text = new StringBuilder(documentText);
+            TextWindow window = new TextWindow(windowStart, windowStart + text.length());
+            // the caret in the document
+            int dot = windowStart + caret.getDot();
+            try {
+                for (int i = 0; i < positions.length; i++) {
+                    length += lengths[i];
+                    window.apply(text, positions[i], lengths[i], texts[i], length);
+                    dot = EditManager.transformPosition(dot, positions[i], lengths[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            for (int i = 0; i < positions.length; i++) {
+                rebaseRemoteCursors(positions[i], lengths[i]);
+            }
+            windowStart = window.getStart();
+            showServerText(text.toString(), toVersion, Math.max(0, dot - windowStart));
+            return true;
+        }
+    }
+
+    /**
+     * Turns the text from the server into its new version with the edits of a
+     * diff, sent by the server instead of a patch when they are shorter. Unlike
+     * the edits of a patch, they apply to the loaded text as it is. The changes
+     * of the user that the server didn't send back are dropped, like by
+     * applyPatch.
+     *
+     * @param fromVersion the version the edits start from
+     * @param toVersion   the version of the document after the edits
+     * @param start       the offset of the text in the document after the edits
+     * @param edits       "+Position,EncodedText" or "-Position,Length" each
+     * @return false if the edits don't start from the version of the text, or
+     * one of them is out of the text, which is then left as it is
+     */
+    public boolean applyDiff(int fromVersion, int toVersion, int start, List<String> edits) {
+        synchronized (area) {
+            if (fromVersion != textVersion) {
+                return false;
+            }
+            StringBuilder text = new StringBuilder(documentText);
+            int[] positions = new int[edits.size()];
+            int[] lengths = new int[edits.size()];
+            for (int i = 0; i < edits.size(); i++) {
+                String edit = edits.get(i);
+                int comma = edit.indexOf(',');
+                int position = Integer.parseInt(edit.substring(1, comma));
+                if (position < 0 || position > text.length()) {
+                    return false;
+                }
+                if (edit.charAt(0) == '+') {
+                    String inserted = Encoding.decode(edit.substring(comma + 1));
+                    text.insert(position, inserted);
+                    lengths[i] = inserted.length();
+                } else {
+                    int removed = Integer.parseInt(edit.substring(comma + 1));
+                    if (removed < 0 || position + removed > text.length()) {
+                        return false;
+                    }
+                    text.delete(position, position + removed);
+                    lengths[i] = -removed;
+                }
+                positions[i] = position;
+            }
+            // the caret and the cursors are only moved once all the edits apply
+            int dot = caret.getDot();
+            for (int i = 0; i < positions.length; i++) {
+                dot = EditManager.transformPosition(dot, positions[i], lengths[i]);
+                rebaseRemoteCursors(windowStart + positions[i], lengths[i]);
+            }
+            windowStart = start;
+            showServerText(text.toString(), toVersion, dot);
+            return true;
+        }
+    }
+
+    /**
+     * Shows the text from the server at the version, with the caret at dot.
+     * Must be called holding the lock of the area.
+     */
+    private void showServerText(String text, int version, int dot) {
+        documentText = text;
+        textVersion = version;
+        area.getDocument().removeDocumentListener(documentListener);
+        area.setText(documentText);
+        area.getDocument().addDocumentListener(documentListener);
+        caret.setDot(Math.min(dot, documentText.length()));
+    }
+
+    /**
+     * @return the version of the text from the server
+     */
+    public int getTextVersion() {
+        synchronized (area) {
+            return textVersion;
+        }
+    }
+
+    /**
+     * @return the length of the text from the server
+     */
+    public int getTextLength() {
+        synchronized (area) {
+            return documentText.length();
+        }
+    }
+
+    /**
+     * @return the offset of the text from the server in the document
+     */
+    public int getWindowStart() {
+        synchronized (area) {
+            return windowStart;
+        }
+    }
+
+    /**
+     * Makes the text read-only while the connection is lost, so nothing typed is
+     * lost, and editable again once it is back
+     */
+    public void setConnected(final boolean connected) {
+        SwingUtilities.invokeLater(() -> {
+            area.setEditable(connected);
+            documentNameLabel.setText("<html><B>" + documentName + "</B>"
+                    + (connected ? "" : " (reconnecting...)") + "</html>");
+        });
+    }
+
+    /**
+     * Sends the caret and selection to the server, if they moved since the last
+     * time. Called by the cursorTimer, so that caret moves are coalesced.
+     */
+    private void sendCursor() {
+        int start = getWindowStart();
+        int dot = start + caret.getDot();
+        int mark = start + caret.getMark();
+        if (dot != sentDot || mark != sentMark) {
+            sentDot = dot;
+            sentMark = mark;
+            new MessageSwingWorker(client, "cursor " + documentName + " " + dot + " " + mark,
+                    true).execute();
+        }
+    }
+
+    /**
+     * Shows the caret and selection of another user, on the event dispatch thread
+     *
+     * @param username the other user
+     * @param dot      the caret of the user in the document, -1 if the user
+     *                 left the document
+     * @param mark     the other end of the selection of the user
+     */
+    public void updateRemoteCursor(final String username, final int dot, final int mark) {
+        SwingUtilities.invokeLater(() -> {
+            if (dot < 0) {
+                remoteCursors.remove(username);
+            } else {
+                remoteCursors.put(username, new int[]{dot, mark});
+            }
+            paintRemoteCursors();
+        });
+    }
+
+    /**
+     * Moves the carets of the other users through an edit of the document, on
+     * the event dispatch thread
+     */
+    private void rebaseRemoteCursors(final int editPosition, final int editLength) {
+        SwingUtilities.invokeLater(() -> {
+            for (int[] cursor : remoteCursors.values()) {
+                cursor[0] = EditManager.transformPosition(cursor[0], editPosition, editLength);
+                cursor[1] = EditManager.transformPosition(cursor[1], editPosition, editLength);
+            }
+            paintRemoteCursors();
+        });
+    }
+
+    /**
+     * Replaces the highlights of the other users' carets and selections
+     */
+    private void paintRemoteCursors() {
+        Highlighter highlighter = area.getHighlighter();
+        for (Object highlight : remoteCursorHighlights) {
+            highlighter.removeHighlight(highlight);
+        }
+        remoteCursorHighlights.clear();
+        int length = area.getDocument().getLength();
+        int start = getWindowStart();
+        for (Map.Entry<String, int[]> cursor : remoteCursors.entrySet()) {
+            int dot = Math.min(cursor.getValue()[0] - start, length);
+            int mark = Math.max(0, Math.min(cursor.getValue()[1] - start, length));
+            if (dot < 0) {
+                // before the loaded text
+                continue;
+            }
+            try {
+                if (dot != mark) {
+                    Color color = RemoteCursorPainter.colorOf(cursor.getKey());
+                    remoteCursorHighlights.add(highlighter.addHighlight(Math.min(dot, mark),
+                            Math.max(dot, mark), new DefaultHighlighter.DefaultHighlightPainter(
+                                    new Color(color.getRed(), color.getGreen(), color.getBlue(), 60))));
                 }
+                remoteCursorHighlights.add(highlighter.addHighlight(dot, dot,
+                        new RemoteCursorPainter(cursor.getKey())));
+            } catch (BadLocationException e) {
+                // out of the loaded text
+            }
+        }
+    }
 
+    /**
+     * Appends a chunk of a streamed document at the end of the text area, on the
+     * event dispatch thread, without sending it to the server. The part already
+     * loaded can be edited meanwhile.
+     *
+     * @param text   the decoded text of the chunk
+     * @param loaded the number of characters of the document received so far
+     * @param total  the length of the document
+     */
+    public void appendText(final String text, final int loaded, final int total) {
+        SwingUtilities.invokeLater(() -> {
+            synchronized (area) {
+                documentText += text;
+                area.getDocument().removeDocumentListener(documentListener);
+                area.append(text);
+                area.getDocument().addDocumentListener(documentListener);
             }
+            showLoadingProgress(loaded, total);
+        });
+    }
+
+    /**
+     * Appends the text following the loaded part of a document open in partial
+     * mode, on the event dispatch thread. The text is dropped if it doesn't
+     * start where the loaded part ends, or is not of the version of the text:
+     * the text then stays a part of the viewport the server extended, and is
+     * kept up to date like it.
+     *
+     * @param version the version of the text
+     * @param start   the position of the text in the document
+     * @param text    the decoded text
+     * @param total   the length of the document
+     */
+    public void appendRange(final int version, final int start, final String text,
+                            final int total) {
+        SwingUtilities.invokeLater(() -> {
+            synchronized (area) {
+                if (version != textVersion || windowStart + documentText.length() != start) {
+                    return;
+                }
+                documentText += text;
+                area.getDocument().removeDocumentListener(documentListener);
+                area.append(text);
+                area.getDocument().addDocumentListener(documentListener);
+            }
+            showLoadingProgress(getWindowStart() + area.getDocument().getLength(), total);
+        });
+    }
+
+    /**
+     * Shows in the label how much of the document is loaded, if not all of it
+     */
+    private void showLoadingProgress(int loaded, int total) {
+        if (loaded >= total) {
+            documentNameLabel.setText("<html><B>" + documentName + "</B></html>");
+        } else {
+            int percent = (int) (100L * loaded / total);
+            documentNameLabel.setText("<html><B>" + documentName + "</B> (loaded " + percent + "%)</html>");
+        }
+    }
 
+    /**
+     * Class representing a listener on the vertical scroll bar. When the user
+     * scrolls close to the end of the loaded part of a document open in partial
+     * mode, asks the server for the text that follows.
+     */
+    private class ScrollListener implements AdjustmentListener {
+        public void adjustmentValueChanged(AdjustmentEvent e) {
+            BoundedRangeModel model = scrollpane.getVerticalScrollBar().getModel();
+            // within one screen of the end
+            if (model.getValue() + 2 * model.getExtent() >= model.getMaximum()) {
+                client.requestMoreText(getWindowStart() + area.getDocument().getLength());
+            }
         }
     }
 
@@ -274,12 +770,10 @@ public class DocumentView extends JPanel {
      */
     private class OpenFileListener implements ActionListener {
         /**
-         * Sends a "look" message to the server, which will respond by showing a
-         * dialog with the documents on the server.
+         * Shows a dialog that asks the server for the documents a page at a time
          */
         public void actionPerformed(ActionEvent e) {
-            // send message to client, get documentNames
-            client.sendMessageToServer("look");
+            ((MainWindow) frame).openDocumentPicker();
         }
     }
 
@@ -344,4 +838,32 @@ public class DocumentView extends JPanel {
             area.cut();
         }
     }
+
+    /**
+     * Class representing a listener on the Undo and Redo buttons in the JMenu
+     */
+    private class UndoListener implements ActionListener {
+        private final String request;
+
+        /**
+         * @param request "undo" or "redo"
+         */
+        UndoListener(String request) {
+            this.request = request;
+        }
+
+        /**
+         * Asks the server to undo (or redo) the last change of the user. The
+         * server computes the change and sends it back like any other change.
+         */
+        public void actionPerformed(ActionEvent e) {
+            if (client == null) {
+                return;
+            }
+            synchronized (area) {
+                pendingUndos++;
+            }
+            new MessageSwingWorker(client, request + " " + documentName, true).execute();
+        }
+    }
 }
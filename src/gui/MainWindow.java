@@ -3,9 +3,11 @@ package gui;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 import client.Client;
 
@@ -82,12 +84,20 @@ public class MainWindow extends JFrame {
      * Switch to DocumentView from WelcomeView
      */
     public void switchToDocumentView(String documentName, String documentText) {
+        switchToDocumentView(documentName, documentText, 0);
+    }
+
+    /**
+     * Switch to DocumentView from WelcomeView, with the part of the document
+     * from windowStart
+     */
+    public void switchToDocumentView(String documentName, String documentText, int windowStart) {
         setVisible(false);
         removeAllViews();
         setPreferredSize(new Dimension(600, 500));
         setMinimumSize(new Dimension(600, 500));
         setMaximumSize(new Dimension(600, 500));
-        documentView = new DocumentView(this, documentName, documentText);
+        documentView = new DocumentView(this, documentName, documentText, windowStart);
         this.addWindowListener(new ExitWindowListener(client));
         getContentPane().add(documentView, BorderLayout.CENTER);
         getContentPane().validate();
@@ -117,7 +127,44 @@ public class MainWindow extends JFrame {
      * @param documentNames list of names of the documents
      */
     public void displayOpenDocuments(ArrayList<String> documentNames) {
-        openDocumentDialog = new OpenDocumentDialog(documentNames, client);
+        SwingUtilities.invokeLater(() -> {
+            closeOpenDocumentDialog();
+            openDocumentDialog = new OpenDocumentDialog(this, client);
+            openDocumentDialog.showDocuments(documentNames);
+        });
+    }
+
+    /**
+     * Opens an openDocumentDialog that asks the server for the documents a page
+     * at a time
+     */
+    public void openDocumentPicker() {
+        SwingUtilities.invokeLater(() -> {
+            closeOpenDocumentDialog();
+            openDocumentDialog = new OpenDocumentDialog(this, client);
+            openDocumentDialog.showDocuments();
+        });
+    }
+
+    /**
+     * Adds a page of document names sent by the server to the openDocumentDialog
+     *
+     * @param prefix the filter the page answers
+     * @param next the cursor of the next page, null if it is the last page
+     * @param documentNames the names of the page
+     */
+    public void displayDocumentPage(String prefix, String next, List<String> documentNames) {
+        SwingUtilities.invokeLater(() -> {
+            if (openDocumentDialog != null) {
+                openDocumentDialog.addPage(prefix, next, documentNames);
+            }
+        });
+    }
+
+    private void closeOpenDocumentDialog() {
+        if (openDocumentDialog != null) {
+            openDocumentDialog.dispose();
+        }
     }
 
     /**
@@ -140,14 +187,129 @@ public class MainWindow extends JFrame {
     }
 
     /**
-     * Creates and shows a message dialog
+     * Applies a change of a document open in partial mode to the documentView
+     * (see DocumentView.applyWindowChange)
+     *
+     * @return false if there is no documentView or the change doesn't apply to it
+     */
+    public boolean applyWindowChange(int position, int length, String inserted,
+                                     int documentLength, String username, int version) {
+        if (documentView == null || !documentView.applyWindowChange(position, length, inserted,
+                documentLength, username, version)) {
+            return false;
+        }
+        getContentPane().repaint();
+        return true;
+    }
+
+    /**
+     * Applies the edits missed while the connection was lost to the documentView
+     * (see DocumentView.applyPatch)
+     *
+     * @return false if there is no documentView or the edits don't apply to it
+     */
+    public boolean applyPatch(int fromVersion, int toVersion, int documentLength,
+                              List<String> edits) {
+        if (documentView == null || !documentView.applyPatch(fromVersion, toVersion,
+                documentLength, edits)) {
+            return false;
+        }
+        getContentPane().repaint();
+        return true;
+    }
+
+    /**
+     * Applies the edits of a diff from the server to the documentView (see
+     * DocumentView.applyDiff)
+     *
+     * @return false if there is no documentView or the edits don't apply to it
+     */
+    public boolean applyDiff(int fromVersion, int toVersion, int start, List<String> edits) {
+        if (documentView == null || !documentView.applyDiff(fromVersion, toVersion, start, edits)) {
+            return false;
+        }
+        getContentPane().repaint();
+        return true;
+    }
+
+    /**
+     * @return "DocumentName Version Loaded Position" for the document open in
+     * the documentView: the version, the length and the offset in the document
+     * of the text it has from the server, or null if no document is open
+     */
+    public String getResumePoint() {
+        DocumentView view = documentView;
+        if (view == null || client.getDocumentName() == null) {
+            return null;
+        }
+        return client.getDocumentName() + " " + view.getTextVersion() + " " + view.getTextLength()
+                + " " + view.getWindowStart();
+    }
+
+    /**
+     * Shows whether the connection to the server is up, the document can only
+     * be edited while it is
+     */
+    public void setConnected(boolean connected) {
+        if (documentView != null) {
+            documentView.setConnected(connected);
+        }
+    }
+
+    /**
+     * Shows the caret and selection of another user in the documentView
+     *
+     * @param username the other user
+     * @param dot      the caret of the user, -1 if the user left the document
+     * @param mark     the other end of the selection of the user
+     */
+    public void updateRemoteCursor(String username, int dot, int mark) {
+        if (documentView != null) {
+            documentView.updateRemoteCursor(username, dot, mark);
+        }
+    }
+
+    /**
+     * Appends a chunk of a streamed document to the end of the documentView
+     *
+     * @param text   the decoded text of the chunk
+     * @param loaded the number of characters of the document received so far
+     * @param total  the length of the document
+     */
+    public void appendDocumentText(String text, int loaded, int total) {
+        if (documentView != null) {
+            documentView.appendText(text, loaded, total);
+        }
+    }
+
+    /**
+     * Appends the text following the loaded part of a document open in partial
+     * mode to the documentView
+     *
+     * @param version the version of the text
+     * @param start   the position of the text in the document
+     * @param text    the decoded text
+     * @param total   the length of the document
+     */
+    public void appendDocumentRange(int version, int start, String text, int total) {
+        if (documentView != null) {
+            documentView.appendRange(version, start, text, total);
+        }
+    }
+
+    /**
+     * Creates and shows a message dialog, then brings the text of the document
+     * up to date with a resync from its version, or opens the document again if
+     * no text is loaded
      *
      * @param error the error message
      */
     public void openVersionErrorView(String error) {
         int n = JOptionPane.showConfirmDialog(null, error, "Error",
                 JOptionPane.ERROR_MESSAGE);
-        client.sendMessageToServer("open " + client.getDocumentName());
+        String resumePoint = getResumePoint();
+        client.sendMessageToServer(resumePoint != null ? "resync " + resumePoint
+                : "open " + client.getDocumentName() + " partial");
     }
 
     /**
@@ -1,53 +1,215 @@
 package gui;
 
-import java.util.ArrayList;
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
 
-import javax.swing.JOptionPane;
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import client.Client;
 
 
 /**
- * OpenDocumentView represents the view that clients see when opening an
- * existing document
+ * OpenDocumentDialog represents the view that clients see when opening an
+ * existing document.
+ * <p>
+ * The names of the documents are asked to the server a page at a time with
+ * "list" (see ClientConnectionThread): typing in the filter asks for the first
+ * page of the names starting with it, and scrolling to the end of the list
+ * asks for the next page. Pages answering a previous filter are ignored.
  */
-public class OpenDocumentDialog extends JOptionPane {
+public class OpenDocumentDialog extends JDialog {
 	private static final long serialVersionUID = 1L;
+	private static final int pageSize = 50;
+	private final Client client;
+	private final JTextField filter;
+	private final DefaultListModel<String> names;
+	private final JList<String> list;
+	private final JLabel status;
+	private final JButton openButton;
+	// the filter the shown names start with
+	private String prefix = "";
+	// the cursor of the next page, null if the last page was received
+	private String next;
+	// a page was asked for and not received yet
+	private boolean loading;
 
 	/**
-	 * Creates a new OpenDocumentDialog as a JOptionPane that shows the client
-	 * what documents are on the server. When clients make a choice, that is
-	 * sent as an "open" message to the server.
-	 * 
-	 * @param documentNames
-	 *            list of names of the documents
+	 * Creates a new OpenDocumentDialog that shows the client what documents are
+	 * on the server. When clients make a choice, that is sent as an "open"
+	 * message to the server.
+	 *
+	 * @param owner the window the dialog belongs to
 	 * @param client the client that is making the open document choice
 	 */
-	public OpenDocumentDialog(ArrayList<String> documentNames, Client client) {
-
-		// if names is null, an error message is shown
-		//we don't actually use this code...
-		if (documentNames == null) {
-			JOptionPane.showMessageDialog(null,
-					"There is no document on the server yet", "Error",
-					JOptionPane.ERROR_MESSAGE);
-		} 
-		else {
-			//otherwise, the gui will switch to a JOption in which the client could select a document to open
-			Object[] documentsOnServer = new Object[documentNames.size()];
-			for (int i = 0; i < documentNames.size(); i++) {
-				documentsOnServer[i] = documentNames.get(i);
+	public OpenDocumentDialog(JFrame owner, Client client) {
+		super(owner, "Open a document", false);
+		this.client = client;
+		filter = new JTextField();
+		names = new DefaultListModel<String>();
+		list = new JList<String>(names);
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		status = new JLabel(" ");
+		openButton = new JButton("Open");
+
+		filter.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				filterChanged();
+			}
+
+			public void removeUpdate(DocumentEvent e) {
+				filterChanged();
+			}
+
+			public void changedUpdate(DocumentEvent e) {
+				filterChanged();
 			}
-			// s is the name of the document that the client wants to open
-			String s = (String) JOptionPane.showInputDialog(null,
-					"Choose a document:\n", "Open a document dialog",
-					JOptionPane.PLAIN_MESSAGE, icon, documentsOnServer,
-					documentsOnServer[0]);
-
-			// send the message to the server.
-			if (s != null) {
-				client.sendMessageToServer("open " + s);
+		});
+		// enter in the filter opens the selected (or first) document
+		filter.addActionListener(e -> openSelected());
+		list.addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() == 2) {
+					openSelected();
+				}
 			}
+		});
+		openButton.addActionListener(e -> openSelected());
+
+		JScrollPane scroll = new JScrollPane(list);
+		scroll.setPreferredSize(new Dimension(260, 240));
+		// the next page is asked for when the end of the list is shown
+		scroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+			if (!e.getValueIsAdjusting() && next != null
+					&& list.getLastVisibleIndex() >= names.size() - 1) {
+				requestPage(next);
+			}
+		});
+
+		JPanel top = new JPanel(new BorderLayout(5, 5));
+		top.add(new JLabel("Find:"), BorderLayout.WEST);
+		top.add(filter, BorderLayout.CENTER);
+		JPanel bottom = new JPanel(new BorderLayout(5, 5));
+		bottom.add(status, BorderLayout.CENTER);
+		bottom.add(openButton, BorderLayout.EAST);
+		JPanel content = new JPanel(new BorderLayout(5, 5));
+		content.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+		content.add(top, BorderLayout.NORTH);
+		content.add(scroll, BorderLayout.CENTER);
+		content.add(bottom, BorderLayout.SOUTH);
+		setContentPane(content);
+		pack();
+		setLocationRelativeTo(owner);
+	}
+
+	/**
+	 * Shows the dialog and asks for the first page of the documents
+	 */
+	public void showDocuments() {
+		setVisible(true);
+		filter.requestFocusInWindow();
+		requestPage(null);
+	}
+
+	/**
+	 * Shows the names of a "look" answer, all the documents at once
+	 *
+	 * @param documentNames list of names of the documents
+	 */
+	public void showDocuments(List<String> documentNames) {
+		loading = true;
+		addPage("", null, documentNames);
+		setVisible(true);
+		filter.requestFocusInWindow();
+	}
+
+	/**
+	 * Adds a page received from the server to the list, unless it answers a
+	 * previous filter. Must be called on the event dispatch thread.
+	 *
+	 * @param pagePrefix the filter the page answers
+	 * @param pageNext the cursor of the next page, null if it is the last page
+	 * @param pageNames the names of the page
+	 */
+	public void addPage(String pagePrefix, String pageNext, List<String> pageNames) {
+		if (!loading || !pagePrefix.equals(prefix)) {
+			return;
+		}
+		loading = false;
+		next = pageNext;
+		for (String name : pageNames) {
+			names.addElement(name);
+		}
+		if (names.isEmpty()) {
+			status.setText(prefix.isEmpty() ? "There is no document on the server yet"
+					: "No document starts with " + prefix);
+		} else {
+			status.setText(names.size() + (next == null ? "" : "+") + " documents");
+		}
+		if (list.getSelectedIndex() < 0 && !names.isEmpty()) {
+			list.setSelectedIndex(0);
+		}
+		// the page may not fill the list, then the next one is needed right away
+		if (next != null && list.getLastVisibleIndex() >= names.size() - 1) {
+			requestPage(next);
+		}
+	}
+
+	/**
+	 * Starts the list over with the names starting with the new filter
+	 */
+	private void filterChanged() {
+		String text = filter.getText().trim();
+		if (!text.matches("[\\w\\d]*")) {
+			status.setText("Document names only contain letters and digits");
+			return;
+		}
+		prefix = text;
+		names.clear();
+		next = null;
+		loading = false;
+		requestPage(null);
+	}
+
+	/**
+	 * Asks the server for the page after the cursor, null for the first page.
+	 * Nothing is asked while a page is on its way.
+	 */
+	private void requestPage(String after) {
+		if (loading) {
+			return;
+		}
+		loading = true;
+		status.setText("Loading...");
+		client.sendMessageToServer("list " + pageSize + " " + (prefix.isEmpty() ? "-" : prefix)
+				+ (after == null ? "" : " " + after));
+	}
+
+	/**
+	 * Sends an "open" message for the selected document and closes the dialog
+	 */
+	private void openSelected() {
+		String s = list.getSelectedValue();
+		if (s == null && !names.isEmpty()) {
+			s = names.getElementAt(0);
+		}
+		if (s != null) {
+			client.sendMessageToServer("open " + s + " partial");
+			dispose();
 		}
 	}
 }
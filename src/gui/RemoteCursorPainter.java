@@ -0,0 +1,55 @@
+package gui;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+
+/**
+ * Paints the caret of another user of the document: a vertical bar in the
+ * user's color with the username above it.
+ */
+public class RemoteCursorPainter implements Highlighter.HighlightPainter {
+    private static final Color[] colors = {new Color(0xD32F2F), new Color(0x1976D2),
+            new Color(0x388E3C), new Color(0xF57C00), new Color(0x7B1FA2),
+            new Color(0x0097A7), new Color(0xC2185B), new Color(0x5D4037)};
+
+    private final String username;
+    private final Color color;
+
+    public RemoteCursorPainter(String username) {
+        this.username = username;
+        this.color = colorOf(username);
+    }
+
+    /**
+     * @return the color that identifies the user, the same on every client
+     */
+    public static Color colorOf(String username) {
+        return colors[Math.floorMod(username.hashCode(), colors.length)];
+    }
+
+    /**
+     * Paints the caret at p0, the start of the highlight
+     */
+    public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+        try {
+            Rectangle2D r = c.modelToView2D(p0);
+            if (r == null) {
+                return;
+            }
+            Rectangle caret = r.getBounds();
+            g.setColor(color);
+            g.fillRect(caret.x, caret.y, 2, caret.height);
+            g.setFont(c.getFont().deriveFont(9f));
+            g.drawString(username, caret.x + 3, caret.y + g.getFontMetrics().getAscent() - 2);
+        } catch (BadLocationException e) {
+            // the position is out of the document, nothing to paint
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection compression of protocol lines, used once both ends agreed on
+ * it with "compress deflate".
+ * <p>
+ * Compressed :== "z " Base64
+ * <p>
+ * Each end keeps one Deflater for the lines it sends and one Inflater for the
+ * lines it receives, for the whole connection. Every compressed line is a
+ * sync-flushed block of that one deflate stream, so later messages are
+ * compressed against the text of earlier ones (e.g. a change message against
+ * the document text of the previous one). Lines shorter than the threshold are
+ * sent as they are, and when compression stops paying off (less than 10% saved)
+ * the next large lines are sent as they are too, before trying again.
+ * Compressed and plain lines can be mixed freely.
+ */
+public class Compression {
+    public static final String name = "deflate";
+    public static final String framePrefix = "z ";
+    public static final int defaultThreshold = 1024;
+    private static final int skipAfterPoorRatio = 16;
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final int threshold;
+    private final byte[] deflateBuffer;
+    private final byte[] inflateBuffer;
+    private int skipRemaining;
+    // set once the native resources were freed, read under either lock
+    private volatile boolean ended;
+
+    // statistics of the sending side
+    private long plainLines;
+    private long compressedLines;
+    private long originalBytes;
+    private long compressedBytes;
+    private long compressNanos;
+
+    /**
+     * @param threshold lines shorter than this many characters are never compressed
+     */
+    public Compression(int threshold) {
+        this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+        this.inflater = new Inflater(true);
+        this.threshold = threshold;
+        this.deflateBuffer = new byte[8192];
+        this.inflateBuffer = new byte[8192];
+        this.skipRemaining = 0;
+    }
+
+    public Compression() {
+        this(defaultThreshold);
+    }
+
+    /**
+     * Compresses a line if it is worth it
+     * @param line the line to send, without the line terminator
+     * @return the line to actually send: either the line itself, or a
+     * compressed line starting with "z "
+     * @throws IllegalStateException if the compression was ended
+     */
+    public String compress(String line) {
+        synchronized (deflater) {
+            if (ended) {
+                throw new IllegalStateException("Compression ended");
+            }
+            if (line.length() < threshold || skipRemaining > 0) {
+                if (line.length() >= threshold) {
+                    skipRemaining--;
+                }
+                plainLines++;
+                return line;
+            }
+            long start = System.nanoTime();
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            deflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            int n;
+            do {
+                n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+                out.write(deflateBuffer, 0, n);
+            } while (n == deflateBuffer.length);
+            String frame = framePrefix + Base64.getEncoder().encodeToString(out.toByteArray());
+            compressNanos += System.nanoTime() - start;
+            compressedLines++;
+            originalBytes += bytes.length;
+            compressedBytes += frame.length();
+            if (frame.length() > bytes.length * 0.9) {
+                skipRemaining = skipAfterPoorRatio;
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Decompresses a line if it is compressed
+     * @param line the line received, without the line terminator
+     * @return the original line
+     * @throws IllegalArgumentException if the line is not a valid compressed line
+     * @throws IllegalStateException if the compression was ended
+     */
+    public String decompress(String line) {
+        if (!isCompressed(line)) {
+            return line;
+        }
+        synchronized (inflater) {
+            if (ended) {
+                throw new IllegalStateException("Compression ended");
+            }
+            try {
+                inflater.setInput(Base64.getDecoder().decode(line.substring(framePrefix.length())));
+                ByteArrayOutputStream out = new ByteArrayOutputStream(line.length() * 4);
+                while (!inflater.needsInput()) {
+                    int n = inflater.inflate(inflateBuffer);
+                    if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    out.write(inflateBuffer, 0, n);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Invalid compressed line", e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the line is a compressed line
+     */
+    public static boolean isCompressed(String line) {
+        return line.startsWith(framePrefix);
+    }
+
+    /**
+     * @return the number of lines sent, how many of them were compressed, the
+     * bytes saved on those and the CPU time spent compressing them
+     */
+    public String summary() {
+        synchronized (deflater) {
+            double saved = originalBytes == 0 ? 0 : 100.0 * (originalBytes - compressedBytes) / originalBytes;
+            return String.format("%d lines sent, %d compressed: %d -> %d bytes (%.1f%% saved) in %.2fms",
+                    plainLines + compressedLines, compressedLines, originalBytes, compressedBytes,
+                    saved, compressNanos / 1e6);
+        }
+    }
+
+    public long getCompressedLines() {
+        synchronized (deflater) {
+            return compressedLines;
+        }
+    }
+
+    /**
+     * Frees the native resources of the compressor. Lines can't be compressed
+     * or decompressed afterwards. Ending it again does nothing.
+     */
+    public void end() {
+        synchronized (deflater) {
+            synchronized (inflater) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+            }
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflater.end();
+        }
+    }
+}
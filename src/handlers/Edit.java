@@ -2,8 +2,10 @@ package handlers;
 
 /**
  * Class representing an edit on the document. It stores the type of edit, the text added if the
- * type is Insert, the length of the edit, the offset, and the version of the document the edit was made on.
- * 
+ * type is Insert or removed if the type is Remove, the length of the edit, the offset, the version
+ * of the document the edit was made on, and the user who made it.
+ * The edits logged by the EditManager are not kept as Edits but copied into the
+ * columns of an EditHistory, which gives them back as new Edits when asked.
  */
 public class Edit {
 	
@@ -18,6 +20,7 @@ public class Edit {
 	private final int length;
 	private final int offset;
 	private final int version;
+	private final String username;
 
 	// Rep invariant:
 	// type and text cannot be null
@@ -34,7 +37,17 @@ public class Edit {
 	 */
 	public Edit(String documentName, Type editType, String text, int version,
 			int offset, int length) {
+		this(documentName, editType, text, version, offset, length, null);
+	}
+
+	/**
+	 * Creates a new Edit made by a user
+	 * @param username the user who made the edit, null if unknown
+	 */
+	public Edit(String documentName, Type editType, String text, int version,
+			int offset, int length, String username) {
 		this.documentName = documentName;
+		this.username = username;
 		this.type = editType;
 		this.text = text;
 		this.offset = offset;
@@ -58,8 +71,8 @@ public class Edit {
 
 	/**
 	 * 
-	 * @return the text of the edit. Text is "" if the type of edit is an
-	 *         insert.
+	 * @return the text of the edit: the inserted text, or the removed text
+	 *         ("" if it is not known).
 	 */
 	public String getText() {
 		return text;
@@ -80,6 +93,11 @@ public class Edit {
 		return version;
 	}
 
+	/** @return the user who made the edit, null if unknown. */
+	public String getUsername() {
+		return username;
+	}
+
 	/** @return the documentName of the edit. */
 	public String getDocumentName() {
 		return documentName;
@@ -90,7 +108,8 @@ public class Edit {
 	 */
 	public String toString() {
 		return "Edit: " + documentName + " type: " + type + " v: " + version
-				+ " offset: " + offset + " length: " + length + " text: " + text;
+				+ " offset: " + offset + " length: " + length + " text: " + text
+				+ " user: " + username;
 	}
 
 }
@@ -0,0 +1,181 @@
+package handlers;
+
+import handlers.Edit.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The edit log of one document, stored by columns instead of as Edit objects.
+ * <p>
+ * The version, offset, length and type of the edits are kept in parallel
+ * arrays, and their texts one after the other in a single char array (the
+ * arena), of which each edit keeps the start and length. The usernames are
+ * stored once and referred to by number. A logged edit takes a few ints and
+ * its characters instead of an Edit, two Strings and their arrays, and
+ * transforming a position through the log (see EditManager) reads the offsets
+ * and lengths in order from two arrays.
+ * <p>
+ * Edits are read by index with the getters, or as an Edit with get, which
+ * copies its text out of the arena. The versions of the edits are increasing.
+ * Not thread safe, guarded by the EditManager.
+ */
+public class EditHistory {
+    private static final int initialCapacity = 16;
+    private static final byte insert = 0;
+    private static final byte remove = 1;
+
+    private final String documentName;
+    private int size;
+    private int[] versions;
+    private int[] offsets;
+    private int[] lengths;
+    private byte[] types;
+    private int[] textStarts;
+    private int[] textLengths;
+    private int[] users;
+    private char[] arena;
+    private int arenaSize;
+    // user number -> username, null for the edits of no known user
+    private final List<String> usernames;
+    private final Map<String, Integer> userNumbers;
+
+    public EditHistory(String documentName) {
+        this.documentName = documentName;
+        versions = new int[initialCapacity];
+        offsets = new int[initialCapacity];
+        lengths = new int[initialCapacity];
+        types = new byte[initialCapacity];
+        textStarts = new int[initialCapacity];
+        textLengths = new int[initialCapacity];
+        users = new int[initialCapacity];
+        arena = new char[initialCapacity * 4];
+        usernames = new ArrayList<>();
+        userNumbers = new HashMap<>();
+        usernames.add(null);
+    }
+
+    /**
+     * Appends an edit, of a version after the versions of the edits already logged
+     */
+    public void add(Edit edit) {
+        if (size == versions.length) {
+            grow();
+        }
+        String text = edit.getText() == null ? "" : edit.getText();
+        if (arenaSize + text.length() > arena.length) {
+            char[] grown = new char[Math.max(arena.length * 2, arenaSize + text.length())];
+            System.arraycopy(arena, 0, grown, 0, arenaSize);
+            arena = grown;
+        }
+        text.getChars(0, text.length(), arena, arenaSize);
+        versions[size] = edit.getVersion();
+        offsets[size] = edit.getOffset();
+        lengths[size] = edit.getLength();
+        types[size] = edit.getType() == Type.INSERT ? insert : remove;
+        textStarts[size] = arenaSize;
+        textLengths[size] = text.length();
+        users[size] = userNumber(edit.getUsername());
+        arenaSize += text.length();
+        size++;
+    }
+
+    private void grow() {
+        int capacity = versions.length * 2;
+        versions = Arrays.copyOf(versions, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        types = Arrays.copyOf(types, capacity);
+        textStarts = Arrays.copyOf(textStarts, capacity);
+        textLengths = Arrays.copyOf(textLengths, capacity);
+        users = Arrays.copyOf(users, capacity);
+    }
+
+    private int userNumber(String username) {
+        if (username == null) {
+            return 0;
+        }
+        Integer number = userNumbers.get(username);
+        if (number == null) {
+            number = usernames.size();
+            usernames.add(username);
+            userNumbers.put(username, number);
+        }
+        return number;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getVersion(int index) {
+        return versions[index];
+    }
+
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    /** @return the length of the edit, negative for a remove */
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    public Type getType(int index) {
+        return types[index] == insert ? Type.INSERT : Type.REMOVE;
+    }
+
+    /** @return the length of the text of the edit, which is not known for some removes */
+    public int getTextLength(int index) {
+        return textLengths[index];
+    }
+
+    public String getText(int index) {
+        return new String(arena, textStarts[index], textLengths[index]);
+    }
+
+    public String getUsername(int index) {
+        return usernames.get(users[index]);
+    }
+
+    /**
+     * Inserts the text of the edit in the builder at position, without copying
+     * it to a String first
+     */
+    public void insertText(int index, StringBuilder builder, int position) {
+        builder.insert(position, arena, textStarts[index], textLengths[index]);
+    }
+
+    /**
+     * @return the edit at the index, its text copied out of the arena
+     */
+    public Edit get(int index) {
+        return new Edit(documentName, getType(index), getText(index), versions[index],
+                offsets[index], lengths[index], getUsername(index));
+    }
+
+    /**
+     * @return the index of the edit of the version, or -1 if the log doesn't
+     * have it
+     */
+    public int indexOf(int version) {
+        int index = Arrays.binarySearch(versions, 0, size, version);
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * @return the index of the first edit of the version or a later one, size if
+     * there is none
+     */
+    public int firstIndexFrom(int version) {
+        int index = Arrays.binarySearch(versions, 0, size, version);
+        return index < 0 ? -index - 1 : index;
+    }
+}
@@ -1,23 +1,74 @@
 package handlers;
 
+import handlers.Edit.Type;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Class that manages the edit queue for the documents on the server
+ * <p>
+ * It also keeps, for every user of every document, the versions of the edits
+ * the user can undo and redo. Undoing an edit makes the inverse edit, moved
+ * through the edits made after it (see invert), and redoing an edit undoes its
+ * undo. The log of a document holds consecutive versions, so the edit of a
+ * version is found by binary search and inverting it only looks at the edits
+ * made since. The log of each document is stored by columns (see EditHistory).
+ * <p>
+ * Past versions of a document are rebuilt from checkpoints, copies of the text
+ * of the document at some versions, and the edits made between them (see
+ * getTextAt). A checkpoint is taken every checkpointInterval edits, so rebuilding
+ * a recent version replays at most checkpointInterval / 2 edits, forward from
+ * the checkpoint before it or backward from the one after it. Both the time of
+ * replaying an edit and the size of a checkpoint grow with the size of the
+ * document, so the interval is a number of edits.
+ * <p>
+ * Older checkpoints are thinned out exponentially (see thinCheckpoints): the
+ * recentCheckpoints last ones are all kept, then every other one of the
+ * recentCheckpoints before, every fourth one of the 2 * recentCheckpoints
+ * before these, and so on, plus the first checkpoint of the log. After n
+ * checkpoints, a document keeps at most
+ * recentCheckpoints + (recentCheckpoints / 2 + 1) * (log2(n / recentCheckpoints) + 1) + 1
+ * of them, e.g. 48 after a million edits with the default interval, and
+ * rebuilding a version k edits old replays about k / recentCheckpoints edits
+ * at most, plus checkpointInterval / 2: old versions are rebuilt more slowly,
+ * as they are asked for more rarely.
  */
 public class EditManager {
-    private final Map<String, List<Edit>> editLog;
+    private final Map<String, EditHistory> editLog;
+    // document name -> username -> versions of the edits, most recent first
+    private final Map<String, Map<String, Deque<Integer>>> undoStacks;
+    private final Map<String, Map<String, Deque<Integer>>> redoStacks;
+    private static final int undoLimit = 100;
+    // document name -> version -> text of the document at that version
+    private final Map<String, TreeMap<Integer, CharSequence>> checkpoints;
+    // document name -> version -> number of the checkpoint, counted from 0 for
+    // the first checkpoint of the log
+    private final Map<String, TreeMap<Integer, Integer>> checkpointNumbers;
+    private final Map<String, Integer> editsSinceCheckpoint;
+    private volatile int checkpointInterval;
+    public static final int defaultCheckpointInterval = 128;
+    private static final int recentCheckpoints = 8;
 
     /**
      * Creates a new EditManager for the server with a new map
      * of documentNames to lists of Edits
      */
     public EditManager() {
-        editLog = Collections.synchronizedMap(new HashMap<String, List<Edit>>());
+        editLog = Collections.synchronizedMap(new HashMap<String, EditHistory>());
+        undoStacks = new HashMap<>();
+        redoStacks = new HashMap<>();
+        checkpoints = new HashMap<>();
+        checkpointNumbers = new HashMap<>();
+        editsSinceCheckpoint = new HashMap<>();
+        checkpointInterval = defaultCheckpointInterval;
 
     }
 
@@ -28,66 +79,420 @@ public class EditManager {
      * @param documentName name of new document
      */
     public synchronized void createNewlog(String documentName) {
-        editLog.put(documentName, new ArrayList<Edit>());
+        createNewlog(documentName, 1, "");
+    }
+
+    /**
+     * Creates a new log for a document that starts at the given version, with
+     * the given text, e.g. a copy of a document received from a primary
+     *
+     * @param documentName name of the document
+     * @param version      the version of the document
+     * @param text         the text of the document at that version, kept as
+     *                     the first checkpoint and never modified
+     */
+    public synchronized void createNewlog(String documentName, int version, CharSequence text) {
+        editLog.put(documentName, new EditHistory(documentName));
+        undoStacks.remove(documentName);
+        redoStacks.remove(documentName);
+        TreeMap<Integer, CharSequence> documentCheckpoints = new TreeMap<>();
+        documentCheckpoints.put(version, text);
+        checkpoints.put(documentName, documentCheckpoints);
+        TreeMap<Integer, Integer> numbers = new TreeMap<>();
+        numbers.put(version, 0);
+        checkpointNumbers.put(documentName, numbers);
+        editsSinceCheckpoint.put(documentName, 0);
+    }
+
+    /**
+     * Sets the number of edits between two checkpoints, from the next checkpoint on
+     */
+    public void setCheckpointInterval(int interval) {
+        checkpointInterval = Math.max(1, interval);
+    }
+
+    /**
+     * @return true if enough edits were logged since the last checkpoint of the
+     * document that the next one should be taken
+     */
+    public synchronized boolean isCheckpointDue(String documentName) {
+        return editsSinceCheckpoint.get(documentName) >= checkpointInterval;
+    }
+
+    /**
+     * Keeps a copy of the text of the document at a version, and drops the older
+     * checkpoints not needed anymore (see thinCheckpoints). The copy may be kept
+     * outside the heap by the caller, it is only read.
+     */
+    public synchronized void checkpoint(String documentName, int version, CharSequence text) {
+        TreeMap<Integer, Integer> numbers = checkpointNumbers.get(documentName);
+        int number = numbers.lastEntry().getValue() + 1;
+        checkpoints.get(documentName).put(version, text);
+        numbers.put(version, number);
+        editsSinceCheckpoint.put(documentName, 0);
+        thinCheckpoints(documentName, number);
+    }
+
+    /**
+     * Drops the checkpoints of the document too close to the ones kept for
+     * their age. The age of a checkpoint is the number of checkpoints taken
+     * after it. The recentCheckpoints youngest are all kept; a checkpoint of age
+     * from recentCheckpoints * 2^j to recentCheckpoints * 2^(j+1) is kept if its
+     * number is a multiple of 2^(j+1), so recentCheckpoints / 2 + 1 checkpoints
+     * at most are kept in each of these ranges. The divisor only grows with the age, so
+     * a checkpoint dropped would never have been kept later. The first
+     * checkpoint is kept, as versions before it can't be rebuilt.
+     *
+     * @param latest the number of the checkpoint just taken
+     */
+    private void thinCheckpoints(String documentName, int latest) {
+        TreeMap<Integer, CharSequence> documentCheckpoints = checkpoints.get(documentName);
+        Iterator<Map.Entry<Integer, Integer>> numbers =
+                checkpointNumbers.get(documentName).entrySet().iterator();
+        while (numbers.hasNext()) {
+            Map.Entry<Integer, Integer> checkpoint = numbers.next();
+            int number = checkpoint.getValue();
+            int age = latest - number;
+            if (number == 0 || age < recentCheckpoints) {
+                continue;
+            }
+            // 2^(j+1), the highest power of 2 at most age / recentCheckpoints, doubled
+            int spacing = Integer.highestOneBit(age / recentCheckpoints) * 2;
+            if (number % spacing != 0) {
+                // the key is read first: removing an entry of a TreeMap may
+                // reuse it for the next one
+                documentCheckpoints.remove(checkpoint.getKey());
+                numbers.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of checkpoints kept for the document
+     */
+    public synchronized int getCheckpointCount(String documentName) {
+        return checkpoints.get(documentName).size();
+    }
+
+    /**
+     * @return the number of characters kept in the checkpoints of the document
+     */
+    public synchronized long getCheckpointSize(String documentName) {
+        long size = 0;
+        for (CharSequence text : checkpoints.get(documentName).values()) {
+            size += text.length();
+        }
+        return size;
+    }
+
+    /**
+     * Rebuilds the text of the document at a past version from the closest
+     * checkpoint, replaying the edits made after the checkpoint before the
+     * version, or undoing the edits made before the checkpoint after it.
+     *
+     * @param version a version of the document, at most the version after the
+     *                last logged edit
+     * @return the text of the document at that version, or null if the version
+     * is older than the log or newer than its last edit
+     */
+    public synchronized String getTextAt(String documentName, int version) {
+        EditHistory list = editLog.get(documentName);
+        TreeMap<Integer, CharSequence> documentCheckpoints = checkpoints.get(documentName);
+        if (list == null || version < documentCheckpoints.firstKey()) {
+            return null;
+        }
+        int lastVersion = list.isEmpty() ? documentCheckpoints.firstKey()
+                : list.getVersion(list.size() - 1) + 1;
+        if (version > lastVersion) {
+            return null;
+        }
+        Map.Entry<Integer, CharSequence> before = documentCheckpoints.floorEntry(version);
+        Map.Entry<Integer, CharSequence> after = documentCheckpoints.ceilingEntry(version);
+        if (after != null && after.getKey() - version < version - before.getKey()) {
+            String text = replayBackward(list, after.getValue(), after.getKey(), version);
+            if (text != null) {
+                return text;
+            }
+        }
+        return replayForward(list, before.getValue(), before.getKey(), version);
+    }
+
+    /**
+     * @param version a version of the document
+     * @return the edits of the versions from version on, which turn the document
+     * at version into the current document, or null if the log doesn't go back
+     * to version (e.g. the document was copied from a primary since) or version
+     * is newer than the document
+     */
+    public synchronized List<Edit> getEditsFrom(String documentName, int version) {
+        EditHistory list = editLog.get(documentName);
+        TreeMap<Integer, CharSequence> documentCheckpoints = checkpoints.get(documentName);
+        if (list == null || version < documentCheckpoints.firstKey()) {
+            return null;
+        }
+        int lastVersion = list.isEmpty() ? documentCheckpoints.firstKey()
+                : list.getVersion(list.size() - 1) + 1;
+        if (version > lastVersion) {
+            return null;
+        }
+        List<Edit> edits = new ArrayList<>();
+        for (int i = list.firstIndexFrom(version); i < list.size(); i++) {
+            edits.add(list.get(i));
+        }
+        return edits;
+    }
+
+    /**
+     * Converts a line and column of the document at a past version to an
+     * offset in that version, e.g. the position of a change made at that
+     * version, before transforming it. The edits made since the version are
+     * undone on the index of the lines of the current document, last first, the
+     * position is converted, and the edits are made again, which takes
+     * O(k log n) for k edits and n lines, without reading the text. If the text
+     * of one of the removes is not known, the text of the version is rebuilt
+     * and indexed instead (see getTextAt).
+     *
+     * @param lines the index of the lines of the document after the last
+     *              logged edit, left as it was
+     * @return the offset, or -1 if the version is not in the log
+     */
+    public synchronized int offsetAt(String documentName, int version, LineIndex lines,
+                                     int line, int column) {
+        EditHistory list = editLog.get(documentName);
+        TreeMap<Integer, CharSequence> documentCheckpoints = checkpoints.get(documentName);
+        if (list == null || version < documentCheckpoints.firstKey()) {
+            return -1;
+        }
+        int lastVersion = list.isEmpty() ? documentCheckpoints.firstKey()
+                : list.getVersion(list.size() - 1) + 1;
+        if (version > lastVersion) {
+            return -1;
+        }
+        int first = list.firstIndexFrom(version);
+        for (int i = first; i < list.size(); i++) {
+            if (list.getType(i) == Type.REMOVE && list.getTextLength(i) != -list.getLength(i)) {
+                String text = getTextAt(documentName, version);
+                return text == null ? -1 : new LineIndex(text).offsetOf(line, column);
+            }
+        }
+        int i = list.size() - 1;
+        try {
+            for (; i >= first; i--) {
+                if (list.getType(i) == Type.INSERT) {
+                    lines.remove(list.getOffset(i), list.getLength(i));
+                } else {
+                    lines.insert(list.getOffset(i), list.getText(i));
+                }
+            }
+            return lines.offsetOf(line, column);
+        } finally {
+            // the edits undone so far are made again, in order
+            for (i++; i < list.size(); i++) {
+                if (list.getType(i) == Type.INSERT) {
+                    lines.insert(list.getOffset(i), list.getText(i));
+                } else {
+                    lines.remove(list.getOffset(i), -list.getLength(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the edits of the versions from version (included) to target
+     * (excluded) to the text of the document at version
+     */
+    private static String replayForward(EditHistory list, CharSequence text, int version, int target) {
+        StringBuilder document = new StringBuilder(text);
+        int index = list.indexOf(version);
+        for (int i = index; version < target; i++, version++) {
+            int offset = list.getOffset(i);
+            if (list.getType(i) == Type.INSERT) {
+                list.insertText(i, document, offset);
+            } else {
+                document.delete(offset, offset - list.getLength(i));
+            }
+        }
+        return document.toString();
+    }
+
+    /**
+     * Undoes the edits of the versions from target (included) to version
+     * (excluded), last first, on the text of the document at version
+     * @return the text at target, or null if the text of a remove isn't known
+     */
+    private static String replayBackward(EditHistory list, CharSequence text, int version, int target) {
+        StringBuilder document = new StringBuilder(text);
+        int index = list.indexOf(version - 1);
+        for (int i = index; version > target; i--, version--) {
+            int offset = list.getOffset(i);
+            if (list.getType(i) == Type.INSERT) {
+                document.delete(offset, offset + list.getLength(i));
+            } else if (list.getTextLength(i) == -list.getLength(i)) {
+                list.insertText(i, document, offset);
+            } else {
+                return null;
+            }
+        }
+        return document.toString();
     }
 
     /**
      * Adds the edit to the list for the document.
-     * Document names are taken from the edit
+     * Document names are taken from the edit.
+     * The edit can be undone by its user, whose edits undone so far can't be
+     * redone anymore.
      *
      * @param edit the edit made
      */
     public synchronized void logEdit(Edit edit) {
         String documentName = edit.getDocumentName();
         editLog.get(documentName).add(edit);
+        editsSinceCheckpoint.merge(documentName, 1, Integer::sum);
+        if (edit.getUsername() != null) {
+            push(undoStacks, edit);
+            stack(redoStacks, documentName, edit.getUsername()).clear();
+        }
+    }
+
+    /**
+     * Adds an edit undoing or redoing an edit of its user to the list for the
+     * document. An undo can then be redone, a redo undone again.
+     *
+     * @param edit the inverse edit made
+     * @param redo true if the edit redoes an edit, false if it undoes one
+     */
+    public synchronized void logUndo(Edit edit, boolean redo) {
+        editLog.get(edit.getDocumentName()).add(edit);
+        editsSinceCheckpoint.merge(edit.getDocumentName(), 1, Integer::sum);
+        push(redo ? undoStacks : redoStacks, edit);
+    }
+
+    /**
+     * @return the version of the last edit of the user that can be undone, or
+     * null if there is none. It is removed from the edits to undo.
+     */
+    public synchronized Integer popUndo(String documentName, String username) {
+        return stack(undoStacks, documentName, username).pollFirst();
+    }
+
+    /**
+     * @return the version of the last undo of the user that can be redone, or
+     * null if there is none. It is removed from the edits to redo.
+     */
+    public synchronized Integer popRedo(String documentName, String username) {
+        return stack(redoStacks, documentName, username).pollFirst();
+    }
+
+    private Deque<Integer> stack(Map<String, Map<String, Deque<Integer>>> stacks,
+                                 String documentName, String username) {
+        return stacks.computeIfAbsent(documentName, d -> new HashMap<>())
+                .computeIfAbsent(username, u -> new ArrayDeque<>());
+    }
+
+    private void push(Map<String, Map<String, Deque<Integer>>> stacks, Edit edit) {
+        Deque<Integer> versions = stack(stacks, edit.getDocumentName(), edit.getUsername());
+        versions.addFirst(edit.getVersion());
+        if (versions.size() > undoLimit) {
+            versions.removeLast();
+        }
     }
 
     /**
-     * Goes through the versionEditLog and attempts to add the edit at the
-     * correct index by using operational transform.
+     * Computes the edit undoing the edit of the given version, moved through the
+     * edits made after it so that it applies to the current document: the
+     * removal of the text it inserted, or the insertion of the text it removed.
+     * Takes O(number of edits made since).
+     * <p>
+     * The text removed by the inverse of an insert may have been changed by the
+     * later edits, in which case the inverse must not be applied: the caller
+     * compares it with the text of the document.
+     *
+     * @param currentVersion the current version of the document, the version of
+     *                       the inverse edit
+     * @return the inverse edit, made by the same user, or null if the edit isn't
+     * in the log anymore or its removed text isn't known
+     */
+    public synchronized Edit invert(String documentName, int version, int currentVersion) {
+        EditHistory list = editLog.get(documentName);
+        int index = list == null ? -1 : list.indexOf(version);
+        if (index < 0) {
+            return null;
+        }
+        Edit edit = list.get(index);
+        if (edit.getType() == Type.INSERT) {
+            int start = edit.getOffset();
+            int end = start + edit.getLength();
+            for (int i = index + 1; i < list.size(); i++) {
+                int otherOffset = list.getOffset(i);
+                int otherLength = list.getLength(i);
+                // text inserted right after the inserted text is not part of it
+                if (otherLength >= 0 && otherOffset == end) {
+                    start = transformPosition(start, otherOffset, otherLength);
+                    continue;
+                }
+                start = transformPosition(start, otherOffset, otherLength);
+                end = transformPosition(end, otherOffset, otherLength);
+            }
+            return new Edit(documentName, Type.REMOVE, edit.getText(), currentVersion,
+                    start, start - end, edit.getUsername());
+        }
+        if (edit.getText().length() != -edit.getLength()) {
+            return null;
+        }
+        int offset = edit.getOffset();
+        for (int i = index + 1; i < list.size(); i++) {
+            offset = transformPosition(offset, list.getOffset(i), list.getLength(i));
+        }
+        return new Edit(documentName, Type.INSERT, edit.getText(), currentVersion,
+                offset, edit.getText().length(), edit.getUsername());
+    }
+
+    /**
+     * Numbers a change made on an out of date version of the document: it is
+     * applied after the edits logged since that version, so it is the edit of
+     * the current version. Its offset is not transformed through those edits:
+     * a client sends offsets in the text it shows, which already has its own
+     * edits the server has not answered yet, so moving the offset through them
+     * would move it twice. The change is applied at the offset the client sent
+     * (see ClientConnectionThread.applyChange).
      * This is called when the client updates an out of date version
      * of the document.
-     * It goes through each edit that has been made with a version that is equal to or greater than
-     * the specified version and finds the correct index.
      *
      * @param documentName name of document
-     * @param version      version the edit was made one
-     * @param offset       the place the edit was first inserted
-     * @return the corrected offset
+     * @param version      version the edit was made on
+     * @param offset       the place the edit was made
+     * @return the document name, the version the edit is applied on and its
+     * offset, separated by spaces
      */
     public synchronized String manageEdit(String documentName, int version,
                                           int offset) {
-        List<Edit> list = editLog.get(documentName);
-        int updatedOffset = offset;
-        for (Edit edit : list) {
-            if (edit.getVersion() >= version) {
-                updatedOffset = manageOffset(updatedOffset, edit.getOffset(),
-                        edit.getLength());
-                version = edit.getVersion();
-            }
-        }
-        String result = documentName + " " + (version + 1) + " " + offset;
+        EditHistory list = editLog.get(documentName);
+        int currentVersion = list.isEmpty() ? checkpoints.get(documentName).firstKey()
+                : list.getVersion(list.size() - 1) + 1;
+        String result = documentName + " " + Math.max(version, currentVersion) + " " + offset;
         return result;
     }
 
-
     /**
-     * Takes in the current offset and compares it to the otherOffset, the
-     * offset of the already completed edit and it's length,
-     * and corrects the currentOffset if necessary.
+     * Transforms a position in a document (e.g. a cursor) through an edit made on
+     * the document. Text inserted at or before the position pushes it; a removed
+     * range containing the position moves it to the start of the range.
      *
-     * @param currentOffset the current position of the offset
-     * @param otherOffset   another position of the offset
-     * @param length        the length of an already completed edit
-     * @return corrected offset  the final corrected position of the offset
-     */
-    private int manageOffset(int currentOffset, int otherOffset, int length) {
-        if (currentOffset < otherOffset) {
-            return currentOffset;
-        } else if (currentOffset < otherOffset + length && currentOffset >= otherOffset) {
-            return otherOffset;
+     * @param position the position before the edit
+     * @param offset   the position of the edit
+     * @param length   the length of the edit, negative for a remove
+     * @return the position after the edit
+     */
+    public static int transformPosition(int position, int offset, int length) {
+        if (length >= 0) {
+            return position >= offset ? position + length : position;
+        }
+        if (position <= offset) {
+            return position;
+        } else if (position >= offset - length) {
+            return position + length;
         } else {
-            return currentOffset + length;
+            return offset;
         }
     }
 }
@@ -0,0 +1,41 @@
+package handlers;
+
+import client.Client;
+
+/**
+ * The HeartbeatThread sends a "ping" message to the server at a fixed interval
+ * while the client is connected, so that the server can tell an idle client
+ * from a dead one. The server answers every ping with "pong", which lets the
+ * client detect a dead server in turn.
+ */
+public class HeartbeatThread extends Thread {
+    private final Client client;
+    private final long intervalMillis;
+
+    /**
+     * @param client         the client whose connection is kept alive
+     * @param intervalMillis the time between two heartbeats
+     */
+    public HeartbeatThread(Client client, long intervalMillis) {
+        this.client = client;
+        this.intervalMillis = intervalMillis;
+        setName("heartbeat");
+        setDaemon(true);
+    }
+
+    /**
+     * Sends heartbeats until the socket of the client is closed.
+     */
+    public void run() {
+        while (!client.getSocket().isClosed()) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!client.getSocket().isClosed()) {
+                client.sendMessageToServer("ping");
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package handlers;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Maps the offsets of a text to lines and columns and back, without reading the
+ * text.
+ * <p>
+ * The lines are the nodes of a treap, a binary tree in the order of the lines
+ * kept balanced by random priorities, and each node holds the length of its
+ * line, with its line break, and the number and total length of the lines of
+ * its subtree. The start of a line (the sum of the lengths of the lines before
+ * it) and the line of an offset are found down the tree in O(log n) for n
+ * lines. An edit within a line only changes the length of that line, on the
+ * path to it. An edit adding k line breaks splits the tree after the line and
+ * joins it back with k new lines in between, in O(k log n), and an edit
+ * joining lines splits them out of the tree, in O(log n) plus the number of
+ * lines removed, so typing a newline in a large text doesn't go through all
+ * of its lines.
+ * <p>
+ * The nodes are stored by columns, in arrays indexed by node, 0 standing for no
+ * node. The nodes of removed lines are reused.
+ * <p>
+ * Lines and columns start at 0. The last line has no line break, so a text of
+ * n line breaks has n + 1 lines.
+ * Not thread safe.
+ */
+public class LineIndex {
+    private static final int none = 0;
+    private final SplittableRandom random;
+    private int[] left;
+    private int[] right;
+    private int[] priority;
+    // the length of the line of the node
+    private int[] lineLength;
+    // the number and the total length of the lines of the subtree of the node
+    private int[] size;
+    private int[] sum;
+    private int root;
+    // the next node never used, and the removed nodes, linked by left
+    private int nodeCount;
+    private int free;
+    private int lineCount;
+    private int length;
+    // the two trees split returns
+    private int splitLeft;
+    private int splitRight;
+
+    public LineIndex(CharSequence text) {
+        random = new SplittableRandom();
+        int capacity = 16;
+        left = new int[capacity];
+        right = new int[capacity];
+        priority = new int[capacity];
+        lineLength = new int[capacity];
+        size = new int[capacity];
+        sum = new int[capacity];
+        nodeCount = 1;
+        // the lines are added from last to first, each becoming the first line
+        int lineEnd = text.length();
+        for (int i = text.length() - 1; i >= 0; i--) {
+            if (text.charAt(i) == '\n') {
+                root = merge(newNode(lineEnd - i - 1), root);
+                lineEnd = i + 1;
+            }
+        }
+        root = merge(newNode(lineEnd), root);
+        lineCount = size[root];
+        length = text.length();
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the offset of the first character of the line
+     */
+    public int lineStart(int line) {
+        int remaining = Math.max(0, Math.min(line, lineCount));
+        int start = 0;
+        int node = root;
+        while (node != none && remaining > 0) {
+            int leftSize = size[left[node]];
+            if (remaining <= leftSize) {
+                node = left[node];
+            } else {
+                start += sum[left[node]] + lineLength[node];
+                remaining -= leftSize + 1;
+                node = right[node];
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @return the line of the offset, the last line for the end of the text
+     */
+    public int lineOf(int offset) {
+        // the number of lines ending at or before offset, found down the tree
+        int line = 0;
+        int remaining = offset;
+        int node = root;
+        while (node != none) {
+            int leftSum = sum[left[node]];
+            if (remaining < leftSum) {
+                node = left[node];
+            } else if (remaining < leftSum + lineLength[node]) {
+                line += size[left[node]];
+                break;
+            } else {
+                remaining -= leftSum + lineLength[node];
+                line += size[left[node]] + 1;
+                node = right[node];
+            }
+        }
+        return Math.min(line, lineCount - 1);
+    }
+
+    public int columnOf(int offset) {
+        return offset - lineStart(lineOf(offset));
+    }
+
+    /**
+     * @return the offset of the column of the line, the end of the line if the
+     * line is shorter, the end of the text after the last line
+     */
+    public int offsetOf(int line, int column) {
+        if (line >= lineCount) {
+            return length;
+        }
+        int start = lineStart(line);
+        int lineEnd = start + lengthOf(line) - (line == lineCount - 1 ? 0 : 1);
+        return Math.min(start + Math.max(0, column), lineEnd);
+    }
+
+    /**
+     * Updates the index after the text was inserted at offset
+     */
+    public void insert(int offset, CharSequence text) {
+        int line = lineOf(offset);
+        int firstBreak = indexOf(text, '\n');
+        length += text.length();
+        if (firstBreak < 0) {
+            add(line, text.length());
+            return;
+        }
+        // the line is split at the offset, with the lines of the text in between
+        int column = offset - lineStart(line);
+        int rest = lengthOf(line) - column;
+        add(line, firstBreak + 1 - rest);
+        int inserted = none;
+        int lineStart = firstBreak + 1;
+        for (int i = lineStart; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                inserted = merge(inserted, newNode(i + 1 - lineStart));
+                lineStart = i + 1;
+            }
+        }
+        inserted = merge(inserted, newNode(text.length() - lineStart + rest));
+        lineCount += size[inserted];
+        split(root, line + 1);
+        root = merge(merge(splitLeft, inserted), splitRight);
+    }
+
+    /**
+     * Updates the index after count characters were removed at offset
+     */
+    public void remove(int offset, int count) {
+        count = Math.min(count, length - offset);
+        if (count <= 0) {
+            return;
+        }
+        int first = lineOf(offset);
+        int last = lineOf(offset + count);
+        length -= count;
+        if (first == last) {
+            add(first, -count);
+            return;
+        }
+        // the lines from first to last are joined into the first one
+        int joined = offset - lineStart(first) + lineStart(last) + lengthOf(last) - offset - count;
+        add(first, joined - lengthOf(first));
+        split(root, first + 1);
+        int before = splitLeft;
+        split(splitRight, last - first);
+        release(splitLeft);
+        root = merge(before, splitRight);
+        lineCount -= last - first;
+    }
+
+    /**
+     * @return the length of the line, with its line break
+     */
+    private int lengthOf(int line) {
+        int node = root;
+        int remaining = line;
+        while (true) {
+            int leftSize = size[left[node]];
+            if (remaining < leftSize) {
+                node = left[node];
+            } else if (remaining == leftSize) {
+                return lineLength[node];
+            } else {
+                remaining -= leftSize + 1;
+                node = right[node];
+            }
+        }
+    }
+
+    /**
+     * Adds delta to the length of the line and to the sums of the subtrees
+     * containing it, on the way down to it
+     */
+    private void add(int line, int delta) {
+        int node = root;
+        int remaining = line;
+        while (true) {
+            sum[node] += delta;
+            int leftSize = size[left[node]];
+            if (remaining < leftSize) {
+                node = left[node];
+            } else if (remaining == leftSize) {
+                lineLength[node] += delta;
+                return;
+            } else {
+                remaining -= leftSize + 1;
+                node = right[node];
+            }
+        }
+    }
+
+    /**
+     * Splits the tree into its first count lines, in splitLeft, and the others,
+     * in splitRight
+     */
+    private void split(int node, int count) {
+        if (node == none) {
+            splitLeft = none;
+            splitRight = none;
+        } else if (size[left[node]] < count) {
+            split(right[node], count - size[left[node]] - 1);
+            right[node] = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            split(left[node], count);
+            left[node] = splitRight;
+            update(node);
+            splitRight = node;
+        }
+    }
+
+    /**
+     * @return the tree of the lines of a followed by the lines of b
+     */
+    private int merge(int a, int b) {
+        if (a == none) {
+            return b;
+        } else if (b == none) {
+            return a;
+        } else if (priority[a] > priority[b]) {
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        } else {
+            left[b] = merge(a, left[b]);
+            update(b);
+            return b;
+        }
+    }
+
+    private void update(int node) {
+        size[node] = size[left[node]] + size[right[node]] + 1;
+        sum[node] = sum[left[node]] + sum[right[node]] + lineLength[node];
+    }
+
+    private int newNode(int length) {
+        int node = free;
+        if (node != none) {
+            free = left[node];
+        } else {
+            if (nodeCount == left.length) {
+                grow();
+            }
+            node = nodeCount++;
+        }
+        left[node] = none;
+        right[node] = none;
+        priority[node] = random.nextInt();
+        lineLength[node] = length;
+        size[node] = 1;
+        sum[node] = length;
+        return node;
+    }
+
+    /**
+     * Adds the nodes of the tree to the free nodes
+     */
+    private void release(int node) {
+        if (node == none) {
+            return;
+        }
+        release(right[node]);
+        int leftChild = left[node];
+        left[node] = free;
+        free = node;
+        release(leftChild);
+    }
+
+    private void grow() {
+        int capacity = left.length * 2;
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        priority = Arrays.copyOf(priority, capacity);
+        lineLength = Arrays.copyOf(lineLength, capacity);
+        size = Arrays.copyOf(size, capacity);
+        sum = Arrays.copyOf(sum, capacity);
+    }
+
+    private static int indexOf(CharSequence text, char c) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,118 @@
+package handlers;
+
+/**
+ * The part of a document a client has loaded when it opened the document in
+ * partial mode: the text from start to end, exclusive, in offsets of the whole
+ * document. The server keeps the window of each such client (see
+ * server.Viewport) and sends it only the changes of the document, and both
+ * move the window with each change by the same rule (see move), the client
+ * also applying the changes to its text (see apply). An insert at the start of
+ * the window or in it is part of the window, one before it moves it.
+ * <p>
+ * Not thread safe.
+ */
+public class TextWindow {
+    private int start;
+    private int end;
+
+    /**
+     * @param start the start of the loaded text
+     * @param end   the end of the loaded text, exclusive
+     */
+    public TextWindow(int start, int end) {
+        this.start = start;
+        this.end = Math.max(start, end);
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Extends the window with the text from from to to, if it starts in the
+     * window or right after it
+     * @return false if the text is not next to the window, which is unchanged
+     */
+    public boolean extend(int from, int to) {
+        if (from < start || from > end) {
+            return false;
+        }
+        end = Math.max(end, to);
+        return true;
+    }
+
+    /**
+     * Moves the window according to an edit of the document.
+     * @param position       the position of the edit
+     * @param length         the length of the edit, negative for a remove
+     * @param documentLength the length of the document after the edit
+     * @return true if the edit changed the text of the window
+     */
+    public boolean move(int position, int length, int documentLength) {
+        int lengthBefore = documentLength - length;
+        boolean affected;
+        if (length >= 0) {
+            // an insert at the end of the window is part of it only when the
+            // window is the end of the document
+            affected = (position >= start && position < end)
+                    || (position == end && end >= lengthBefore);
+            if (affected) {
+                end += length;
+            } else if (position < start) {
+                start += length;
+                end += length;
+            }
+        } else {
+            int removeEnd = position - length;
+            affected = position < end && removeEnd > start;
+            int removedBefore = Math.max(0, Math.min(removeEnd, start) - position);
+            int removedInside = affected
+                    ? Math.min(removeEnd, end) - Math.max(position, start) : 0;
+            start -= removedBefore;
+            end -= removedBefore + removedInside;
+        }
+        end = Math.min(end, documentLength);
+        start = Math.min(start, end);
+        return affected;
+    }
+
+    /**
+     * Applies an edit of the document to the text of the window and moves the
+     * window (see move)
+     * @param text     the text of the window, edited in place
+     * @param inserted the text of an insert, only read when the insert is in
+     *                 the window
+     * @return true if the edit changed the text of the window
+     * @throws IllegalArgumentException if the text is not as long as the
+     * window, or the text of an insert in the window is missing or not as long
+     * as the insert; the window and the text are left as they were
+     */
+    public boolean apply(StringBuilder text, int position, int length, String inserted,
+                         int documentLength) {
+        int startBefore = start;
+        int endBefore = end;
+        if (text.length() != endBefore - startBefore) {
+            throw new IllegalArgumentException("The text is not the text of the window");
+        }
+        if (!move(position, length, documentLength)) {
+            return false;
+        }
+        if (length > 0) {
+            if (inserted == null || inserted.length() != length) {
+                start = startBefore;
+                end = endBefore;
+                throw new IllegalArgumentException("The text of the insert is missing");
+            }
+            text.insert(position - startBefore, inserted);
+        } else if (length < 0) {
+            text.delete(Math.max(position, startBefore) - startBefore,
+                    Math.min(position - length, endBefore) - startBefore);
+        }
+        text.setLength(end - start);
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+package loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples (in nanoseconds) from many threads and computes
+ * percentiles once the run is over.
+ */
+public class LatencyRecorder {
+    private long[] samples;
+    private int size;
+
+    public LatencyRecorder() {
+        samples = new long[1024];
+        size = 0;
+    }
+
+    /**
+     * Adds a sample
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        if (size == samples.length) {
+            samples = Arrays.copyOf(samples, size * 2);
+        }
+        samples[size++] = nanos;
+    }
+
+    public synchronized int getCount() {
+        return size;
+    }
+
+    /**
+     * @param percentile a number between 0 and 100
+     * @return the latency in milliseconds under which the given percentage of
+     * the samples fall, or 0 if there are no samples
+     */
+    public synchronized double getPercentileMillis(double percentile) {
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+        index = Math.max(0, Math.min(size - 1, index));
+        return sorted[index] / 1_000_000.0;
+    }
+
+    /**
+     * @return "count=.. p50=.. p90=.. p99=.. max=.." with the latencies in milliseconds
+     */
+    public String summary() {
+        return String.format("count=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                getCount(), getPercentileMillis(50), getPercentileMillis(90),
+                getPercentileMillis(99), getPercentileMillis(100));
+    }
+}
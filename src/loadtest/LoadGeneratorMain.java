@@ -0,0 +1,327 @@
+package loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import server.ServerMain;
+
+/**
+ * Headless load generator. Opens one socket per simulated editor to a running
+ * server (or to a server started in this process with --local), spreads the
+ * editors over a number of documents and makes every editor type its trace at
+ * the given rate. When the run is over it waits for the traffic to settle,
+ * checks that every editor converged to the text the server has, and prints
+ * the throughput, the latency percentiles and the number of diverged editors.
+ * <p>
+ * Usage: LoadGeneratorMain [--host localhost] [--port 4444] [--local]
+ * [--clients 10] [--documents 2] [--rate 5] [--duration 30] [--trace file]
+ * [--seed 1] [--prefix load] [--compress]
+ * <p>
+ * --rate is the number of edits per second per editor, --duration is in
+ * seconds, --trace replays a recorded trace (see TypingTrace) instead of the
+ * synthetic typing, --compress makes the editors negotiate compression.
+ * <p>
+ * Against a cluster, --host and --port are any of its nodes: the documents are
+ * created where the node redirects to, and every editor connects to the node
+ * owning its document.
+ */
+public class LoadGeneratorMain {
+    private static final long connectTimeoutMillis = 10000;
+    private static final long settleMillis = 1000;
+    private static final long maxSettleMillis = 30000;
+    private static final long heartbeatIntervalMillis = 10000;
+
+    private String host = "localhost";
+    private int port = 4444;
+    private boolean local = false;
+    private boolean compress = false;
+    private int clients = 10;
+    private int documents = 2;
+    private double rate = 5;
+    private int duration = 30;
+    private String tracePath = null;
+    private long seed = 1;
+    private String prefix = "load";
+
+    public static void main(String[] args) {
+        LoadGeneratorMain generator = new LoadGeneratorMain();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGeneratorMain [--host localhost] [--port 4444] [--local]"
+                    + " [--clients 10] [--documents 2] [--rate 5] [--duration 30]"
+                    + " [--trace file] [--seed 1] [--prefix load] [--compress]");
+            System.exit(2);
+        }
+        try {
+            boolean converged = generator.run();
+            System.exit(converged ? 0 : 1);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--local")) {
+                local = true;
+                continue;
+            }
+            if (option.equals("--compress")) {
+                compress = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--host":
+                        host = value;
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--clients":
+                        clients = Integer.parseInt(value);
+                        break;
+                    case "--documents":
+                        documents = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(value);
+                        break;
+                    case "--duration":
+                        duration = Integer.parseInt(value);
+                        break;
+                    case "--trace":
+                        tracePath = value;
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--prefix":
+                        prefix = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+            }
+        }
+        if (clients < 1 || documents < 1 || rate <= 0 || duration < 1) {
+            throw new IllegalArgumentException("clients, documents, rate and duration must be positive");
+        }
+        if (!prefix.matches("[\\w\\d]+")) {
+            throw new IllegalArgumentException("The prefix must only contain letters and digits");
+        }
+    }
+
+    /**
+     * Runs the load and prints the report
+     * @return true if every editor converged to the server's text
+     */
+    private boolean run() throws IOException, InterruptedException {
+        if (local) {
+            Thread serverThread = new Thread(() -> ServerMain.runServer(port), "server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            waitForServer();
+        }
+        List<String> documentNames = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            documentNames.add(prefix + "doc" + i);
+        }
+        Map<String, String> owners = createDocuments(documentNames);
+
+        Map<String, Long> sentTimes = new ConcurrentHashMap<>();
+        LatencyRecorder ackLatency = new LatencyRecorder();
+        List<SimulatedEditor> editors = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            TypingTrace trace = tracePath == null ? TypingTrace.synthetic(seed + i)
+                    : TypingTrace.load(tracePath, seed + i);
+            String documentName = documentNames.get(i % documents);
+            String owner = owners.get(documentName);
+            SimulatedEditor editor = new SimulatedEditor(owner.substring(0, owner.lastIndexOf(':')),
+                    Integer.parseInt(owner.substring(owner.lastIndexOf(':') + 1)), prefix + i,
+                    documentName, trace, sentTimes, ackLatency);
+            if (compress) {
+                editor.requestCompression();
+            }
+            editor.connect(connectTimeoutMillis);
+            editors.add(editor);
+        }
+        System.out.println("Connected " + clients + " editors to " + documents + " documents");
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+        heartbeats.scheduleAtFixedRate(() -> editors.forEach(SimulatedEditor::ping),
+                heartbeatIntervalMillis, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.min(clients, Runtime.getRuntime().availableProcessors()));
+        long periodMicros = Math.max(1, (long) (1_000_000 / rate));
+        long start = System.nanoTime();
+        for (int i = 0; i < editors.size(); i++) {
+            SimulatedEditor editor = editors.get(i);
+            // spread the editors over the period so they don't all type at once
+            scheduler.scheduleAtFixedRate(editor::step, periodMicros * i / editors.size(),
+                    periodMicros, TimeUnit.MICROSECONDS);
+        }
+        Thread.sleep(duration * 1000L);
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        waitForSettle(editors);
+
+        int diverged = checkConvergence(editors, documentNames);
+
+        heartbeats.shutdownNow();
+        LatencyRecorder propagationLatency = new LatencyRecorder();
+        long sent = 0, acknowledged = 0, errors = 0, received = 0, unanswered = 0;
+        for (SimulatedEditor editor : editors) {
+            editor.recordPropagation(propagationLatency);
+            sent += editor.getSentCount();
+            acknowledged += editor.getAcknowledgedCount();
+            errors += editor.getErrorCount();
+            received += editor.getReceivedCount();
+            unanswered += editor.getPendingCount();
+            editor.disconnect();
+        }
+        System.out.println(String.format("Duration: %.1fs", seconds));
+        System.out.println("Edits sent: " + sent + ", applied: " + acknowledged
+                + ", rejected: " + errors + ", unanswered: " + unanswered);
+        System.out.println(String.format("Throughput: %.1f edits/s applied, %.1f change messages/s delivered",
+                acknowledged / seconds, (acknowledged + received) / seconds));
+        System.out.println("Acknowledgement latency: " + ackLatency.summary());
+        System.out.println("Propagation latency: " + propagationLatency.summary());
+        System.out.println("Diverged editors: " + diverged + " of " + clients);
+        return diverged == 0;
+    }
+
+    private void waitForServer() throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + connectTimeoutMillis;
+        while (true) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Creates the documents. Documents that already exist are reused.
+     * @return maps each document to the node, host:port, it is on
+     */
+    private Map<String, String> createDocuments(List<String> documentNames) throws IOException {
+        Map<String, String> owners = new HashMap<>();
+        for (String documentName : documentNames) {
+            String[] answer = request("new " + documentName);
+            String reply = answer[1];
+            if (reply == null || !(reply.equals("new " + documentName)
+                    || reply.startsWith("Error: Document already exists"))) {
+                throw new IOException("Could not create " + documentName + ": " + reply);
+            }
+            owners.put(documentName, answer[0]);
+        }
+        return owners;
+    }
+
+    /**
+     * Sends a request over a fresh connection and reads the answer, following a
+     * redirect to another node of a cluster.
+     * @return the node that answered, host:port, and its answer
+     */
+    private String[] request(String message) throws IOException {
+        String node = host + ":" + port;
+        for (int hops = 0; hops < 2; hops++) {
+            String reply;
+            try (Socket socket = new Socket(node.substring(0, node.lastIndexOf(':')),
+                    Integer.parseInt(node.substring(node.lastIndexOf(':') + 1)));
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                out.println(message);
+                reply = in.readLine();
+                out.println("bye");
+            }
+            if (reply == null || !reply.startsWith("redirect ")) {
+                return new String[]{node, reply};
+            }
+            String[] tokens = reply.split(" ", 4);
+            node = tokens[1] + ":" + tokens[2];
+        }
+        throw new IOException("Redirected more than once: " + message);
+    }
+
+    /**
+     * Waits until every change has been answered and no message arrived for a
+     * while, or gives up after maxSettleMillis.
+     */
+    private void waitForSettle(List<SimulatedEditor> editors) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxSettleMillis;
+        while (System.currentTimeMillis() < deadline) {
+            boolean settled = true;
+            long now = System.nanoTime();
+            for (SimulatedEditor editor : editors) {
+                if (editor.getPendingCount() > 0
+                        || now - editor.getLastMessageTime() < settleMillis * 1_000_000) {
+                    settled = false;
+                    break;
+                }
+            }
+            if (settled) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        System.out.println("Traffic did not settle within " + maxSettleMillis + "ms");
+    }
+
+    /**
+     * Opens every document over fresh connections and compares the server's text
+     * and version with every editor's copy.
+     * @return the number of editors whose copy differs from the server's
+     */
+    private int checkConvergence(List<SimulatedEditor> editors, List<String> documentNames)
+            throws IOException {
+        int diverged = 0;
+        for (String documentName : documentNames) {
+            String reply = request("open " + documentName)[1];
+            if (reply == null || !reply.startsWith("open ")) {
+                throw new IOException("Could not open " + documentName + ": " + reply);
+            }
+            String[] tokens = reply.split(" ", 4);
+            int version = Integer.parseInt(tokens[2]);
+            String text = tokens.length > 3 ? handlers.Encoding.decode(tokens[3]) : "";
+            for (SimulatedEditor editor : editors) {
+                if (editor.getDocumentName().equals(documentName)
+                        && (editor.getVersion() != version || !editor.getText().equals(text))) {
+                    diverged++;
+                    System.out.println("Diverged: " + editor.getUsername() + " has version "
+                            + editor.getVersion() + ", server has " + version
+                            + " of " + documentName);
+                }
+            }
+        }
+        return diverged;
+    }
+}
@@ -0,0 +1,292 @@
+package loadtest;
+
+import handlers.Compression;
+import handlers.Encoding;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A headless client that speaks the editor protocol over its own socket. It
+ * names itself, opens one document and then types the edits of its
+ * TypingTrace whenever step() is called. A reader thread keeps the editor's copy
+ * of the document up to date with the change messages of the server, the same
+ * way the Swing client does, and records the latencies:
+ * - acknowledgement latency: from sending a change to receiving its echo
+ * - propagation latency: from sending a change to another editor receiving it.
+ * The sending editor only learns the version of its change from the echo, so the
+ * receipts are kept and matched against the send times after the run.
+ */
+public class SimulatedEditor extends Thread {
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String documentName;
+    private final TypingTrace trace;
+    private final Map<String, Long> sentTimes;
+    private final LatencyRecorder ackLatency;
+    private final List<String> receiptKeys;
+    private final List<Long> receiptTimes;
+    private final ConcurrentLinkedQueue<Long> pendingChanges;
+    private final CountDownLatch opened;
+    private final AtomicLong sent;
+    private final AtomicLong acknowledged;
+    private final AtomicLong errors;
+    private final AtomicLong received;
+    private Socket socket;
+    private PrintWriter out;
+    private String text;
+    private int version;
+    private volatile long lastMessageTime;
+    private Compression compression;
+    private volatile boolean compressOutgoing;
+
+    /**
+     * @param sentTimes          shared by all editors: maps "document/user/version" to the
+     *                           time the change with that version was sent
+     * @param ackLatency         where to record the acknowledgement latencies
+     */
+    public SimulatedEditor(String host, int port, String username, String documentName,
+                           TypingTrace trace, Map<String, Long> sentTimes,
+                           LatencyRecorder ackLatency) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.documentName = documentName;
+        this.trace = trace;
+        this.sentTimes = sentTimes;
+        this.ackLatency = ackLatency;
+        this.receiptKeys = new ArrayList<>();
+        this.receiptTimes = new ArrayList<>();
+        this.pendingChanges = new ConcurrentLinkedQueue<>();
+        this.opened = new CountDownLatch(1);
+        this.sent = new AtomicLong();
+        this.acknowledged = new AtomicLong();
+        this.errors = new AtomicLong();
+        this.received = new AtomicLong();
+        this.text = "";
+        this.version = 0;
+        setDaemon(true);
+        setName("editor-" + username);
+    }
+
+    /**
+     * Makes the editor ask the server for compression when it connects
+     */
+    public void requestCompression() {
+        compression = new Compression();
+    }
+
+    /**
+     * Connects, names the editor and opens its document.
+     * @param timeoutMillis how long to wait for the document to be opened
+     * @throws IOException if the connection fails or the document isn't opened in time
+     */
+    public void connect(long timeoutMillis) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new PrintWriter(socket.getOutputStream(), true);
+        start();
+        if (compression != null) {
+            send("compress " + Compression.name);
+        }
+        send("name " + username);
+        send("open " + documentName);
+        try {
+            if (!opened.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException(username + " could not open " + documentName);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the server messages until the connection is closed.
+     */
+    public void run() {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream()))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                handleMessage(compression == null ? line : compression.decompress(line));
+            }
+        } catch (IOException e) {
+            // the connection was closed
+        } finally {
+            if (compression != null) {
+                // nothing reads the connection anymore, and what is still sent
+                // is lost anyway
+                synchronized (out) {
+                    compressOutgoing = false;
+                }
+                compression.end();
+            }
+        }
+    }
+
+    private void handleMessage(String line) {
+        long now = System.nanoTime();
+        lastMessageTime = now;
+        String[] tokens = line.split(" ", 7);
+        switch (tokens[0]) {
+            case "open":
+                // open DocumentName Version DocumentText
+                if (tokens[1].equals(documentName)) {
+                    String[] openTokens = line.split(" ", 4);
+                    synchronized (this) {
+                        version = Integer.parseInt(openTokens[2]);
+                        text = openTokens.length > 3 ? Encoding.decode(openTokens[3]) : "";
+                    }
+                    opened.countDown();
+                }
+                break;
+            case "change": {
+                // change DocumentName Username Version Position Length DocumentText
+                if (!tokens[1].equals(documentName)) {
+                    break;
+                }
+                int changeVersion = Integer.parseInt(tokens[3]);
+                String key = documentName + "/" + tokens[2] + "/" + changeVersion;
+                if (tokens[2].equals(username)) {
+                    Long sentTime = pendingChanges.poll();
+                    if (sentTime != null) {
+                        ackLatency.record(now - sentTime);
+                        sentTimes.put(key, sentTime);
+                    }
+                    acknowledged.incrementAndGet();
+                } else {
+                    received.incrementAndGet();
+                    synchronized (receiptKeys) {
+                        receiptKeys.add(key);
+                        receiptTimes.add(now);
+                    }
+                }
+                synchronized (this) {
+                    if (changeVersion >= version) {
+                        version = changeVersion;
+                        text = tokens.length > 6 ? Encoding.decode(tokens[6]) : "";
+                    }
+                }
+                break;
+            }
+            case "compress":
+                compressOutgoing = tokens[1].equals(Compression.name);
+                break;
+            case "Error:":
+                if (pendingChanges.poll() != null) {
+                    errors.incrementAndGet();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Types the next edit of the trace
+     */
+    public void step() {
+        String edit;
+        int currentVersion;
+        synchronized (this) {
+            edit = trace.nextEdit(text.length());
+            currentVersion = version;
+        }
+        pendingChanges.add(System.nanoTime());
+        sent.incrementAndGet();
+        send("change " + documentName + " " + username + " " + currentVersion + " " + edit);
+    }
+
+    /**
+     * Sends a heartbeat so that the server doesn't evict an idle editor
+     */
+    public void ping() {
+        send("ping");
+    }
+
+    private void send(String message) {
+        synchronized (out) {
+            out.println(compressOutgoing ? compression.compress(message) : message);
+        }
+    }
+
+    /**
+     * Says bye to the server and closes the socket
+     */
+    public void disconnect() {
+        try {
+            send("bye");
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Records the propagation latency of every change received from another editor
+     * whose send time is known.
+     * @param recorder where to record the latencies
+     */
+    public void recordPropagation(LatencyRecorder recorder) {
+        synchronized (receiptKeys) {
+            for (int i = 0; i < receiptKeys.size(); i++) {
+                Long sentTime = sentTimes.get(receiptKeys.get(i));
+                if (sentTime != null) {
+                    recorder.record(receiptTimes.get(i) - sentTime);
+                }
+            }
+        }
+    }
+
+    /** @return the number of changes sent that are not answered yet */
+    public int getPendingCount() {
+        return pendingChanges.size();
+    }
+
+    /** @return the System.nanoTime of the last message received */
+    public long getLastMessageTime() {
+        return lastMessageTime;
+    }
+
+    public synchronized String getText() {
+        return text;
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getAcknowledgedCount() {
+        return acknowledged.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+}
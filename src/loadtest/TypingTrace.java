@@ -0,0 +1,110 @@
+package loadtest;
+
+import handlers.Encoding;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A sequence of edits that a simulated editor types into its document.
+ * An edit is either "insert EncodedText Position" or "remove Position Position",
+ * i.e. the end of a change request of the client protocol. A trace is either
+ * loaded from a recorded file (one edit per line) or synthesized: mostly one
+ * character inserts near a moving cursor, with occasional backspaces and
+ * line breaks.
+ */
+public class TypingTrace {
+    private final List<String> edits;
+    private final Random random;
+    private int next;
+    private int cursor;
+
+    private TypingTrace(List<String> edits, long seed) {
+        this.edits = edits;
+        this.random = new Random(seed);
+        this.next = 0;
+        this.cursor = -1;
+    }
+
+    /**
+     * Creates a synthetic trace
+     * @param seed the seed of the random generator, so runs are reproducible
+     */
+    public static TypingTrace synthetic(long seed) {
+        return new TypingTrace(null, seed);
+    }
+
+    /**
+     * Loads a recorded trace. Blank lines and lines starting with # are ignored.
+     * @param path the file containing one edit per line
+     * @throws IOException if the file can't be read or contains an invalid edit
+     */
+    public static TypingTrace load(String path, long seed) throws IOException {
+        List<String> edits = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (!line.matches("(insert \\S+ \\d+)|(remove \\d+ \\d+)")) {
+                    throw new IOException("Invalid edit in trace: " + line);
+                }
+                edits.add(line);
+            }
+        }
+        if (edits.isEmpty()) {
+            throw new IOException("Trace is empty: " + path);
+        }
+        return new TypingTrace(edits, seed);
+    }
+
+    /**
+     * Returns the next edit to make on a document of the given length. Positions
+     * of recorded edits are clamped to the document, and a recorded trace starts
+     * over once it has been fully replayed.
+     * @param documentLength the length of the editor's current copy of the document
+     * @return the edit, "insert EncodedText Position" or "remove Position Position"
+     */
+    public String nextEdit(int documentLength) {
+        if (edits != null) {
+            String[] tokens = edits.get(next).split(" ");
+            next = (next + 1) % edits.size();
+            if (tokens[0].equals("insert")) {
+                int offset = Math.min(Integer.parseInt(tokens[2]), documentLength);
+                return "insert " + tokens[1] + " " + offset;
+            }
+            int end = Math.min(Integer.parseInt(tokens[2]), documentLength);
+            int offset = Math.min(Integer.parseInt(tokens[1]), end);
+            if (offset == end) {
+                // nothing left to remove there, type instead
+                return "insert " + Encoding.encode("x") + " " + offset;
+            }
+            return "remove " + offset + " " + end;
+        }
+        if (cursor < 0 || cursor > documentLength || random.nextInt(50) == 0) {
+            // jump somewhere else in the document
+            cursor = documentLength == 0 ? 0 : random.nextInt(documentLength + 1);
+        }
+        int dice = random.nextInt(100);
+        if (dice < 10 && cursor > 0) {
+            cursor--;
+            return "remove " + cursor + " " + (cursor + 1);
+        }
+        String text;
+        if (dice < 12) {
+            text = "\n";
+        } else if (dice < 25) {
+            text = " ";
+        } else {
+            text = String.valueOf((char) ('a' + random.nextInt(26)));
+        }
+        int offset = cursor;
+        cursor++;
+        return "insert " + Encoding.encode(text) + " " + offset;
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The change messages of one document waiting to be sent to its subscribers.
+ * <p>
+ * The messages are made and queued on the shard of the document as each change
+ * is applied (see Server.broadcastChange), so they are queued in the order of
+ * the versions, each with the text of its version. They are sent afterwards by
+ * the thread that applied the change, out of the shard, so a slow client
+ * never holds up the shard. Only one thread sends at a time, in the
+ * order of the queue: a thread finding another one sending leaves its messages
+ * to it, so each client gets the changes of the document in order.
+ */
+public class ChangeOutbox {
+    private final Queue<Delivery> deliveries;
+    private final ReentrantLock sending;
+
+    private static class Delivery {
+        final ClientConnectionThread connection;
+        final EncodedMessage message;
+
+        Delivery(ClientConnectionThread connection, EncodedMessage message) {
+            this.connection = connection;
+            this.message = message;
+        }
+    }
+
+    public ChangeOutbox() {
+        deliveries = new ConcurrentLinkedQueue<>();
+        sending = new ReentrantLock();
+    }
+
+    /**
+     * Queues a message for a connection. Called on the shard of the document.
+     */
+    public void add(ClientConnectionThread connection, EncodedMessage message) {
+        deliveries.add(new Delivery(connection, message));
+    }
+
+    /**
+     * Sends the queued messages, unless another thread is sending them. A
+     * connection a message can't be written to is dead and gets evicted.
+     */
+    public void flush(Server server) {
+        // checked again after sending, for the messages queued by a thread that
+        // found this one sending
+        while (!deliveries.isEmpty() && sending.tryLock()) {
+            try {
+                for (Delivery d = deliveries.poll(); d != null; d = deliveries.poll()) {
+                    if (!d.connection.sendMessage(d.message)) {
+                        server.evict(d.connection);
+                    }
+                }
+            } finally {
+                sending.unlock();
+            }
+        }
+    }
+}
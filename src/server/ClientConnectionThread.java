@@ -1,14 +1,21 @@
 package server;
 
+import handlers.Compression;
 import handlers.Edit;
 import handlers.Edit.Type;
 import handlers.Encoding;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The ClientConnectionThread takes care of making a new thread that handles one client
@@ -18,10 +25,19 @@ import java.net.Socket;
  */
 public class ClientConnectionThread extends Thread {
     final Socket socket;
-    private boolean alive;
-    private String username;
+    private final int connectionId;
+    private volatile boolean alive;
+    private volatile long lastActivity;
+    private OutputStream out;
+    private volatile Compression compression;
+    private volatile Viewport viewport;
+    private volatile String openDocument;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile String username;
+    private volatile Session session;
     private final Server server;
-    private final String regex = "(bye)|(new [\\w\\d]+)|(look)|(open [\\w\\d]+)|(change .+)|(name [\\w\\d]+)";
+    // numbers have at most 9 digits, so that they fit in an int
+    private final String regex = "(bye)|(new [\\w\\d]+)|(look( local)?)|(open [\\w\\d]+( stream| partial( \\d{1,9})?)?)|(range [\\w\\d]+ \\d{1,9} \\d{1,9})|(cursor [\\w\\d]+ \\d{1,9} \\d{1,9})|(change .+)|(name [\\w\\d]+)|(ping)|(compress [\\w\\d]+)|(follow( [\\w\\d]+)?)|(lag)|(promote)|(undo [\\w\\d]+)|(redo [\\w\\d]+)|(history [\\w\\d]+ \\d{1,9})|(search \\S+)|(list( local)? \\d{1,9}( ([\\w\\d]+|-)( [\\w\\d]+)?)?)|(lines [\\w\\d]+ \\d{1,9} \\d{1,9})|(throttled)|(resume [0-9a-f]+( [\\w\\d]+ \\d{1,9} \\d{1,9}( \\d{1,9})?)?)|(resync [\\w\\d]+ \\d{1,9} \\d{1,9}( \\d{1,9})?)";
     private final String error1 = "Error: Document already exists.";
     private final String error2 = "Error: No such document.";
     private final String error3 = "Error: No documents exist.";
@@ -29,11 +45,27 @@ public class ClientConnectionThread extends Thread {
     private final String error5 = "Error: You must enter a name when creating a new document.";
     private final String error6 = "Error: Invalid arguments";
     private final String error7 = "Error: Username is not available";
+    private final String error8 = "Error: Nothing to undo.";
+    private final String error9 = "Error: Nothing to redo.";
+    private final String error10 = "Error: The change was overwritten by later changes.";
+    private final String error11 = "Error: No such version.";
+    private final String error12 = "Error: Search for at least 3 characters.";
+    private final String error13 = "Error: Session expired.";
+    private static final int streamChunkSize = 16384;
+    private static final int partialWindowSize = 65536;
+    private static final int maxSearchOffsets = 100;
+    private static final int maxPageSize = 1000;
+    private static final int minDiffLength = 1024;
+    private static final int maxDiffDistance = 512;
+    // about the length of the openbegin, chunk and openend lines of a snapshot
+    private static final int snapshotOverhead = 64;
 
     public ClientConnectionThread(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
+        this.connectionId = server.nextConnectionId();
         this.alive = true;
+        this.lastActivity = System.currentTimeMillis();
     }
 
     /**
@@ -43,55 +75,236 @@ public class ClientConnectionThread extends Thread {
     public void run() {
         try {
             handleConnection(socket);
+        } catch (SocketTimeoutException e) {
+            System.out.println("Connection " + connectionId + " timed out");
         } catch (IOException e) {
-            e.printStackTrace();
+            if (alive) {
+                e.printStackTrace();
+            }
+        } finally {
+            // whatever the reason the connection ended, free its resources
+            close();
+            server.removeThread(this);
         }
     }
 
     private void handleConnection(Socket socket) throws IOException {
+        // a client that sends nothing, not even a heartbeat, for the idle
+        // timeout is considered dead
+        socket.setSoTimeout(server.getIdleTimeoutMillis());
+        socket.setKeepAlive(true);
         try (BufferedReader in = new BufferedReader(new InputStreamReader(
-                socket.getInputStream())); PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                socket.getInputStream()))) {
+            synchronized (this) {
+                out = new BufferedOutputStream(socket.getOutputStream());
+            }
+            TokenBucket limiter = server.newTokenBucket();
             for (String line = in.readLine(); line != null; line = in
                     .readLine()) {
+                if (limiter != null) {
+                    // a client sending too fast waits, and so does its socket
+                    long waited = limiter.acquire();
+                    if (waited > 0) {
+                        server.recordThrottled(waited);
+                    }
+                }
+                lastActivity = System.currentTimeMillis();
+                if (compression != null) {
+                    try {
+                        line = compression.decompress(line);
+                    } catch (IllegalStateException e) {
+                        // the connection was closed meanwhile
+                        break;
+                    }
+                }
+                server.recordMessage(connectionId, line);
                 String output = handleRequest(line);
                 // If it's the bye message, terminate the connection
                 if (output != null && output.equals("bye")) {
-                    out.close();
-                    in.close();
                     server.removeThread(this);
-
+                    break;
                 }
-                // if it's the change message, return the message to all other
-                // alive clients
-                else if (output != null && output.startsWith("change")) {
-                    server.returnMessageToEveryOtherClient(output, this);
+                if (output != null && output.equals("compress " + Compression.name)
+                        && compression == null) {
+                    // from now on, large lines are compressed both ways, unless
+                    // the connection was closed meanwhile (see close)
+                    synchronized (this) {
+                        if (alive) {
+                            compression = new Compression();
+                        }
+                    }
                 }
                 if (output != null) {
-                    out.println(output);
+                    sendMessage(output);
                 }
             }
         }
     }
 
+    /**
+     * Sends a message to the client of this connection
+     * @param message the message, without the line terminator
+     * @return false if the message could not be written, i.e. the connection is dead
+     */
+    public synchronized boolean sendMessage(String message) {
+        if (out == null || !alive) {
+            return false;
+        }
+        return write(EncodedMessage.encode(compression == null ? message
+                : compression.compress(message)));
+    }
+
+    /**
+     * Sends a message encoded once for many connections. Its bytes are written
+     * as they are, unless the message is compressed for this connection.
+     * @return false if the message could not be written, i.e. the connection is dead
+     */
+    public synchronized boolean sendMessage(EncodedMessage message) {
+        if (out == null || !alive) {
+            return false;
+        }
+        if (compression != null) {
+            String line = compression.compress(message.getText());
+            // lines too short to compress are sent as they are
+            return write(line == message.getText() ? message.getBytes()
+                    : EncodedMessage.encode(line));
+        }
+        return write(message.getBytes());
+    }
+
+    private boolean write(byte[] line) {
+        try {
+            out.write(line);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes the vchange message of a change just applied to the document, if
+     * the client has the document open in partial mode (see
+     * Viewport.toViewportMessage). Called on the shard of the document.
+     * @return the vchange message, or null if the client is sent the change
+     * message with the whole text
+     */
+    public String toViewportMessage(String documentName, String username, int version,
+                                    int offset, int length, Map<Integer, String> insertions) {
+        Viewport v = viewport;
+        if (v == null || !v.getDocumentName().equals(documentName)) {
+            return null;
+        }
+        return v.toViewportMessage(username, version, offset, length, server, insertions);
+    }
+
+    /**
+     * Closes the connection and ends its compression. The thread reading from
+     * it stops and the server forgets the connection.
+     */
+    public void close() {
+        alive = false;
+        if (closed.getAndSet(true)) {
+            return;
+        }
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+        // the senders hold the monitor and check alive first, so none is
+        // compressing once it is taken; the socket is closed so none is stuck
+        // writing with it
+        Compression c;
+        synchronized (this) {
+            c = compression;
+        }
+        if (c != null) {
+            if (c.getCompressedLines() > 0) {
+                System.out.println("Connection " + connectionId + " compression: " + c.summary());
+            }
+            c.end();
+        }
+    }
+
+    /**
+     * @return the time the last message was received, in milliseconds since the epoch
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
 
     /**
      * handler for client input.
-     * Message :== Edit | Open | New | Look| Bye |Name
+     * Message :== Edit | Open | New | Look| Bye |Name | Ping | Compress | Range | Cursor
      * Edit :== change DocumentName Username Version (Remove|Insert)
      * Remove :==remove Position Position
      * Insert :== insert Chars Position
-     * Open:== open DocumentName
+     * Open:== open DocumentName [stream | partial [Position]], partial opens the
+     * text from Position (0 if left out) up to partialWindowSize characters (see
+     * Viewport)
+     * Range :== range DocumentName Position Position
+     * Cursor :== cursor DocumentName Position Position, the caret (dot) and the
+     * other end of the selection (mark) of the user, not answered
      * New :== new DocumentName
-     * Look :== look
+     * Follow :== follow [DocumentName], asked by a follower server, answered
+     * with the stream of applied edits (see ReplicationFeed), or with a new copy
+     * of the document in that stream, for a follower whose copy fell behind
+     * Lag :== lag, answered with "lag Millis", the replication lag of a follower
+     * (-1 if it lost its primary, 0 on a primary)
+     * Promote :== promote, makes a follower a primary accepting changes
+     * Throttled :== throttled, answered with "throttled Messages Millis", the
+     * number of messages of all connections delayed by the rate limit (see
+     * TokenBucket) and the total time they were delayed
+     * Undo :== undo DocumentName, undoes the last change of the user in the
+     * document, even if other users changed the document since. The undo is
+     * broadcast as a change of the user
+     * Redo :== redo DocumentName, redoes the last change undone by the user
+     * History :== history DocumentName Version, answered with
+     * "history DocumentName Version EncodedText", the document at that version
+     * Search :== search EncodedPhrase, answered with
+     * "search EncodedPhrase (DocumentName Offset(,Offset)*)*", the documents of
+     * this server containing the phrase, ignoring case, and where
+     * Look :== look [local], local lists only the documents of this node of a
+     * cluster.
+     * Lines :== lines DocumentName FirstLine LineCount, answered like a range
+     * request with the text of LineCount lines from FirstLine (lines from 0)
+     * In a change, a Position may also be written Line:Column (both from 0), in
+     * the version of the change
+     * List :== list [local] Limit [Prefix [After]], answered with
+     * "page Prefix Next DocumentName*", at most Limit (up to maxPageSize) sorted
+     * names of documents starting with Prefix, after the name After. Next is the
+     * After of the next page, "-" if this is the last page, and "-" stands for
+     * no Prefix (see DocumentNameIndex). In a cluster, new, open, range and change of a document owned by
+     * another node are answered with a redirect (see Cluster)
      * Bye::=="bye"
-     * Name ::== name Username
+     * Name ::== name Username, answered with "name Username SessionToken"
+     * Resume ::== resume SessionToken [DocumentName Version Loaded [Position]],
+     * asked by a client that lost its connection: takes the username of the
+     * session back and, if the client had a document open at Version with
+     * Loaded characters from Position, answered like a resync. "Error: Session expired." if the
+     * session was forgotten (see Session)
+     * Resync ::== resync DocumentName Version Loaded [Position], asked by a
+     * client whose text of the document, at Version with Loaded characters from
+     * Position (0 if left out), fell behind. Answered with
+     * "patch DocumentName Version NewVersion DocumentLength (+Position,EncodedText | -Position,Length)*",
+     * the edits made since, in order, or with
+     * "diff DocumentName Version NewVersion DocumentLength Position Edit*", edits
+     * turning the loaded text into the current one, loaded from Position, or
+     * like an open in partial mode, whichever is shorter (see resyncDocument)
+     * Ping ::== "ping", a heartbeat answered with "pong"
+     * Compress ::== compress Codec, answered with "compress deflate" if the codec
+     * is deflate (after which both sides may send compressed lines, see
+     * Compression) or "compress none"
      * Username ::== Chars
      * Chars:==.+
      * Position :== Int
      * DocumentName :== Chars
      * Chars ::== \\d\\w
-     * Version :== [0-9]+
-     * Int :== [0-9]
+     * Version :== [0-9]{1,9}
+     * Int :== [0-9]{1,9}
      * <p>
      * make requested mutations on documenMap of the server if applicable, then
      * return appropriate message to the user.
@@ -99,7 +312,7 @@ public class ClientConnectionThread extends Thread {
      * @param input the string that is the request coming from the client
      * @return the string that is the returning message to the user
      */
-    private String handleRequest(String input) {
+    String handleRequest(String input) {
         if (!alive) {
             throw new RuntimeException(
                     "Client already disconnected.");
@@ -118,131 +331,312 @@ public class ClientConnectionThread extends Thread {
             }
         } else {
             switch (tokens[0]) {
+                case "ping":
+                    returnMessage = "pong";
+                    break;
+                case "follow":
+                    if (tokens.length > 1) {
+                        // a follower whose copy of the document fell behind
+                        server.resendReplica(this, tokens[1]);
+                    } else {
+                        server.addFeed(new ReplicationFeed(server, this));
+                    }
+                    returnMessage = null;
+                    break;
+                case "lag": {
+                    ReplicaFollower follower = server.getFollower();
+                    returnMessage = "lag " + (follower == null ? 0 : follower.getLagMillis());
+                    break;
+                }
+                case "throttled":
+                    returnMessage = "throttled " + server.getThrottledMessages() + " "
+                            + server.getThrottledMillis();
+                    break;
+                case "promote": {
+                    ReplicaFollower follower = server.getFollower();
+                    if (follower != null) {
+                        follower.promote();
+                    }
+                    returnMessage = "lag 0";
+                    break;
+                }
+                case "compress":
+                    returnMessage = tokens[1].equals(Compression.name)
+                            ? "compress " + Compression.name : "compress none";
+                    break;
                 case "bye":
-                    // 'bye' request
+                    // 'bye' request, the session ends with it
                     alive = false;
+                    if (session != null) {
+                        server.closeSession(session);
+                    }
                     returnMessage = "bye";
                     break;
                 case "new": {
                     // 'new' request, make a new document if the name is valid. else, return a error message.
+                    // checking and creating is done on the shard of the document, so
+                    // two clients can't create the same document
                     String documentName = tokens[1];
-
-                    if (server.getDocumentMap().containsKey(documentName)) {
-                        returnMessage = error1;
-                    } else {
-                        server.addNewDocument(documentName);
-                        returnMessage = "new " + documentName;
+                    returnMessage = redirectIfNotOwned(documentName, input);
+                    if (returnMessage == null) {
+                        returnMessage = redirectIfReadOnly(input);
+                    }
+                    if (returnMessage != null) {
+                        break;
                     }
+                    returnMessage = server.callOnShard(documentName, () -> {
+                        if (server.hasDocument(documentName)) {
+                            return error1;
+                        }
+                        server.addNewDocument(documentName);
+                        server.publishNewDocument(documentName);
+                        server.subscribe(documentName, this);
+                        return "new " + documentName;
+                    });
                     break;
                 }
                 case "name":
-                    if (server.isUsernameAvailable(tokens[1])) {
+                    if (tokens[1].equals(this.username)) {
+                        returnMessage = "name " + tokens[1] + " " + session.getToken();
+                    } else if (server.claimUsername(tokens[1])) {
+                        // a client renaming itself frees its previous name
+                        if (this.username != null) {
+                            server.releaseUsername(this.username);
+                        }
                         this.username = tokens[1];
-                        server.addUsername(tokens[1]);
-                        returnMessage = "name " + tokens[1];
+                        if (session == null) {
+                            session = server.openSession(tokens[1]);
+                        } else {
+                            session.setUsername(tokens[1]);
+                        }
+                        returnMessage = "name " + tokens[1] + " " + session.getToken();
                     } else {
                         returnMessage = error7;
                     }
                     break;
+                case "resume": {
+                    Session resumed = server.getSession(tokens[1]);
+                    if (resumed == null) {
+                        returnMessage = error13;
+                        break;
+                    }
+                    returnMessage = takeOver(resumed);
+                    if (returnMessage == null && tokens.length > 2) {
+                        returnMessage = resyncDocument(tokens[2], Integer.parseInt(tokens[3]),
+                                Integer.parseInt(tokens[4]),
+                                tokens.length > 5 ? Integer.parseInt(tokens[5]) : 0, input);
+                    } else if (returnMessage == null) {
+                        returnMessage = "name " + username + " " + session.getToken();
+                    }
+                    break;
+                }
+                case "resync":
+                    returnMessage = resyncDocument(tokens[1], Integer.parseInt(tokens[2]),
+                            Integer.parseInt(tokens[3]),
+                            tokens.length > 4 ? Integer.parseInt(tokens[4]) : 0, input);
+                    break;
                 case "look":
                     // 'look' request,
                     // if server does not have any documents, return error message
                     // else, return a string of names separated by a space
-                    String result = "alldocs";
-                    if (server.isDocumentMapEmpty()) {
+                    // in a cluster, the documents of every node unless only the
+                    // local ones are asked for
+                    String result = server.getAllDocuments();
+                    Cluster cluster = server.getCluster();
+                    if (cluster != null && tokens.length == 1) {
+                        StringBuilder documents = new StringBuilder(result);
+                        for (String documentName : cluster.lookPeers()) {
+                            documents.append(" ").append(documentName);
+                        }
+                        result = documents.toString();
+                    }
+                    if (result.isEmpty()) {
                         returnMessage = error3;
                     } else {
-                        result = result + server.getAllDocuments();
-                        returnMessage = result;
+                        returnMessage = "alldocs" + result;
                     }
                     break;
+                case "list": {
+                    // 'list' request, a page of the sorted names of the documents
+                    // in a cluster, the pages of every node are merged unless only
+                    // the local documents are asked for
+                    boolean local = tokens[1].equals("local");
+                    int first = local ? 2 : 1;
+                    int limit = Math.max(1, Math.min(maxPageSize, Integer.parseInt(tokens[first])));
+                    String prefix = tokens.length > first + 1 && !tokens[first + 1].equals("-")
+                            ? tokens[first + 1] : "";
+                    String after = tokens.length > first + 2 ? tokens[first + 2] : null;
+                    DocumentNameIndex.Page page = server.listDocuments(prefix, after, limit);
+                    Cluster nodes = server.getCluster();
+                    if (nodes != null && !local) {
+                        List<DocumentNameIndex.Page> pages = new ArrayList<>(nodes.listPeers(input));
+                        pages.add(page);
+                        page = DocumentNameIndex.merge(pages, limit);
+                    }
+                    StringBuilder names = new StringBuilder("page ")
+                            .append(prefix.isEmpty() ? "-" : prefix).append(" ")
+                            .append(page.getNext() == null ? "-" : page.getNext());
+                    for (String documentName : page.getNames()) {
+                        names.append(" ").append(documentName);
+                    }
+                    returnMessage = names.toString();
+                    break;
+                }
                 case "open": {
                     // 'open' request, must open a document if it exists on server
                     String documentName = tokens[1];
-                    if (!server.getDocumentMap().containsKey(documentName)
-                            || !server.getDocumentVersionMap().containsKey(
-                            documentName)) {
+                    returnMessage = redirectIfNotOwned(documentName, input);
+                    if (returnMessage != null) {
+                        break;
+                    }
+                    boolean partial = tokens.length > 2 && tokens[2].equals("partial");
+                    int limit = tokens.length > 2
+                            ? (partial ? partialWindowSize : Integer.MAX_VALUE) : -1;
+                    int from = tokens.length > 3 ? Integer.parseInt(tokens[3]) : 0;
+                    // subscribing and taking the snapshot on the shard means no change
+                    // is applied in between, the encoding and sending is done here
+                    DocumentSnapshot snapshot = server.callOnShard(documentName, () -> {
+                        if (!server.hasDocument(documentName)) {
+                            return null;
+                        }
+                        server.subscribe(documentName, this);
+                        if (limit < 0) {
+                            viewport = null;
+                            return server.getSnapshot(documentName);
+                        }
+                        // in partial mode only the text from the start is sent, the
+                        // client asks for more with range requests
+                        int start = Math.min(from, server.getDocumentLength(documentName));
+                        DocumentSnapshot range = server.getRangeSnapshot(documentName, start,
+                                (int) Math.min(Integer.MAX_VALUE, (long) start + limit));
+                        viewport = partial ? new Viewport(documentName, start,
+                                start + range.getText().length()) : null;
+                        return range;
+                    });
+                    if (snapshot == null) {
                         returnMessage = error2;
+                    } else if (limit >= 0) {
+                        returnMessage = streamDocument(documentName, snapshot,
+                                Math.min(from, snapshot.getDocumentLength()));
                     } else {
-                        int version = server.getVersion(documentName);
-                        String documentText = Encoding.encode(server
-                                .getDocumentText(documentName));
-                        returnMessage = "open " + documentName + " " + version
+                        String documentText = Encoding.encode(snapshot.getText());
+                        returnMessage = "open " + documentName + " " + snapshot.getVersion()
                                 + " " + documentText;
                     }
                     break;
                 }
-                case "change": {
-                    // 'change' request, must change the string stored on the server if applicable
-                    int version = Integer.parseInt(tokens[3]);
-                    int offset, changeLength;
-                    Edit edit;
+                case "cursor":
+                    // only the latest cursor is kept, and broadcast later
+                    if (username != null && tokens[1].equals(openDocument)) {
+                        server.getPresenceManager().update(tokens[1], username,
+                                Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+                    }
+                    returnMessage = null;
+                    break;
+                case "range":
+                case "lines": {
+                    // 'range' request of a client with the document open in partial
+                    // mode: send the text from start to end and extend its viewport.
+                    // 'lines' asks for count lines from a line instead, answered
+                    // the same way
                     String documentName = tokens[1];
-                    String editType = tokens[4];
-                    String username = tokens[2];
-                    if (!server.getDocumentMap().containsKey(documentName) || !server.getDocumentVersionMap().containsKey(
-                            documentName)) {
-                        // if the server does not have the document
+                    String redirect = redirectIfNotOwned(documentName, input);
+                    if (redirect != null) {
+                        returnMessage = redirect;
+                    } else if (!server.hasDocument(documentName)) {
                         returnMessage = error2;
+                    } else if (tokens[0].equals("lines")) {
+                        int firstLine = Integer.parseInt(tokens[2]);
+                        int lineCount = Integer.parseInt(tokens[3]);
+                        // the lines and their text are read between two edits
+                        returnMessage = server.callOnShard(documentName, () -> sendRange(documentName,
+                                server.getLineStart(documentName, firstLine),
+                                server.getLineStart(documentName, firstLine + lineCount)));
                     } else {
-                        Object lock = new Object();
-                        // only one thread should be in below because as we change the
-                        // version number, there might be race condition.
-                        // I.e., a thread check the version number is correct, but in
-                        // face that number is changed later on by another thread.
-                        synchronized (lock) {
-                            if (server.getVersion(documentName) != version) {
-                                // the client's document version is out of date
-                                //update the index relative to the previous inserts so that the change can be inserted
-                                if (editType.equals("insert")) {
-                                    offset = Integer.parseInt(tokens[6]);
-                                } else {
-                                    offset = Integer.parseInt(tokens[5]);
-                                }
-                                String updates = server.manageEdit(documentName, version, offset);
-                                String[] updatedTokens = updates.split(" ");
-                                version = Integer.parseInt(updatedTokens[1]);
-                                offset = Integer.parseInt(updatedTokens[2]);
-                            }
-                            // then, the server could apply the (transformed) edit on document and return messages.
-                            int length = server.getDocumentLength(documentName);
-                            if (editType.equals("remove")) {
-                                offset = Integer.parseInt(tokens[5]);
-                                int endPosition = Integer.parseInt(tokens[6]);
-                                // The server changes the document text:
-                                server.delete(documentName, offset, endPosition);
-                                changeLength = offset - endPosition; // negative
-                                edit = new Edit(documentName, Type.REMOVE, "",
-                                        version, offset, changeLength);
-                                server.logEdit(edit);
-                                // server updates version number:
-                                server.updateVersion(documentName, version + 1);
-                                returnMessage = createMessage(documentName, username,
-                                        version + 1, offset, changeLength,
-                                        Encoding.encode(server
-                                                .getDocumentText(documentName)));// encode the message!
-                            } else if (editType.equals("insert")) {
-                                Type type = Type.INSERT;
-                                offset = Integer.parseInt(tokens[6]);
-                                String text = Encoding.decode(tokens[5]);
-                                if (offset > length) {
-                                    returnMessage = error4;
-                                } else {
-                                    // the server updates the document text:
-                                    server.insert(documentName, offset, text);
-                                    changeLength = text.length();
-                                    edit = new Edit(documentName, type, text,
-                                            version, offset, changeLength);
-                                    server.logEdit(edit);
-                                    // the server updated the document version
-                                    server.updateVersion(documentName, version + 1);
-                                    returnMessage = createMessage(documentName, username,
-                                            version + 1, offset, changeLength,
-                                            Encoding.encode(server.getDocumentText(documentName)));
-                                }
-                            }
+                        int start = Integer.parseInt(tokens[2]);
+                        int end = Integer.parseInt(tokens[3]);
+                        // the text and the extension of the viewport are taken
+                        // between two edits, like for lines
+                        returnMessage = start > end ? error6 : server.callOnShard(documentName,
+                                () -> sendRange(documentName, start, end));
+                    }
+                    break;
+                }
+                case "search": {
+                    String phrase = Encoding.decode(tokens[1]);
+                    if (phrase.length() < 3) {
+                        returnMessage = error12;
+                        break;
+                    }
+                    StringBuilder found = new StringBuilder("search ").append(tokens[1]);
+                    for (Map.Entry<String, List<Integer>> document
+                            : server.search(phrase, maxSearchOffsets).entrySet()) {
+                        found.append(" ").append(document.getKey()).append(" ");
+                        List<Integer> offsets = document.getValue();
+                        for (int i = 0; i < offsets.size(); i++) {
+                            found.append(i == 0 ? "" : ",").append(offsets.get(i));
                         }
                     }
+                    returnMessage = found.toString();
+                    break;
+                }
+                case "history": {
+                    // the document as it was at a past version
+                    String documentName = tokens[1];
+                    int version = Integer.parseInt(tokens[2]);
+                    returnMessage = redirectIfNotOwned(documentName, input);
+                    if (returnMessage != null) {
+                        break;
+                    }
+                    if (!server.hasDocument(documentName)) {
+                        returnMessage = error2;
+                        break;
+                    }
+                    String text = server.getTextAt(documentName, version);
+                    returnMessage = text == null ? error11
+                            : "history " + documentName + " " + version + " " + Encoding.encode(text);
+                    break;
+                }
+                case "undo":
+                case "redo": {
+                    String documentName = tokens[1];
+                    returnMessage = redirectIfNotOwned(documentName, input);
+                    if (returnMessage == null) {
+                        returnMessage = redirectIfReadOnly(input);
+                    }
+                    if (returnMessage != null) {
+                        break;
+                    }
+                    if (username == null) {
+                        returnMessage = error6;
+                        break;
+                    }
+                    boolean redo = tokens[0].equals("redo");
+                    returnMessage = server.callOnShard(documentName,
+                            () -> applyUndo(documentName, redo));
+                    server.flushChanges(documentName);
+                    break;
+                }
+                case "change": {
+                    // 'change' request, must change the string stored on the server if applicable.
+                    // The change is applied on the shard of the document, one change at a
+                    // time, and its messages are sent here, this client's with the others.
+                    String documentName = tokens[1];
+                    returnMessage = redirectIfNotOwned(documentName, input);
+                    if (returnMessage == null) {
+                        returnMessage = redirectIfReadOnly(input);
+                    }
+                    if (returnMessage != null) {
+                        break;
+                    }
+                    try {
+                        returnMessage = server.callOnShard(documentName, () -> applyChange(tokens));
+                    } catch (NumberFormatException e) {
+                        // a version or position that is not a number, or too large;
+                        // it is read before the document is changed
+                        returnMessage = error6;
+                    }
+                    server.flushChanges(documentName);
                     break;
                 }
             }
@@ -251,17 +645,400 @@ public class ClientConnectionThread extends Thread {
     }
 
     /**
-     * Generate a return message from the arguments given according to the grammar.
-     * @param documentName a string that is the name of the document
-     * @param version      an integer that is the version of the document
-     * @param offset       an integer that is the starting position of the change
-     * @param changeLength an integer that is the length of the text client changes
-     * @param documentText the string that is the entire text of the document.
+     * Makes the session the session of this connection, with its username. The
+     * previous connection of the session, which the server may not know is
+     * dead yet, is evicted.
+     * @return the error if the username was taken since the session ended, or null
      */
-    private String createMessage(String documentName, String username, int version, int offset,
-                                 int changeLength, String documentText) {
-        return "change " + documentName + " " + username + " " + version + " "
-                + offset + " " + changeLength + " " + documentText;
+    private String takeOver(Session resumed) {
+        if (resumed == session) {
+            return null;
+        }
+        // the username passes from the previous connection to this one without
+        // being released in between, so no other user can take it
+        boolean handedOver = false;
+        for (ClientConnectionThread t : server.getConnections()) {
+            if (t != this && t.getSession() == resumed) {
+                t.handOver();
+                server.evict(t);
+                handedOver = true;
+            }
+        }
+        String name = resumed.getUsername();
+        if (!name.equals(username)) {
+            if (!server.claimUsername(name) && !handedOver) {
+                return error7;
+            }
+            if (username != null) {
+                server.releaseUsername(username);
+            }
+            username = name;
+        }
+        session = resumed;
+        resumed.setEndedAt(0);
+        return null;
+    }
+
+    /**
+     * Brings up to date the text of a client that has the document at the
+     * version, with loaded characters from start: after it lost its connection,
+     * or when its text fell behind. The client is sent the shortest of
+     * <ul>
+     * <li>the edits made since, in a patch message, when few edits were made</li>
+     * <li>the edits turning its text into the current one (see TextDiff), in a
+     * diff message, when the edits made since are longer than that, like
+     * edits undone or text typed and removed</li>
+     * <li>the document opened again in partial mode, when it is shorter than
+     * both or the history doesn't go back to the version</li>
+     * </ul>
+     * The diff is only looked for when the patch is longer than minDiffLength.
+     * Only the edits and texts are taken on the shard: the diff and the
+     * encoding are done on the thread of the connection.
+     */
+    private String resyncDocument(String documentName, int version, int loaded, int start,
+                                  String request) {
+        String redirect = redirectIfNotOwned(documentName, request);
+        if (redirect != null) {
+            return redirect;
+        }
+        // the client is subscribed between two edits, and the edits and texts
+        // the answer is made of are taken then; the answer is made here
+        ResyncPoint point = server.callOnShard(documentName, () -> {
+            if (!server.hasDocument(documentName)) {
+                return new ResyncPoint(error2);
+            }
+            List<Edit> edits = server.getEditsFrom(documentName, version);
+            if (edits == null) {
+                return null;
+            }
+            int documentLength = server.getDocumentLength(documentName);
+            int length = documentLength;
+            for (Edit edit : edits) {
+                length -= edit.getLength();
+            }
+            // the edits move the text of the client like its viewport
+            int startBefore = Math.min(start, length);
+            int loadedBefore = Math.min(loaded, length - startBefore);
+            Viewport resynced = new Viewport(documentName, startBefore, startBefore + loadedBefore);
+            for (Edit edit : edits) {
+                length += edit.getLength();
+                resynced.move(edit.getOffset(), edit.getLength(), length);
+            }
+            String from = null;
+            String to = null;
+            if (patchLength(edits) > minDiffLength) {
+                from = server.getTextAt(documentName, version)
+                        .substring(startBefore, startBefore + loadedBefore);
+                to = server.getDocumentRange(documentName, resynced.getStart(), resynced.getEnd());
+            }
+            server.subscribe(documentName, this);
+            viewport = resynced;
+            return new ResyncPoint(edits, server.getVersion(documentName), documentLength,
+                    resynced.getStart(), from, to);
+        });
+        String reopen = "open " + documentName + " partial" + (start > 0 ? " " + start : "");
+        if (point == null) {
+            return handleRequest(reopen);
+        } else if (point.error != null) {
+            return point.error;
+        }
+        String versions = " " + documentName + " " + version + " " + point.version + " "
+                + point.documentLength;
+        String message = "patch" + versions + encodeEdits(point.edits);
+        if (point.from != null && message.length() > minDiffLength) {
+            String diff = "diff" + versions + " " + point.start + encodeEdits(
+                    TextDiff.diff(documentName, point.from, point.to, maxDiffDistance));
+            if (diff.length() < message.length()) {
+                message = diff;
+            }
+        }
+        // a snapshot is at least as long as its text, which is only read and
+        // encoded when that may be shorter
+        int snapshotStart = Math.min(start, point.documentLength);
+        int snapshotEnd = Math.min(point.documentLength, snapshotStart + partialWindowSize);
+        if (snapshotEnd - snapshotStart + snapshotOverhead < message.length()
+                && Encoding.encode(server.getDocumentRange(documentName, snapshotStart, snapshotEnd))
+                .length() + snapshotOverhead < message.length()) {
+            return handleRequest(reopen);
+        }
+        return message;
+    }
+
+    /**
+     * What a resync is made of, taken on the shard of the document: the edits
+     * since the version of the client, the version and length of the document
+     * after them, the start of the viewport of the client after them and, when
+     * the patch of the edits is long, the text of the client and the current
+     * text of its viewport, to diff
+     */
+    private static class ResyncPoint {
+        final String error;
+        final List<Edit> edits;
+        final int version;
+        final int documentLength;
+        final int start;
+        final String from;
+        final String to;
+
+        ResyncPoint(String error) {
+            this(error, null, 0, 0, 0, null, null);
+        }
+
+        ResyncPoint(List<Edit> edits, int version, int documentLength, int start, String from,
+                    String to) {
+            this(null, edits, version, documentLength, start, from, to);
+        }
+
+        private ResyncPoint(String error, List<Edit> edits, int version, int documentLength,
+                            int start, String from, String to) {
+            this.error = error;
+            this.edits = edits;
+            this.version = version;
+            this.documentLength = documentLength;
+            this.start = start;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * @return the length of the patch of the edits before encoding, at most
+     * the length of the patch message
+     */
+    private static int patchLength(List<Edit> edits) {
+        int length = 0;
+        for (Edit edit : edits) {
+            // " +Position,EncodedText" or " -Position,Length"
+            length += edit.getType() == Type.INSERT ? 4 + edit.getText().length() : 5;
+        }
+        return length;
+    }
+
+    /**
+     * @return " +Position,EncodedText" for each insert and " -Position,Length"
+     * for each remove, in order
+     */
+    private static String encodeEdits(List<Edit> edits) {
+        StringBuilder message = new StringBuilder();
+        for (Edit edit : edits) {
+            if (edit.getType() == Type.INSERT) {
+                message.append(" +").append(edit.getOffset()).append(',')
+                        .append(Encoding.encode(edit.getText()));
+            } else {
+                message.append(" -").append(edit.getOffset()).append(',')
+                        .append(-edit.getLength());
+            }
+        }
+        return message.toString();
+    }
+
+    /**
+     * @return the message redirecting the client to the node owning the document
+     * in a cluster, or null if this server owns it
+     */
+    private String redirectIfNotOwned(String documentName, String request) {
+        Cluster cluster = server.getCluster();
+        if (cluster == null || cluster.owns(documentName)) {
+            return null;
+        }
+        return cluster.redirect(documentName, request);
+    }
+
+    /**
+     * @return the message redirecting the client to the primary if this server
+     * is a read-only follower, or null
+     */
+    private String redirectIfReadOnly(String request) {
+        ReplicaFollower follower = server.getFollower();
+        if (follower == null || !follower.isFollowing()) {
+            return null;
+        }
+        return follower.redirect(request);
+    }
+
+    /**
+     * Answers a range request with the text from start to end, and extends the
+     * viewport of the connection. Must run on the shard of the document.
+     */
+    private String sendRange(String documentName, int start, int end) {
+        DocumentSnapshot snapshot = server.getRangeSnapshot(documentName, start, end);
+        Viewport v = viewport;
+        if (v != null && v.getDocumentName().equals(documentName)) {
+            v.extend(start, start + snapshot.getText().length());
+        }
+        return "range " + documentName + " " + snapshot.getVersion() + " "
+                + start + " " + snapshot.getDocumentLength() + " "
+                + Encoding.encode(snapshot.getText());
+    }
+
+    /**
+     * Applies a change request to the document. Must run on the shard of the
+     * document: checking the version, transforming the edit, applying it,
+     * updating the version and queueing its messages (see
+     * Server.broadcastChange) can't be interleaved with another change.
+     * @return the error message, or null if the change was applied
+     */
+    private String applyChange(String[] tokens) {
+        if (tokens.length < 7) {
+            return error6;
+        }
+        int version = Integer.parseInt(tokens[3]);
+        int offset, changeLength;
+        Edit edit;
+        String documentName = tokens[1];
+        String editType = tokens[4];
+        if (!server.hasDocument(documentName)) {
+            // if the server does not have the document
+            return error2;
+        }
+        if (version > server.getVersion(documentName)) {
+            // a version the document doesn't have yet
+            return error6;
+        }
+        // positions written Line:Column are converted to offsets in the version
+        // of the client, then transformed like any offset
+        for (int i = editType.equals("insert") ? 6 : 5; i < Math.min(tokens.length, 7); i++) {
+            int colon = tokens[i].indexOf(':');
+            if (colon >= 0) {
+                int position = server.toOffset(documentName, version,
+                        Integer.parseInt(tokens[i].substring(0, colon)),
+                        Integer.parseInt(tokens[i].substring(colon + 1)));
+                if (position < 0) {
+                    return error11;
+                }
+                tokens[i] = String.valueOf(position);
+            }
+        }
+        if (server.getVersion(documentName) != version) {
+            // the client's document version is out of date
+            // the change is numbered after the edits made since, at the offset the
+            // client sent (see EditManager.manageEdit)
+            if (editType.equals("insert")) {
+                offset = Integer.parseInt(tokens[6]);
+            } else {
+                offset = Integer.parseInt(tokens[5]);
+            }
+            String updates = server.manageEdit(documentName, version, offset);
+            String[] updatedTokens = updates.split(" ");
+            version = Integer.parseInt(updatedTokens[1]);
+            offset = Integer.parseInt(updatedTokens[2]);
+        }
+        // then, the server could apply the (transformed) edit on document and return messages.
+        int length = server.getDocumentLength(documentName);
+        if (editType.equals("remove")) {
+            offset = Integer.parseInt(tokens[5]);
+            int endPosition = Integer.parseInt(tokens[6]);
+            // the removed text is kept in the log, so that the remove can be undone
+            String removedText = server.getDocumentRange(documentName, offset, endPosition);
+            // The server changes the document text:
+            server.delete(documentName, offset, endPosition);
+            changeLength = offset - endPosition; // negative
+            edit = new Edit(documentName, Type.REMOVE, removedText,
+                    version, offset, changeLength, tokens[2]);
+        } else if (editType.equals("insert")) {
+            offset = Integer.parseInt(tokens[6]);
+            String text = Encoding.decode(tokens[5]);
+            if (offset > length) {
+                return error4;
+            }
+            // the server updates the document text:
+            server.insert(documentName, offset, text);
+            changeLength = text.length();
+            edit = new Edit(documentName, Type.INSERT, text,
+                    version, offset, changeLength, tokens[2]);
+        } else {
+            return error6;
+        }
+        server.logEdit(edit);
+        // the server updates the document version
+        server.updateVersion(documentName, version + 1);
+        publishApplied(edit);
+        server.broadcastChange(documentName, tokens[2], version + 1, offset, changeLength, this);
+        return null;
+    }
+
+    /**
+     * Undoes the last change of the user in the document, or redoes the last
+     * one undone. Must run on the shard of the document. The inverse of an
+     * insert is only applied if the inserted text is still there, unchanged.
+     * @return the error message, or null if the change was applied
+     */
+    private String applyUndo(String documentName, boolean redo) {
+        if (!server.hasDocument(documentName)) {
+            return error2;
+        }
+        Integer target = server.popUndo(documentName, username, redo);
+        if (target == null) {
+            return redo ? error9 : error8;
+        }
+        Edit inverse = server.invert(documentName, target);
+        if (inverse == null || inverse.getText().isEmpty()) {
+            return error10;
+        }
+        int version = server.getVersion(documentName);
+        int offset = inverse.getOffset();
+        if (inverse.getType() == Type.REMOVE) {
+            int endPosition = offset - inverse.getLength();
+            if (!server.getDocumentRange(documentName, offset, endPosition).equals(inverse.getText())) {
+                return error10;
+            }
+            server.delete(documentName, offset, endPosition);
+        } else {
+            if (offset > server.getDocumentLength(documentName)) {
+                return error10;
+            }
+            server.insert(documentName, offset, inverse.getText());
+        }
+        server.logUndo(inverse, redo);
+        server.updateVersion(documentName, version + 1);
+        publishApplied(inverse);
+        server.broadcastChange(documentName, username, version + 1, offset, inverse.getLength(),
+                this);
+        return null;
+    }
+
+    /**
+     * Sends an edit just applied to the followers of the server
+     */
+    private void publishApplied(Edit edit) {
+        server.publishEdit(edit.getDocumentName(), "applied " + edit.getDocumentName() + " "
+                + edit.getUsername() + " " + (edit.getVersion() + 1) + " " + edit.getOffset() + " "
+                + edit.getLength() + " " + System.currentTimeMillis() + " "
+                + Encoding.encode(edit.getText()));
+    }
+
+    /**
+     * Sends the snapshot of the document, or of a part of it, in chunks of at most
+     * streamChunkSize characters, so that neither side has to hold the whole
+     * document in one line, and the client can show the beginning of the
+     * document before the rest arrives.
+     * OpenBegin :== openbegin DocumentName Version DocumentLength [Position], where
+     * Position is the offset of the text in the document when it is not 0
+     * Chunk :== chunk DocumentName Index EncodedText
+     * OpenEnd :== openend DocumentName Version
+     * The chunks are of the document at Version. Changes broadcast to this
+     * client while the chunks are sent are of later versions.
+     * @param snapshot the document, or its characters from position, to send
+     * @return the openend message, to be sent after the chunks
+     */
+    private String streamDocument(String documentName, DocumentSnapshot snapshot, int position) {
+        String text = snapshot.getText();
+        sendMessage("openbegin " + documentName + " " + snapshot.getVersion() + " "
+                + snapshot.getDocumentLength() + (position > 0 ? " " + position : ""));
+        int index = 0;
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(start + streamChunkSize, text.length());
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                // don't split a surrogate pair between two chunks
+                end--;
+            }
+            sendMessage("chunk " + documentName + " " + index + " "
+                    + Encoding.encode(text.substring(start, end)));
+            index++;
+            start = end;
+        }
+        return "openend " + documentName + " " + snapshot.getVersion();
     }
 
     public Socket getSocket() {
@@ -271,4 +1048,31 @@ public class ClientConnectionThread extends Thread {
     public String getUsername() {
         return username;
     }
+
+    /**
+     * Gives the session and username of this connection to the connection
+     * resuming the session: they are not released when this one is removed
+     */
+    void handOver() {
+        session = null;
+        username = null;
+    }
+
+    /** @return the session of the user of the connection, null until it is named */
+    public Session getSession() {
+        return session;
+    }
+
+    /** @return the name of the document the client has open, or null */
+    public String getOpenDocument() {
+        return openDocument;
+    }
+
+    void setOpenDocument(String documentName) {
+        openDocument = documentName;
+    }
+
+    public int getConnectionId() {
+        return connectionId;
+    }
 }
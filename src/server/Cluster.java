@@ -0,0 +1,203 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The server nodes of a cluster, each owning a part of the documents.
+ * <p>
+ * Documents are assigned to nodes by consistent hashing: every node is placed
+ * at virtualNodes points of a hash ring, and a document belongs to the first
+ * node found on the ring from the hash of its name. Adding or removing a node
+ * only moves the documents of the ring segments it takes or gives back. Every
+ * node is started with the same list of nodes, so they all agree on the owner
+ * of each document without talking to each other.
+ * <p>
+ * A node receiving a request for a document it doesn't own redirects the client
+ * to the owner:
+ * Redirect :== redirect Host Port Request
+ * where Request is the request to send again to Host:Port. Listing the
+ * documents is the only request that needs the other nodes: the node asks each
+ * of them for its own documents with "look local" or "list local".
+ * <p>
+ * Nodes are written host:port.
+ */
+public class Cluster {
+    private final String self;
+    private final List<String> nodes;
+    private final TreeMap<Integer, String> ring;
+    private static final int virtualNodes = 64;
+    private static final int peerTimeoutMillis = 2000;
+
+    /**
+     * @param self  this node, which must be one of the nodes
+     * @param nodes all the nodes of the cluster
+     */
+    public Cluster(String self, List<String> nodes) {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException(self + " is not one of the nodes " + nodes);
+        }
+        for (String node : nodes) {
+            parsePort(node);
+        }
+        this.self = self;
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.ring = new TreeMap<>();
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @param self     this node, host:port
+     * @param nodeList the nodes of the cluster separated by commas
+     */
+    public static Cluster parse(String self, String nodeList) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : nodeList.split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(node.trim());
+            }
+        }
+        return new Cluster(self, nodes);
+    }
+
+    /**
+     * Spreads the bits of String.hashCode, which is the same in every JVM, so that
+     * the points of the ring are evenly distributed
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the node owning the document
+     */
+    public String ownerOf(String documentName) {
+        Map.Entry<Integer, String> entry = ring.ceilingEntry(hash(documentName));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * @return true if this node owns the document
+     */
+    public boolean owns(String documentName) {
+        return self.equals(ownerOf(documentName));
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the message telling the client to send the request to the owner of
+     * the document
+     */
+    public String redirect(String documentName, String request) {
+        String owner = ownerOf(documentName);
+        return "redirect " + parseHost(owner) + " " + parsePort(owner) + " " + request;
+    }
+
+    /**
+     * Asks every other node for the documents it owns. Nodes that don't answer
+     * in time are skipped, so listing the documents still works when a node is
+     * down, without its documents.
+     * @return the names of the documents of the other nodes
+     */
+    public List<String> lookPeers() {
+        List<String> documentNames = new ArrayList<>();
+        for (String reply : askPeers("look local")) {
+            if (reply.startsWith("alldocs ")) {
+                for (String name : reply.substring("alldocs ".length()).split(" ")) {
+                    if (!name.isEmpty()) {
+                        documentNames.add(name);
+                    }
+                }
+            }
+        }
+        return documentNames;
+    }
+
+    /**
+     * Asks every other node for a page of the documents it owns, like "list" but
+     * with "list local". Nodes that don't answer in time are skipped.
+     * @param request the list request of the client, without local
+     * @return the pages of the other nodes
+     */
+    public List<DocumentNameIndex.Page> listPeers(String request) {
+        List<DocumentNameIndex.Page> pages = new ArrayList<>();
+        for (String reply : askPeers("list local" + request.substring("list".length()))) {
+            String[] tokens = reply.split(" ");
+            if (tokens[0].equals("page") && tokens.length >= 3) {
+                List<String> names = new ArrayList<>();
+                for (int i = 3; i < tokens.length; i++) {
+                    names.add(tokens[i]);
+                }
+                pages.add(new DocumentNameIndex.Page(names, tokens[2].equals("-") ? null : tokens[2]));
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Sends the request to every other node
+     * @return the answers of the nodes that answered in time
+     */
+    private List<String> askPeers(String request) {
+        List<String> replies = new ArrayList<>();
+        for (String node : nodes) {
+            if (node.equals(self)) {
+                continue;
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(parseHost(node), parsePort(node)),
+                        peerTimeoutMillis);
+                socket.setSoTimeout(peerTimeoutMillis);
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out.println(request);
+                String reply = in.readLine();
+                out.println("bye");
+                if (reply != null) {
+                    replies.add(reply);
+                }
+            } catch (IOException e) {
+                System.out.println("Node " + node + " did not answer: " + e.getMessage());
+            }
+        }
+        return replies;
+    }
+
+    private static String parseHost(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    private static int parsePort(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Nodes are written host:port, not " + node);
+        }
+        return Integer.parseInt(node.substring(colon + 1));
+    }
+}
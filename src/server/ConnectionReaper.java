@@ -0,0 +1,37 @@
+package server;
+
+/**
+ * The ConnectionReaper periodically looks for dead connections and evicts them
+ * from the server: connections whose socket is closed, and connections that
+ * have not sent anything, not even a heartbeat, for longer than the idle
+ * timeout (e.g. half-open connections of crashed clients). Evicting closes the
+ * socket, which also stops the thread reading from it, and frees the username.
+ * It also forgets the sessions that were not resumed in time.
+ */
+public class ConnectionReaper extends Thread {
+    private final Server server;
+
+    public ConnectionReaper(Server server) {
+        this.server = server;
+        setName("connection-reaper");
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (true) {
+            int idleTimeout = server.getIdleTimeoutMillis();
+            try {
+                Thread.sleep(Math.max(100, idleTimeout / 4));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (ClientConnectionThread t : server.getConnections()) {
+                if (t.getSocket().isClosed() || now - t.getLastActivity() > idleTimeout) {
+                    server.evict(t);
+                }
+            }
+            server.expireSessions(now);
+        }
+    }
+}
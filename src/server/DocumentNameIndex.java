@@ -0,0 +1,116 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The names of the documents of the server, sorted, listed a page at a time.
+ * <p>
+ * The names are kept in a skip list, so they are read without any lock while
+ * documents are created, and a page of the names starting with a prefix is
+ * found in time proportional to the page, not to the number of documents.
+ * Pages are chained by a cursor, the last name of the previous page: the next
+ * page starts after it, so documents created or removed while the pages are
+ * read never make a name appear twice, and a name there all along is never
+ * skipped.
+ */
+public class DocumentNameIndex {
+    private final ConcurrentSkipListSet<String> names;
+
+    public DocumentNameIndex() {
+        names = new ConcurrentSkipListSet<>();
+    }
+
+    public void add(String documentName) {
+        names.add(documentName);
+    }
+
+    public void remove(String documentName) {
+        names.remove(documentName);
+    }
+
+    public boolean isEmpty() {
+        return names.isEmpty();
+    }
+
+    /**
+     * @return all the names, sorted
+     */
+    public NavigableSet<String> getNames() {
+        return Collections.unmodifiableNavigableSet(names);
+    }
+
+    /**
+     * @param prefix the names of the page start with it, "" for all names
+     * @param after  the cursor returned with the previous page, null for the
+     *               first page
+     * @param limit  the maximum number of names of the page
+     * @return the page of names after the cursor
+     */
+    public Page page(String prefix, String after, int limit) {
+        NavigableSet<String> tail = after == null || after.compareTo(prefix) < 0
+                ? names.tailSet(prefix, true) : names.tailSet(after, false);
+        List<String> page = new ArrayList<>();
+        for (String name : tail) {
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            if (page.size() == limit) {
+                return new Page(page, page.get(limit - 1));
+            }
+            page.add(name);
+        }
+        return new Page(page, null);
+    }
+
+    /**
+     * Merges the pages of the same request answered by several nodes into a
+     * page of at most limit names. The cursor of the merged page is its last
+     * name when any node has more names: the names a node hasn't listed all
+     * come after its last listed name, so none of them is before that cursor.
+     */
+    public static Page merge(List<Page> pages, int limit) {
+        TreeSet<String> merged = new TreeSet<>();
+        boolean more = false;
+        for (Page page : pages) {
+            merged.addAll(page.getNames());
+            more |= page.getNext() != null;
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : merged) {
+            if (names.size() == limit) {
+                more = true;
+                break;
+            }
+            names.add(name);
+        }
+        return new Page(names, more && !names.isEmpty() ? names.get(names.size() - 1) : null);
+    }
+
+    /**
+     * A page of document names
+     * names - the names, sorted
+     * next - the cursor of the next page, null if this is the last page
+     */
+    public static class Page {
+        private final List<String> names;
+        private final String next;
+
+        public Page(List<String> names, String next) {
+            this.names = names;
+            this.next = next;
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        public String getNext() {
+            return next;
+        }
+    }
+}
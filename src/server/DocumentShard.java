@@ -0,0 +1,411 @@
+package server;
+
+import handlers.Edit;
+import handlers.EditManager;
+import handlers.LineIndex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A partition of the documents of the server. Every document belongs to exactly
+ * one shard, chosen by the hash of its name, and the shard owns everything about
+ * it: its text, its version, its edit history and the connections that have it
+ * open.
+ * <p>
+ * Each shard has its own thread. Requests that modify a document (creating,
+ * opening, changing it) are run on the thread of its shard, one after the
+ * other, so edits to a document are applied in order without any lock shared
+ * with the other shards. Reads only take the lock of the shard.
+ * <p>
+ * The requests about documents are queued per document, and the thread takes
+ * one request of each document with requests waiting in turn, so a document
+ * flooded with changes gets its share of the thread and no more: the requests
+ * of the other documents of the shard wait for at most one request of it each,
+ * not for all of its queue.
+ * <p>
+ * documentMap - maps document name to its text, on the heap or off it (see
+ * DocumentText)
+ * documentVersionMap - maps document name to its version
+ * editManager - the edit history of the documents of the shard
+ * subscribers - maps document name to the connections that have it open
+ * outboxes - maps document name to its change messages waiting to be sent to
+ * the subscribers, in the order of the changes (see ChangeOutbox)
+ * searchIndex - trigram index of the documents, updated by every insert and remove
+ * lineIndexes - maps document name to the index of its lines, updated by every
+ * insert and remove, to convert lines and columns to offsets (see LineIndex)
+ */
+public class DocumentShard {
+    private final int index;
+    private final Map<String, DocumentText> documentMap;
+    private final Map<String, Integer> documentVersionMap;
+    private final EditManager editManager;
+    private final Map<String, Set<ClientConnectionThread>> subscribers;
+    private final Map<String, ChangeOutbox> outboxes;
+    private final SearchIndex searchIndex;
+    private final Map<String, LineIndex> lineIndexes;
+    private final ExecutorService executor;
+    // document name -> its requests waiting, and the documents in turn order,
+    // guarded by turns
+    private final Map<String, Queue<FutureTask<?>>> waiting;
+    private final Queue<String> turns;
+    private volatile Thread thread;
+    private volatile boolean offHeap;
+
+    public DocumentShard(int index) {
+        this.index = index;
+        this.documentMap = new HashMap<>();
+        this.documentVersionMap = new HashMap<>();
+        this.editManager = new EditManager();
+        this.subscribers = new ConcurrentHashMap<>();
+        this.outboxes = new ConcurrentHashMap<>();
+        this.searchIndex = new SearchIndex();
+        this.lineIndexes = new HashMap<>();
+        this.waiting = new HashMap<>();
+        this.turns = new ArrayDeque<>();
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "shard-" + index);
+            t.setDaemon(true);
+            thread = t;
+            return t;
+        });
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Runs the task on the thread of the shard and waits for its result. A task
+     * already running on that thread is run directly.
+     * @return the result of the task
+     */
+    public <T> T call(Callable<T> task) {
+        try {
+            if (Thread.currentThread() == thread) {
+                return task.call();
+            }
+            return await(executor.submit(task));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs a task about the document on the thread of the shard, in its turn
+     * among the documents with tasks waiting, and waits for its result. The
+     * tasks of a document are run in the order they were called.
+     * @return the result of the task
+     */
+    public <T> T call(String documentName, Callable<T> task) {
+        if (Thread.currentThread() == thread) {
+            return call(task);
+        }
+        FutureTask<T> future = new FutureTask<>(task);
+        synchronized (turns) {
+            Queue<FutureTask<?>> queue = waiting.get(documentName);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                waiting.put(documentName, queue);
+                turns.add(documentName);
+            }
+            queue.add(future);
+        }
+        // one turn is run for every task queued, so every task gets run
+        executor.execute(this::runTurn);
+        return await(future);
+    }
+
+    /**
+     * Runs the next task of the document whose turn it is, and puts the
+     * document back at the end of the turns if it has more
+     */
+    private void runTurn() {
+        FutureTask<?> task;
+        synchronized (turns) {
+            String documentName = turns.remove();
+            Queue<FutureTask<?>> queue = waiting.get(documentName);
+            task = queue.remove();
+            if (queue.isEmpty()) {
+                waiting.remove(documentName);
+            } else {
+                turns.add(documentName);
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Stops the thread of the shard once the tasks already queued are run. Tasks
+     * called afterwards are rejected.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds a document, with its text and version, to the shard
+     */
+    public synchronized void addDocument(String documentName, CharSequence text, int version) {
+        documentMap.put(documentName, offHeap ? new OffHeapDocumentText(text)
+                : new HeapDocumentText(text));
+        documentVersionMap.put(documentName, version);
+        editManager.createNewlog(documentName, version, copyOf(text));
+        searchIndex.index(documentName, text);
+        lineIndexes.put(documentName, new LineIndex(text));
+    }
+
+    /**
+     * Keeps the texts of the documents added from now on outside the heap (see
+     * OffHeapDocumentText), or on the heap
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    public synchronized boolean hasDocument(String documentName) {
+        return documentMap.containsKey(documentName)
+                && documentVersionMap.containsKey(documentName);
+    }
+
+    /**
+     * @return the names of the documents of the shard
+     */
+    public synchronized List<String> getDocumentNames() {
+        return new ArrayList<>(documentMap.keySet());
+    }
+
+    public synchronized String manageEdit(String documentName, int version, int offset) {
+        return editManager.manageEdit(documentName, version, offset);
+    }
+
+    /**
+     * Logs an edit already applied to the document, and takes a checkpoint of
+     * the document when one is due
+     */
+    public synchronized void logEdit(Edit edit) {
+        editManager.logEdit(edit);
+        checkpointIfDue(edit);
+    }
+
+    public synchronized void logUndo(Edit edit, boolean redo) {
+        editManager.logUndo(edit, redo);
+        checkpointIfDue(edit);
+    }
+
+    private void checkpointIfDue(Edit edit) {
+        String documentName = edit.getDocumentName();
+        if (editManager.isCheckpointDue(documentName)) {
+            editManager.checkpoint(documentName, edit.getVersion() + 1,
+                    copyOf(documentMap.get(documentName)));
+        }
+    }
+
+    /**
+     * @return a copy of the text for a checkpoint, off the heap if the texts are
+     */
+    private CharSequence copyOf(CharSequence text) {
+        return offHeap ? OffHeapDocumentText.copyOf(text) : text.toString();
+    }
+
+    public void setCheckpointInterval(int interval) {
+        editManager.setCheckpointInterval(interval);
+    }
+
+    /**
+     * @return the edits from the version on, or null if the history doesn't go
+     * back to it (see EditManager)
+     */
+    public synchronized List<Edit> getEditsFrom(String documentName, int version) {
+        return editManager.getEditsFrom(documentName, version);
+    }
+
+    /**
+     * @return the text of the document at a version, or null if the version is
+     * not in its history
+     */
+    public synchronized String getTextAt(String documentName, int version) {
+        if (version == documentVersionMap.get(documentName)) {
+            return documentMap.get(documentName).toString();
+        }
+        return editManager.getTextAt(documentName, version);
+    }
+
+    public synchronized Integer popUndo(String documentName, String username, boolean redo) {
+        return redo ? editManager.popRedo(documentName, username)
+                : editManager.popUndo(documentName, username);
+    }
+
+    public synchronized Edit invert(String documentName, int version) {
+        return editManager.invert(documentName, version, documentVersionMap.get(documentName));
+    }
+
+    public synchronized void updateVersion(String documentName, int version) {
+        documentVersionMap.put(documentName, version);
+    }
+
+    public synchronized int getVersion(String documentName) {
+        return documentVersionMap.get(documentName);
+    }
+
+    public synchronized void delete(String documentName, int offset, int endPosition) {
+        DocumentText document = documentMap.get(documentName);
+        String removed = document.substring(offset, Math.min(endPosition, document.length()));
+        document.delete(offset, endPosition);
+        searchIndex.update(documentName, document, offset, removed, 0);
+        lineIndexes.get(documentName).remove(offset, removed.length());
+    }
+
+    public synchronized void insert(String documentName, int offset, String text) {
+        DocumentText document = documentMap.get(documentName);
+        document.insert(offset, text);
+        searchIndex.update(documentName, document, offset, "", text.length());
+        lineIndexes.get(documentName).insert(offset, text);
+    }
+
+    /**
+     * Converts a line and column of the document at a version to an offset. The
+     * current version uses the index of the document, older versions move it
+     * back through the edits made since (see EditManager.offsetAt).
+     * @return the offset, or -1 if the version is not in the history
+     */
+    public synchronized int toOffset(String documentName, int version, int line, int column) {
+        LineIndex lines = lineIndexes.get(documentName);
+        return version == documentVersionMap.get(documentName) ? lines.offsetOf(line, column)
+                : editManager.offsetAt(documentName, version, lines, line, column);
+    }
+
+    /**
+     * @return the offset of the start of the line of the document, the length of
+     * the document after its last line
+     */
+    public synchronized int getLineStart(String documentName, int line) {
+        LineIndex lines = lineIndexes.get(documentName);
+        return line >= lines.getLineCount() ? lines.getLength() : lines.lineStart(line);
+    }
+
+    /**
+     * Finds the phrase, ignoring case, in the documents of the shard. Only the
+     * documents the index says may contain it are looked at, with the positions
+     * of their trigrams (see SearchIndex.Positions). The lock of the shard is
+     * only held to find them and to copy the text of those whose positions must
+     * be built again since they changed; building the positions and finding the
+     * phrase is done outside it, so edits of the shard don't wait for a search.
+     * @param phrase at least 3 characters
+     * @param maxOffsets the maximum number of offsets returned per document
+     * @return maps the name of every document containing the phrase to the
+     * offsets of the phrase in it
+     */
+    public Map<String, List<Integer>> search(String phrase, int maxOffsets) {
+        Map<String, SearchIndex.Positions> found = new HashMap<>();
+        Map<String, String> copies = new HashMap<>();
+        Map<String, Long> stamps = new HashMap<>();
+        synchronized (this) {
+            for (String documentName : searchIndex.candidates(phrase)) {
+                SearchIndex.Positions positions = searchIndex.getPositions(documentName);
+                if (positions != null) {
+                    found.put(documentName, positions);
+                } else {
+                    copies.put(documentName, documentMap.get(documentName).toString());
+                    stamps.put(documentName, searchIndex.getStamp(documentName));
+                }
+            }
+        }
+        for (Map.Entry<String, String> copy : copies.entrySet()) {
+            SearchIndex.Positions positions = SearchIndex.Positions.of(copy.getValue());
+            found.put(copy.getKey(), positions);
+            synchronized (this) {
+                searchIndex.putPositions(copy.getKey(), stamps.get(copy.getKey()), positions);
+            }
+        }
+        Map<String, List<Integer>> results = new HashMap<>();
+        for (Map.Entry<String, SearchIndex.Positions> document : found.entrySet()) {
+            List<Integer> offsets = document.getValue().find(phrase, maxOffsets);
+            if (!offsets.isEmpty()) {
+                results.put(document.getKey(), offsets);
+            }
+        }
+        return results;
+    }
+
+    public synchronized String getDocumentText(String documentName) {
+        return documentMap.get(documentName).toString();
+    }
+
+    public synchronized DocumentSnapshot getSnapshot(String documentName) {
+        DocumentText document = documentMap.get(documentName);
+        return new DocumentSnapshot(document.toString(),
+                documentVersionMap.get(documentName), document.length());
+    }
+
+    public synchronized DocumentSnapshot getRangeSnapshot(String documentName, int start, int end) {
+        return new DocumentSnapshot(getDocumentRange(documentName, start, end),
+                documentVersionMap.get(documentName), documentMap.get(documentName).length());
+    }
+
+    public synchronized String getDocumentRange(String documentName, int start, int end) {
+        DocumentText document = documentMap.get(documentName);
+        int clampedEnd = Math.max(0, Math.min(end, document.length()));
+        return document.substring(Math.max(0, Math.min(start, clampedEnd)), clampedEnd);
+    }
+
+    public synchronized int getDocumentLength(String documentName) {
+        return documentMap.get(documentName).length();
+    }
+
+    public void addSubscriber(String documentName, ClientConnectionThread t) {
+        subscribers.computeIfAbsent(documentName, d -> ConcurrentHashMap.newKeySet()).add(t);
+    }
+
+    public void removeSubscriber(String documentName, ClientConnectionThread t) {
+        Set<ClientConnectionThread> documentSubscribers = subscribers.get(documentName);
+        if (documentSubscribers != null) {
+            documentSubscribers.remove(t);
+        }
+    }
+
+    public Set<ClientConnectionThread> getSubscribers(String documentName) {
+        Set<ClientConnectionThread> documentSubscribers = subscribers.get(documentName);
+        return documentSubscribers == null ? Collections.<ClientConnectionThread>emptySet()
+                : Collections.unmodifiableSet(documentSubscribers);
+    }
+
+    /**
+     * @return the change messages of the document waiting to be sent
+     */
+    public ChangeOutbox getOutbox(String documentName) {
+        return outboxes.computeIfAbsent(documentName, d -> new ChangeOutbox());
+    }
+}
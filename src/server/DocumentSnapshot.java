@@ -0,0 +1,32 @@
+package server;
+
+/**
+ * The text of a document, or of a range of it, together with the version and
+ * the length the document had, taken atomically.
+ */
+public class DocumentSnapshot {
+    private final String text;
+    private final int version;
+    private final int documentLength;
+
+    public DocumentSnapshot(String text, int version, int documentLength) {
+        this.text = text;
+        this.version = version;
+        this.documentLength = documentLength;
+    }
+
+    /** @return the text of the document, or of the range, at that version */
+    public String getText() {
+        return text;
+    }
+
+    /** @return the version of the document */
+    public int getVersion() {
+        return version;
+    }
+
+    /** @return the length of the whole document at that version */
+    public int getDocumentLength() {
+        return documentLength;
+    }
+}
@@ -0,0 +1,32 @@
+package server;
+
+/**
+ * The text of a document kept by a shard. Implemented on the heap (see
+ * HeapDocumentText) or in memory outside the heap (see OffHeapDocumentText).
+ * Not thread safe, guarded by the shard.
+ */
+public interface DocumentText extends CharSequence {
+
+    /**
+     * Inserts the text at offset
+     * @throws StringIndexOutOfBoundsException if offset is not in the text
+     */
+    void insert(int offset, String text);
+
+    /**
+     * Removes the text from start to end, end clamped to the length of the text
+     * @throws StringIndexOutOfBoundsException if start is not in the text or is
+     * after end
+     */
+    void delete(int start, int end);
+
+    /**
+     * @return a copy of the text from start to end
+     */
+    String substring(int start, int end);
+
+    /**
+     * @return a copy of the whole text
+     */
+    String toString();
+}
@@ -0,0 +1,44 @@
+package server;
+
+import java.nio.charset.Charset;
+
+/**
+ * A message sent to many connections, converted to the bytes of its line once.
+ * Every connection that sends the message as it is (not compressed, see
+ * Compression, nor rewritten for a viewport, see Viewport) writes the same
+ * bytes, so broadcasting a change to n subscribers encodes it once instead of n
+ * times.
+ * <p>
+ * The bytes are never modified after they are made, so connections can write
+ * them concurrently; they are freed by the garbage collector once the last
+ * connection has written them.
+ */
+public class EncodedMessage {
+    private static final Charset charset = Charset.defaultCharset();
+    private static final String lineSeparator = System.lineSeparator();
+    private final String text;
+    private final byte[] bytes;
+
+    public EncodedMessage(String text) {
+        this.text = text;
+        this.bytes = encode(text);
+    }
+
+    /**
+     * @return the bytes of the line of the message, with its line terminator,
+     * as a PrintWriter would write them
+     */
+    public static byte[] encode(String message) {
+        return (message + lineSeparator).getBytes(charset);
+    }
+
+    /** @return the message, without the line terminator */
+    public String getText() {
+        return text;
+    }
+
+    /** @return the bytes of the line, not to be modified */
+    byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,40 @@
+package server;
+
+/**
+ * The text of a document in a StringBuilder, on the heap
+ */
+public class HeapDocumentText implements DocumentText {
+    private final StringBuilder text;
+
+    public HeapDocumentText(CharSequence text) {
+        this.text = new StringBuilder(text);
+    }
+
+    public void insert(int offset, String inserted) {
+        text.insert(offset, inserted);
+    }
+
+    public void delete(int start, int end) {
+        text.delete(start, end);
+    }
+
+    public String substring(int start, int end) {
+        return text.substring(start, end);
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return text.substring(start, end);
+    }
+
+    public String toString() {
+        return text.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * The text of a document kept outside the heap, in a direct buffer of UTF-16
+ * chars, so the size of the documents doesn't add to the heap the garbage
+ * collector goes through.
+ * <p>
+ * The buffer is a gap buffer: the text is stored before and after a gap of free
+ * space, and the gap is moved to the place of each edit. Typing at one place
+ * only moves the gap once, then each insert or remove only writes the chars
+ * inserted. The buffer doubles when the gap is full, and the old buffer is
+ * freed by the garbage collector with its (small) heap object.
+ * <p>
+ * The chars are moved in bulk, with the absolute bulk get and put of
+ * CharBuffer, within the buffer as the gap moves and between buffers as it
+ * grows. Inserted text is copied through a small array, so a large text is
+ * never copied to the heap at once.
+ * <p>
+ * chars - the buffer, text before gapStart and from gapEnd to its capacity
+ */
+public class OffHeapDocumentText implements DocumentText {
+    private static final int minCapacity = 64;
+    private static final int copyChunk = 8192;
+    private CharBuffer chars;
+    private int gapStart;
+    private int gapEnd;
+
+    public OffHeapDocumentText(CharSequence text) {
+        this(text, Math.max(minCapacity, text.length() * 2));
+    }
+
+    private OffHeapDocumentText(CharSequence text, int capacity) {
+        chars = allocate(capacity);
+        if (text instanceof OffHeapDocumentText) {
+            ((OffHeapDocumentText) text).copyTo(chars);
+        } else {
+            put(0, text);
+        }
+        gapStart = text.length();
+        gapEnd = chars.capacity();
+    }
+
+    /**
+     * @return a copy of the text without free space, for a text that is only
+     * read, like a checkpoint (see EditManager)
+     */
+    public static OffHeapDocumentText copyOf(CharSequence text) {
+        return new OffHeapDocumentText(text, text.length());
+    }
+
+    private static CharBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * 2).asCharBuffer();
+    }
+
+    public int length() {
+        return chars.capacity() - (gapEnd - gapStart);
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        return chars.get(index < gapStart ? index : index + gapEnd - gapStart);
+    }
+
+    public void insert(int offset, String text) {
+        if (offset < 0 || offset > length()) {
+            throw new StringIndexOutOfBoundsException(offset);
+        }
+        ensureGap(text.length());
+        moveGap(offset);
+        put(gapStart, text);
+        gapStart += text.length();
+    }
+
+    public void delete(int start, int end) {
+        int length = length();
+        end = Math.min(end, length);
+        if (start < 0 || start > length || start > end) {
+            throw new StringIndexOutOfBoundsException(start);
+        }
+        moveGap(start);
+        gapEnd += end - start;
+    }
+
+    public String substring(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new StringIndexOutOfBoundsException(start);
+        }
+        char[] copy = new char[end - start];
+        int beforeGap = Math.max(0, Math.min(end, gapStart) - start);
+        chars.get(start, copy, 0, beforeGap);
+        chars.get(start + beforeGap + gapEnd - gapStart, copy, beforeGap, copy.length - beforeGap);
+        return new String(copy);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
+
+    public String toString() {
+        return substring(0, length());
+    }
+
+    /**
+     * Moves the gap to offset, moving the chars between its place and offset to
+     * the other side of it. The chars may be moved onto part of their place,
+     * which the bulk put allows within a buffer.
+     */
+    private void moveGap(int offset) {
+        if (offset < gapStart) {
+            int count = gapStart - offset;
+            chars.put(gapEnd - count, chars, offset, count);
+            gapStart = offset;
+            gapEnd -= count;
+        } else if (offset > gapStart) {
+            int count = offset - gapStart;
+            chars.put(gapStart, chars, gapEnd, count);
+            gapStart = offset;
+            gapEnd += count;
+        }
+    }
+
+    /**
+     * Makes the gap at least size long, in a larger buffer if needed
+     */
+    private void ensureGap(int size) {
+        if (gapEnd - gapStart >= size) {
+            return;
+        }
+        int length = length();
+        CharBuffer larger = allocate(Math.max(chars.capacity() * 2, length + size + minCapacity));
+        int afterGap = chars.capacity() - gapEnd;
+        larger.put(0, chars, 0, gapStart);
+        larger.put(larger.capacity() - afterGap, chars, gapEnd, afterGap);
+        gapEnd = larger.capacity() - afterGap;
+        chars = larger;
+    }
+
+    /**
+     * Copies the text, without the gap, to the start of the buffer
+     */
+    private void copyTo(CharBuffer to) {
+        to.put(0, chars, 0, gapStart);
+        to.put(gapStart, chars, gapEnd, chars.capacity() - gapEnd);
+    }
+
+    /**
+     * Writes the text at index, through a small array
+     */
+    private void put(int index, CharSequence text) {
+        char[] chunk = new char[Math.min(text.length(), copyChunk)];
+        for (int done = 0; done < text.length(); done += chunk.length) {
+            int size = Math.min(chunk.length, text.length() - done);
+            if (text instanceof String) {
+                ((String) text).getChars(done, done + size, chunk, 0);
+            } else {
+                for (int i = 0; i < size; i++) {
+                    chunk[i] = text.charAt(done + i);
+                }
+            }
+            chars.put(index + done, chunk, 0, size);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package server;
+
+import handlers.EditManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps the caret and selection of every user in the document they have open,
+ * and broadcasts them to the other users of the same document.
+ * <p>
+ * Cursor updates of a user are coalesced: only the latest position is kept, and
+ * the positions that changed are sent every 1/rate seconds, so a user's cursor
+ * is broadcast at most rate times per second however fast it moves. Between two
+ * broadcasts the kept positions are rebased through the edits applied to the
+ * document.
+ * <p>
+ * Cursor :== cursor DocumentName Username Dot Mark
+ * Dot and Mark are -1 when the user left the document.
+ * <p>
+ * The cursors of each document are locked separately, so that the shards
+ * rebasing the cursors of their documents don't wait for each other.
+ */
+public class PresenceManager extends Thread {
+    private final Server server;
+    // document name -> username -> presence, each guarded by itself
+    private final Map<String, Map<String, Presence>> presences;
+    private final Queue<String[]> departures;
+    private volatile int rate;
+
+    private static class Presence {
+        int dot;
+        int mark;
+        boolean changed;
+    }
+
+    /**
+     * @param rate the maximum number of broadcasts per second of the cursor of a user
+     */
+    public PresenceManager(Server server, int rate) {
+        this.server = server;
+        this.presences = new ConcurrentHashMap<>();
+        this.departures = new ConcurrentLinkedQueue<>();
+        this.rate = rate;
+        setName("presence");
+        setDaemon(true);
+    }
+
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Records the latest caret and selection of a user
+     */
+    public void update(String documentName, String username, int dot, int mark) {
+        Map<String, Presence> users = presences.computeIfAbsent(documentName, d -> new HashMap<>());
+        synchronized (users) {
+            Presence presence = users.computeIfAbsent(username, u -> new Presence());
+            presence.dot = dot;
+            presence.mark = mark;
+            presence.changed = true;
+        }
+    }
+
+    /**
+     * Moves the cursors in the document according to an applied edit
+     * @param offset the position of the edit
+     * @param length the length of the edit, negative for a remove
+     */
+    public void rebase(String documentName, int offset, int length) {
+        Map<String, Presence> users = presences.get(documentName);
+        if (users == null) {
+            return;
+        }
+        synchronized (users) {
+            for (Presence presence : users.values()) {
+                presence.dot = EditManager.transformPosition(presence.dot, offset, length);
+                presence.mark = EditManager.transformPosition(presence.mark, offset, length);
+            }
+        }
+    }
+
+    /**
+     * Forgets the cursor of a user who left the document, and tells the others
+     */
+    public void remove(String documentName, String username) {
+        Map<String, Presence> users = presences.get(documentName);
+        if (users == null) {
+            return;
+        }
+        synchronized (users) {
+            if (users.remove(username) != null) {
+                departures.add(new String[]{documentName, username});
+            }
+        }
+    }
+
+    /**
+     * Broadcasts the changed cursors at the configured rate
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1, 1000 / rate));
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Sends every cursor that changed since the last flush to the other
+     * subscribers of its document
+     */
+    public void flush() {
+        List<String[]> messages = new ArrayList<>();
+        String[] departure;
+        while ((departure = departures.poll()) != null) {
+            messages.add(new String[]{departure[0], departure[1],
+                    "cursor " + departure[0] + " " + departure[1] + " -1 -1"});
+        }
+        for (Map.Entry<String, Map<String, Presence>> document : presences.entrySet()) {
+            Map<String, Presence> users = document.getValue();
+            synchronized (users) {
+                for (Map.Entry<String, Presence> user : users.entrySet()) {
+                    Presence presence = user.getValue();
+                    if (presence.changed) {
+                        presence.changed = false;
+                        messages.add(new String[]{document.getKey(), user.getKey(),
+                                "cursor " + document.getKey() + " " + user.getKey() + " "
+                                        + presence.dot + " " + presence.mark});
+                    }
+                }
+            }
+        }
+        for (String[] message : messages) {
+            // encoded once for all the subscribers
+            EncodedMessage cursor = new EncodedMessage(message[2]);
+            for (ClientConnectionThread t : server.getSubscribers(message[0])) {
+                if (!message[1].equals(t.getUsername()) && !t.sendMessage(cursor)) {
+                    server.evict(t);
+                }
+            }
+        }
+    }
+}
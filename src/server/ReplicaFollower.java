@@ -0,0 +1,250 @@
+package server;
+
+import handlers.Edit;
+import handlers.Edit.Type;
+import handlers.Encoding;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes a server a read-only follower of a primary server. The follower asks
+ * the primary to "follow", receives a copy of every document and then every
+ * edit the primary applies (see ReplicationFeed), applies them to its own
+ * documents and edit log, and broadcasts them to its own clients. Viewers can
+ * open the documents on the follower, so sending the changes to them costs the
+ * primary nothing. New documents and changes sent to the follower are
+ * redirected to the primary.
+ * <p>
+ * The edits of a document are applied in order, each to the version it was
+ * made after. An edit the copy already contains is skipped, and one that
+ * doesn't follow on from the copy (an edit was lost) makes the follower ask
+ * the primary for a new copy of the document with "follow DocumentName",
+ * skipping the edits of the document until the copy arrives, since it
+ * contains them.
+ * <p>
+ * The follower pings the primary every pingIntervalMillis, from its own
+ * thread, and the primary answers every ping, so a primary silent for longer
+ * than primaryTimeoutMillis is taken as lost and the follower reconnects.
+ * <p>
+ * The lag of the follower is the time between the primary applying an edit and
+ * the follower applying it. When the primary can't be reached, the follower
+ * keeps trying to reconnect, and after promoteAfterMillis (if positive) it
+ * promotes itself: it becomes a primary accepting changes, continuing from the
+ * versions it has. It is promoted at once when the primary hands off to it
+ * while shutting down (see Server.drain), and keeps the sessions of the
+ * primary, so its clients resume them here.
+ */
+public class ReplicaFollower extends Thread {
+    private final Server server;
+    private final String primaryHost;
+    private final int primaryPort;
+    private final long promoteAfterMillis;
+    private volatile Socket socket;
+    private volatile PrintWriter out;
+    private volatile boolean connected;
+    private volatile boolean promoted;
+    private volatile long lagMillis;
+    private volatile long disconnectedSince;
+    // the documents whose new copy was asked for and didn't arrive yet
+    private final Set<String> resyncing;
+    private static final int pingIntervalMillis = 10000;
+    // the primary answers every ping, so a longer silence means it is lost
+    private static final int primaryTimeoutMillis = 3 * pingIntervalMillis;
+    private static final int retryIntervalMillis = 1000;
+
+    /**
+     * @param promoteAfterMillis how long the primary may be unreachable before the
+     *                           follower promotes itself, 0 to never promote itself
+     */
+    public ReplicaFollower(Server server, String primaryHost, int primaryPort,
+                           long promoteAfterMillis) {
+        this.server = server;
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.promoteAfterMillis = promoteAfterMillis;
+        this.disconnectedSince = System.currentTimeMillis();
+        this.resyncing = ConcurrentHashMap.newKeySet();
+        setName("follower");
+        setDaemon(true);
+    }
+
+    /**
+     * Follows the primary until promoted
+     */
+    public void run() {
+        while (!promoted) {
+            Thread pinger = null;
+            try (Socket socket = new Socket(primaryHost, primaryPort)) {
+                this.socket = socket;
+                // a timeout is a broken connection, never the middle of a line
+                socket.setSoTimeout(primaryTimeoutMillis);
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                this.out = out;
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                resyncing.clear();
+                out.println("follow");
+                connected = true;
+                System.out.println("Following " + primaryHost + ":" + primaryPort);
+                pinger = new Thread(() -> ping(socket, out), "follower-ping");
+                pinger.setDaemon(true);
+                pinger.start();
+                while (!promoted) {
+                    String line = in.readLine();
+                    if (line == null) {
+                        break;
+                    }
+                    handle(line);
+                }
+            } catch (IOException e) {
+                // the primary is down or silent, retried below
+            }
+            if (pinger != null) {
+                pinger.interrupt();
+            }
+            if (connected) {
+                connected = false;
+                disconnectedSince = System.currentTimeMillis();
+                if (!promoted) {
+                    System.out.println("Lost the primary " + primaryHost + ":" + primaryPort);
+                }
+            }
+            if (promoteAfterMillis > 0
+                    && System.currentTimeMillis() - disconnectedSince >= promoteAfterMillis) {
+                promote();
+                return;
+            }
+            try {
+                Thread.sleep(retryIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pings the primary every pingIntervalMillis until the socket is closed,
+     * so that the follower, which only reads, is not evicted as idle, and the
+     * primary answers
+     */
+    private void ping(Socket socket, PrintWriter out) {
+        while (!socket.isClosed()) {
+            try {
+                Thread.sleep(pingIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            out.println("ping");
+        }
+    }
+
+    /**
+     * Applies a message of the primary's feed
+     */
+    private void handle(String line) {
+        String[] tokens = line.split(" ");
+        if (tokens[0].equals("replica")) {
+            String documentName = tokens[1];
+            int version = Integer.parseInt(tokens[2]);
+            String text = tokens.length > 3 ? Encoding.decode(tokens[3]) : "";
+            server.callOnShard(documentName, () -> {
+                server.replaceDocument(documentName, text, version);
+                resyncing.remove(documentName);
+                return null;
+            });
+        } else if (tokens[0].equals("applied")) {
+            String documentName = tokens[1];
+            String username = tokens[2];
+            int version = Integer.parseInt(tokens[3]);
+            int offset = Integer.parseInt(tokens[4]);
+            int length = Integer.parseInt(tokens[5]);
+            long appliedTime = Long.parseLong(tokens[6]);
+            String text = tokens.length > 7 ? Encoding.decode(tokens[7]) : "";
+            boolean applied = server.callOnShard(documentName, () -> {
+                // edits the copy of the document already contains, or the copy
+                // asked for will contain, are skipped
+                if (resyncing.contains(documentName) || (server.hasDocument(documentName)
+                        && server.getVersion(documentName) >= version)) {
+                    return true;
+                }
+                if (!server.hasDocument(documentName)
+                        || server.getVersion(documentName) != version - 1) {
+                    resyncing.add(documentName);
+                    return false;
+                }
+                if (length < 0) {
+                    server.delete(documentName, offset, offset - length);
+                    server.logEdit(new Edit(documentName, Type.REMOVE, text, version - 1,
+                            offset, length, username));
+                } else {
+                    server.insert(documentName, offset, text);
+                    server.logEdit(new Edit(documentName, Type.INSERT, text, version - 1,
+                            offset, length, username));
+                }
+                server.updateVersion(documentName, version);
+                server.broadcastChange(documentName, username, version, offset, length, null);
+                return true;
+            });
+            if (!applied) {
+                System.out.println("Edit " + version + " of " + documentName
+                        + " doesn't follow on from the copy, asking for a new copy");
+                out.println("follow " + documentName);
+            }
+            server.flushChanges(documentName);
+            lagMillis = Math.max(0, System.currentTimeMillis() - appliedTime);
+        } else if (tokens[0].equals("session")) {
+            server.adoptSession(tokens[1], tokens[2]);
+        } else if (tokens[0].equals("handoff")) {
+            System.out.println("The primary handed off");
+            promote();
+        }
+    }
+
+    /**
+     * Stops following the primary and accepts changes from now on
+     */
+    public void promote() {
+        if (!promoted) {
+            promoted = true;
+            System.out.println("Promoted to primary");
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true while the follower is read-only
+     */
+    public boolean isFollowing() {
+        return !promoted;
+    }
+
+    /**
+     * @return how long after the primary the last edit was applied, 0 once
+     * promoted, or -1 if the primary can't be reached
+     */
+    public long getLagMillis() {
+        if (promoted) {
+            return 0;
+        }
+        return connected ? lagMillis : -1;
+    }
+
+    /**
+     * @return the message sending the request to the primary instead
+     */
+    public String redirect(String request) {
+        return "redirect " + primaryHost + " " + primaryPort + " " + request;
+    }
+}
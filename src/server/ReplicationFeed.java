@@ -0,0 +1,104 @@
+package server;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The stream of applied edits sent by a primary to one of its followers (see
+ * ReplicaFollower). The edits are queued on the shard threads, in the order they
+ * are applied, and written to the follower by the feed's own thread, so a slow
+ * follower never holds up the shards. The edits of a document are only sent
+ * once its copy was queued, so the follower never gets an edit before the
+ * copy it applies to.
+ * <p>
+ * Replica :== replica DocumentName Version [EncodedText], the whole document
+ * Applied :== applied DocumentName Username Version Position Length TimeMillis [EncodedText]
+ * Version is the version after the edit, Length is negative for a remove, and
+ * the text is the inserted or removed text. TimeMillis is when the primary
+ * applied the edit, from which the follower measures its lag.
+ * Session :== session Token Username, a session the follower keeps so its user
+ * can resume it there
+ * The follower asks for a new copy of a document whose edits don't follow on
+ * from its copy with "follow DocumentName".
+ * Handoff :== handoff, the last message of a primary shutting down (see
+ * Server.drain): the follower has every edit and takes over as primary
+ */
+public class ReplicationFeed extends Thread {
+    private final Server server;
+    private final ClientConnectionThread connection;
+    private final BlockingQueue<String> messages;
+    // the documents whose copy was queued
+    private final Set<String> documents;
+    private static final String handoff = "handoff";
+
+    public ReplicationFeed(Server server, ClientConnectionThread connection) {
+        this.server = server;
+        this.connection = connection;
+        this.messages = new LinkedBlockingQueue<>();
+        this.documents = ConcurrentHashMap.newKeySet();
+        setName("feed-" + connection.getConnectionId());
+        setDaemon(true);
+    }
+
+    public ClientConnectionThread getConnection() {
+        return connection;
+    }
+
+    /**
+     * Queues a message for the follower
+     */
+    public void add(String message) {
+        messages.add(message);
+    }
+
+    /**
+     * Queues a copy of the document for the follower, after which the edits
+     * of the document are sent. Must be called on the shard of the document.
+     */
+    public void addReplica(String documentName, String message) {
+        documents.add(documentName);
+        messages.add(message);
+    }
+
+    /**
+     * Queues an edit of the document for the follower, unless the copy of the
+     * document wasn't queued yet: the copy will contain the edit. Must be
+     * called on the shard of the document.
+     */
+    public void addEdit(String documentName, String message) {
+        if (documents.contains(documentName)) {
+            messages.add(message);
+        }
+    }
+
+    /**
+     * Queues the handoff after the messages already queued, and waits until
+     * they are all written
+     */
+    public void handOff(long timeoutMillis) throws InterruptedException {
+        messages.add(handoff);
+        join(timeoutMillis);
+    }
+
+    /**
+     * Writes the queued messages until the follower is gone or took over
+     */
+    public void run() {
+        try {
+            while (true) {
+                String message = messages.take();
+                if (!connection.sendMessage(message)) {
+                    server.evict(connection);
+                    return;
+                }
+                if (message.equals(handoff)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the follower disconnected
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trigram index of the documents of a shard, used to find the documents
+ * containing a phrase without reading all of them.
+ * <p>
+ * Every sequence of three characters (trigram, lower case) of a document is
+ * indexed. A phrase can only be in the documents containing all of its
+ * trigrams, so only those are searched for the phrase. The index is kept up to
+ * date with every insert and remove: only the trigrams overlapping the changed
+ * text are removed and added, which takes time proportional to the length of
+ * the change, not of the document. The number of times each trigram occurs in a
+ * document is kept, so a trigram is only removed from the postings of a
+ * document when its last occurrence is.
+ * <p>
+ * The phrase is then confirmed in the candidates with the positions of their
+ * trigrams (see Positions), without reading their text: it is at an offset if
+ * each of its trigrams is at that offset plus its index in the phrase, which
+ * is only checked at the positions of its rarest trigram. Keeping positions up
+ * to date would move all of those after every change, so they are built from a
+ * copy of the text when a document is searched, and kept until it changes: a
+ * document searched again before its next change is not read at all.
+ * <p>
+ * postings - maps a trigram to the documents containing it
+ * counts - maps document name to the number of occurrences of its trigrams
+ * positions - maps document name to the positions of its trigrams, for the
+ * documents searched since their last change
+ * stamps - maps document name to the number of the last change of the
+ * document, counted over all documents, to tell whether positions built from
+ * a copy of its text are still those of the document
+ * Not thread safe, guarded by the shard.
+ */
+public class SearchIndex {
+    private final Map<Long, Set<String>> postings;
+    private final Map<String, Map<Long, Integer>> counts;
+    private final Map<String, Positions> positions;
+    private final Map<String, Long> stamps;
+    private long changes;
+
+    public SearchIndex() {
+        postings = new HashMap<>();
+        counts = new HashMap<>();
+        positions = new HashMap<>();
+        stamps = new HashMap<>();
+    }
+
+    /**
+     * Indexes a document from scratch, forgetting what was indexed of it before
+     */
+    public void index(String documentName, CharSequence text) {
+        remove(documentName);
+        counts.put(documentName, new HashMap<>());
+        stamps.put(documentName, ++changes);
+        addTrigrams(documentName, text, 1);
+    }
+
+    /**
+     * Forgets a document
+     */
+    public void remove(String documentName) {
+        positions.remove(documentName);
+        stamps.remove(documentName);
+        Map<Long, Integer> documentCounts = counts.remove(documentName);
+        if (documentCounts == null) {
+            return;
+        }
+        for (Long trigram : documentCounts.keySet()) {
+            removePosting(trigram, documentName);
+        }
+    }
+
+    /**
+     * Updates the index after a change of the document: removed was replaced
+     * by insertedLength characters at offset.
+     * @param text the text of the document after the change
+     */
+    public void update(String documentName, CharSequence text, int offset, String removed,
+                       int insertedLength) {
+        if (!counts.containsKey(documentName)) {
+            return;
+        }
+        positions.remove(documentName);
+        stamps.put(documentName, ++changes);
+        // the trigrams overlapping the change start at most 2 characters before it
+        // and end at most 2 characters after it
+        int from = Math.max(0, offset - 2);
+        int afterEnd = offset + insertedLength;
+        int to = Math.min(text.length(), afterEnd + 2);
+        String before = text.subSequence(from, offset).toString();
+        String after = text.subSequence(afterEnd, to).toString();
+        addTrigrams(documentName, before + removed + after, -1);
+        addTrigrams(documentName, text.subSequence(from, to), 1);
+    }
+
+    /**
+     * Adds (or removes, if delta is -1) the trigrams of the text to the document
+     */
+    private void addTrigrams(String documentName, CharSequence text, int delta) {
+        Map<Long, Integer> documentCounts = counts.get(documentName);
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            long trigram = trigram(text, i);
+            int count = documentCounts.getOrDefault(trigram, 0) + delta;
+            if (count > 0) {
+                if (documentCounts.put(trigram, count) == null) {
+                    postings.computeIfAbsent(trigram, t -> new HashSet<>()).add(documentName);
+                }
+            } else if (documentCounts.remove(trigram) != null) {
+                removePosting(trigram, documentName);
+            }
+        }
+    }
+
+    private void removePosting(Long trigram, String documentName) {
+        Set<String> documents = postings.get(trigram);
+        if (documents != null) {
+            documents.remove(documentName);
+            if (documents.isEmpty()) {
+                postings.remove(trigram);
+            }
+        }
+    }
+
+    /**
+     * @return the three characters at index, in lower case, packed in a long
+     */
+    private static long trigram(CharSequence text, int index) {
+        return ((long) Character.toLowerCase(text.charAt(index)) << 32)
+                | ((long) Character.toLowerCase(text.charAt(index + 1)) << 16)
+                | Character.toLowerCase(text.charAt(index + 2));
+    }
+
+    /**
+     * @param phrase at least 3 characters
+     * @return the documents that contain every trigram of the phrase, which
+     * include all the documents containing the phrase
+     */
+    public List<String> candidates(String phrase) {
+        Set<String> smallest = null;
+        List<Set<String>> sets = new ArrayList<>();
+        for (int i = 0; i + 3 <= phrase.length(); i++) {
+            Set<String> documents = postings.get(trigram(phrase, i));
+            if (documents == null) {
+                return Collections.emptyList();
+            }
+            sets.add(documents);
+            if (smallest == null || documents.size() < smallest.size()) {
+                smallest = documents;
+            }
+        }
+        List<String> result = new ArrayList<>();
+        if (smallest == null) {
+            return result;
+        }
+        for (String documentName : smallest) {
+            boolean inAll = true;
+            for (Set<String> documents : sets) {
+                if (!documents.contains(documentName)) {
+                    inAll = false;
+                    break;
+                }
+            }
+            if (inAll) {
+                result.add(documentName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the positions of the trigrams of the document, or null if they
+     * were not built since its last change
+     */
+    public Positions getPositions(String documentName) {
+        return positions.get(documentName);
+    }
+
+    /**
+     * @return the number of the last change of the document, to give back with
+     * the positions built from a copy of its text taken now (see putPositions)
+     */
+    public long getStamp(String documentName) {
+        return stamps.getOrDefault(documentName, -1L);
+    }
+
+    /**
+     * Keeps the positions of the trigrams of the document, built from a copy of
+     * its text, unless it changed since the copy was taken
+     * @param stamp the stamp of the document when the copy was taken
+     */
+    public void putPositions(String documentName, long stamp, Positions documentPositions) {
+        if (stamps.getOrDefault(documentName, -1L) == stamp) {
+            positions.put(documentName, documentPositions);
+        }
+    }
+
+    /**
+     * The positions of every trigram of a text, in increasing order. Immutable,
+     * so it is read outside the lock of the shard.
+     */
+    public static class Positions {
+        private final Map<Long, int[]> trigramPositions;
+
+        private Positions(Map<Long, int[]> trigramPositions) {
+            this.trigramPositions = trigramPositions;
+        }
+
+        /**
+         * @return the positions of the trigrams of the text
+         */
+        public static Positions of(CharSequence text) {
+            // count the occurrences of each trigram first, to fill arrays of
+            // the right size
+            Map<Long, int[]> counts = new HashMap<>();
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                counts.computeIfAbsent(trigram(text, i), t -> new int[1])[0]++;
+            }
+            Map<Long, int[]> trigramPositions = new HashMap<>();
+            for (Map.Entry<Long, int[]> count : counts.entrySet()) {
+                trigramPositions.put(count.getKey(), new int[count.getValue()[0]]);
+                count.getValue()[0] = 0;
+            }
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                long trigram = trigram(text, i);
+                trigramPositions.get(trigram)[counts.get(trigram)[0]++] = i;
+            }
+            return new Positions(trigramPositions);
+        }
+
+        /**
+         * @param phrase     at least 3 characters
+         * @param maxOffsets the maximum number of offsets returned
+         * @return the offsets of the phrase in the text, ignoring case, in
+         * increasing order
+         */
+        public List<Integer> find(String phrase, int maxOffsets) {
+            int[][] lists = new int[phrase.length() - 2][];
+            int rarest = 0;
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = trigramPositions.get(trigram(phrase, i));
+                if (lists[i] == null) {
+                    return Collections.emptyList();
+                }
+                if (lists[i].length < lists[rarest].length) {
+                    rarest = i;
+                }
+            }
+            List<Integer> offsets = new ArrayList<>();
+            for (int position : lists[rarest]) {
+                if (offsets.size() >= maxOffsets) {
+                    break;
+                }
+                int offset = position - rarest;
+                boolean found = offset >= 0;
+                for (int i = 0; i < lists.length && found; i++) {
+                    found = i == rarest || Arrays.binarySearch(lists[i], offset + i) >= 0;
+                }
+                if (found) {
+                    offsets.add(offset);
+                }
+            }
+            return offsets;
+        }
+    }
+}
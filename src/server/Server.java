@@ -1,144 +1,885 @@
 package server;
 
 import handlers.Edit;
-import handlers.EditManager;
+import handlers.Encoding;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Listens for the messages sent over the network between clients.
  * Updates its own states.
- * documentMap - maps document name to its text. All documents are stored in the server
+ * shards - the documents are partitioned among the shards by the hash of their
+ * names. Each shard keeps the text, version, edit history and subscribers of its
+ * documents, and applies the changes to them on its own thread, so the edits of
+ * documents of different shards are applied in parallel.
+ * documentNames - the sorted names of all the documents, read without going
+ * through the shards to list the documents (look, list)
  * serverSocket - socket of the server.
- * threadList - list of threads, each for a client connection
- * editManager - queue of edits
+ * connections - set of threads, each for a client connection. Concurrent, so
+ * broadcasts can iterate it while clients connect and disconnect
+ * usernames - the usernames in use, claimed atomically
+ * presenceManager - keeps and broadcasts the cursors of the users
+ * traceRecorder - records the messages received, null unless recording
+ * idleTimeoutMillis - connections that send nothing, not even a heartbeat, for
+ * that long are considered dead and evicted
+ * cluster - the nodes the documents are spread over, null if the server runs alone
+ * feeds - the followers of this server, each sent the edits applied here
+ * follower - set if this server is a follower of a primary
+ * rateLimit, rateBurst - the messages per second each connection may send in
+ * the long run, and at once (see TokenBucket), no limit if rateLimit is 0
+ * throttledMessages, throttledNanos - the number of messages delayed by the
+ * rate limit, and the total time they were delayed
+ * maxConnections - connections accepted beyond that number are refused
+ * maxConnectionsPerAddress - connections from an address that has that many
+ * are refused, no limit if 0
+ * addressConnections - maps each client address to its number of connections
+ * refusedConnections - the number of connections refused by these limits
+ * sessions - maps session token to the session of a user, kept for
+ * sessionTimeoutMillis after its connection ended so the user can resume it
+ * draining - set once the server is shutting down (see drain), no connection
+ * is accepted anymore
  */
 public class Server {
-    private final Map<String, StringBuffer> documentMap;
-    private final Map<String, Integer> documentVersionMap;
+    private final DocumentShard[] shards;
+    private final DocumentNameIndex documentNames;
     private ServerSocket serverSocket;
-    private ArrayList<ClientConnectionThread> threadList;
-    private ArrayList<String> usernameList;
-    private final EditManager editManager;
+    private final Set<ClientConnectionThread> connections;
+    private final Set<String> usernames;
+    private final PresenceManager presenceManager;
+    private static final int defaultPresenceRate = 10;
+    private final AtomicInteger nextConnectionId;
+    private volatile TraceRecorder traceRecorder;
+    private volatile int idleTimeoutMillis;
+    private static final int defaultIdleTimeoutMillis = 30000;
+    private volatile Cluster cluster;
+    private final Set<ReplicationFeed> feeds;
+    private volatile ReplicaFollower follower;
+    private volatile int rateLimit;
+    private volatile int rateBurst;
+    private static final int defaultRateLimit = 200;
+    private static final int defaultRateBurst = 400;
+    private final AtomicLong throttledMessages;
+    private final AtomicLong throttledNanos;
+    private volatile int maxConnections;
+    private volatile int maxConnectionsPerAddress;
+    private static final int defaultMaxConnections = 1000;
+    private static final int defaultMaxConnectionsPerAddress = 256;
+    private static final int defaultAcceptBacklog = 50;
+    private static final int acceptRetryMillis = 100;
+    private static final String serverFull = "Error: The server is full, try again later.";
+    private static final String addressFull = "Error: Too many connections from your address.";
+    private final Map<InetAddress, Integer> addressConnections;
+    private final AtomicLong refusedConnections;
+    private final Map<String, Session> sessions;
+    private final SecureRandom random;
+    private static final int sessionTimeoutMillis = 300000;
+    private volatile boolean draining;
+    private static final int evictedJoinMillis = 1000;
 
     public Server(int port, Map<String, StringBuffer> documents,
                   Map<String, Integer> version) {
+        this(port, documents, version, defaultShardCount());
+    }
+
+    /**
+     * @param shardCount the number of shards the documents are partitioned in
+     */
+    public Server(int port, Map<String, StringBuffer> documents,
+                  Map<String, Integer> version, int shardCount) {
+        this(port, documents, version, shardCount, defaultAcceptBacklog);
+    }
+
+    /**
+     * @param shardCount    the number of shards the documents are partitioned in
+     * @param acceptBacklog the number of connections the system queues until
+     *                      they are accepted, further connections are refused
+     *                      by the system
+     */
+    public Server(int port, Map<String, StringBuffer> documents,
+                  Map<String, Integer> version, int shardCount, int acceptBacklog) {
+        this(documents, version, shardCount);
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server created. Port: " + port);
+            serverSocket = new ServerSocket(port, acceptBacklog);
+            System.out.println("Server created. Port: " + port + ", shards: " + shardCount);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        documentMap = Collections.synchronizedMap(documents);
-        threadList = new ArrayList<>();
-        documentVersionMap = Collections.synchronizedMap(version);
-        usernameList = new ArrayList<>();
-        editManager = new EditManager();
+    }
+
+    /**
+     * Creates a server that does not listen on any socket, used to replay
+     * recorded traces.
+     */
+    public Server(Map<String, StringBuffer> documents,
+                  Map<String, Integer> version) {
+        this(documents, version, defaultShardCount());
+    }
+
+    private Server(Map<String, StringBuffer> documents,
+                   Map<String, Integer> version, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        shards = new DocumentShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new DocumentShard(i);
+        }
+        documentNames = new DocumentNameIndex();
+        for (Map.Entry<String, StringBuffer> document : documents.entrySet()) {
+            Integer documentVersion = version.get(document.getKey());
+            getShard(document.getKey()).addDocument(document.getKey(), document.getValue(),
+                    documentVersion == null ? 1 : documentVersion);
+            documentNames.add(document.getKey());
+        }
+        connections = ConcurrentHashMap.newKeySet();
+        feeds = ConcurrentHashMap.newKeySet();
+        usernames = ConcurrentHashMap.newKeySet();
+        presenceManager = new PresenceManager(this, defaultPresenceRate);
+        nextConnectionId = new AtomicInteger(1);
+        idleTimeoutMillis = defaultIdleTimeoutMillis;
+        rateLimit = defaultRateLimit;
+        rateBurst = defaultRateBurst;
+        throttledMessages = new AtomicLong();
+        throttledNanos = new AtomicLong();
+        maxConnections = defaultMaxConnections;
+        maxConnectionsPerAddress = defaultMaxConnectionsPerAddress;
+        addressConnections = new ConcurrentHashMap<>();
+        refusedConnections = new AtomicLong();
+        sessions = new ConcurrentHashMap<>();
+        random = new SecureRandom();
+    }
+
+    /**
+     * @return one shard per available processor
+     */
+    public static int defaultShardCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the shard the document belongs to, whether it exists or not
+     */
+    public DocumentShard getShard(String documentName) {
+        return shards[Math.floorMod(documentName.hashCode(), shards.length)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Runs the task on the thread of the shard of the document and waits for its
+     * result. The changes of a document must be applied this way, so that they
+     * are applied one at a time. The documents of the shard take turns (see
+     * DocumentShard).
+     */
+    public <T> T callOnShard(String documentName, Callable<T> task) {
+        return getShard(documentName).call(documentName, task);
     }
 
     /**
      * Listening and handling client connections. Never
-     * returns unless an exception is thrown (if the main server socket is broken)
+     * returns unless the server is drained (see drain)
+     * <p>
+     * A connection is only given a thread if the server has fewer than
+     * maxConnections and its address fewer than maxConnectionsPerAddress.
+     * Otherwise it is sent an error saying why and closed, so a reconnect storm
+     * gets answers instead of exhausting the threads and memory of the server.
      */
     public void serve() {
+        new ConnectionReaper(this).start();
+        presenceManager.start();
         while (true) {
             try {
                 Socket socket = serverSocket.accept();
+                String refusal = admit(socket.getInetAddress());
+                if (refusal != null) {
+                    refuse(socket, refusal);
+                    continue;
+                }
                 // handle the client by making a new ClientConnectionThread thread
                 // running for that client,
-                // also add that thread to the threadList so that the server
+                // also add that thread to the connections so that the server
                 // could send the message to the client
                 ClientConnectionThread t = new ClientConnectionThread(socket, this);
-                threadList.add(t);
+                addThread(t);
                 t.start();
             } catch (IOException e) {
+                if (draining) {
+                    return;
+                }
                 e.printStackTrace();
+                // out of file descriptors, most likely: give connections time to end
+                try {
+                    Thread.sleep(acceptRetryMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
         }
     }
 
-    public synchronized Map<String, StringBuffer> getDocumentMap() {
-        return documentMap;
+    /**
+     * Shuts the server down without losing an edit, or making its clients all
+     * come back at once.
+     * <p>
+     * The listening socket is closed first, so a new server can listen on the
+     * port right away. Every client is sent "move Host Port Millis": it stops
+     * editing, closes its connection, and resumes its session at the successor
+     * (or the same address after a restart) after a random part of Millis. Its
+     * edits sent before are read and applied before the connection ends, and
+     * the clients that haven't left after graceMillis are evicted. Then the
+     * followers are sent the sessions, so the users can resume them there, and
+     * told to take over (see ReplicationFeed), once every edit was written to
+     * them. Last, the trace is flushed and closed.
+     * <p>
+     * A server keeps its documents in memory only, so a restart without a
+     * follower to take over starts with no documents.
+     * @param successor host:port of the server the clients move to, usually a
+     *                  follower of this one, or null to reconnect to this address
+     * @param spreadMillis the time over which the clients reconnect
+     * @param graceMillis the time the clients and followers have to leave
+     */
+    public void drain(String successor, int spreadMillis, long graceMillis) {
+        draining = true;
+        System.out.println("Draining " + connections.size() + " connections");
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+        String move = "move - 0 " + spreadMillis;
+        if (successor != null) {
+            int colon = successor.lastIndexOf(':');
+            move = "move " + successor.substring(0, colon) + " "
+                    + successor.substring(colon + 1) + " " + spreadMillis;
+        }
+        for (ClientConnectionThread t : getClients()) {
+            t.sendMessage(move);
+        }
+        long deadline = System.currentTimeMillis() + graceMillis;
+        try {
+            // a connection thread ends after applying the edits read before the
+            // end of its connection
+            for (ClientConnectionThread t : getClients()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left > 0) {
+                    t.join(left);
+                }
+            }
+            List<ClientConnectionThread> remaining = getClients();
+            if (!remaining.isEmpty()) {
+                System.out.println("Evicting " + remaining.size() + " connections still open");
+            }
+            for (ClientConnectionThread t : remaining) {
+                evict(t);
+                t.join(evictedJoinMillis);
+            }
+            for (Session session : sessions.values()) {
+                if (session.getUsername() != null) {
+                    publish("session " + session.getToken() + " " + session.getUsername());
+                }
+            }
+            for (ReplicationFeed feed : feeds) {
+                feed.handOff(Math.max(evictedJoinMillis, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.close();
+        }
+        System.out.println("Drained");
+    }
 
+    /**
+     * Stops the threads of the shards. A server that is not listening, like
+     * one replaying a trace, is closed once done with; a listening one is
+     * drained first.
+     */
+    public void close() {
+        for (DocumentShard shard : shards) {
+            shard.shutdown();
+        }
     }
 
-    public synchronized boolean isUsernameAvailable(String name) {
-        return !usernameList.contains(name);
+    /**
+     * @return the connections of clients, not followers
+     */
+    private List<ClientConnectionThread> getClients() {
+        List<ClientConnectionThread> clients = new ArrayList<>(connections);
+        for (ReplicationFeed feed : feeds) {
+            clients.remove(feed.getConnection());
+        }
+        return clients;
+    }
+
+    /**
+     * Counts a new connection from the address, if the limits allow it. Only
+     * called by the accepting thread, so the number of connections can only go
+     * down between the check and the connection being added.
+     * @return the error to refuse the connection with, null if it is admitted
+     */
+    private String admit(InetAddress address) {
+        if (connections.size() >= maxConnections) {
+            return serverFull;
+        }
+        int count = addressConnections.merge(address, 1, Integer::sum);
+        int limit = maxConnectionsPerAddress;
+        if (limit > 0 && count > limit) {
+            release(address);
+            return addressFull;
+        }
+        return null;
     }
 
-    public synchronized void addUsername(String name) {
-        usernameList.add(name);
+    /**
+     * Uncounts a connection from the address
+     */
+    private void release(InetAddress address) {
+        addressConnections.computeIfPresent(address, (a, count) -> count == 1 ? null : count - 1);
     }
 
-    public synchronized Map<String, Integer> getDocumentVersionMap() {
-        return documentVersionMap;
+    /**
+     * Sends the error to the client and closes its connection. The error fits
+     * in the empty send buffer of the new socket, so the accepting thread never
+     * waits for the client.
+     */
+    private void refuse(Socket socket, String error) {
+        System.out.println("Refused a connection from " + socket.getInetAddress() + " ("
+                + refusedConnections.incrementAndGet() + " refused): " + error);
+        try (Socket s = socket; OutputStream out = s.getOutputStream()) {
+            out.write(EncodedMessage.encode(error));
+            out.flush();
+        } catch (IOException e) {
+            // the client is gone already
+        }
+    }
+
+    /**
+     * Limits the number of connections, checked when a connection is accepted
+     */
+    public void setMaxConnections(int max) {
+        maxConnections = max;
+    }
+
+    /**
+     * Limits the number of connections from one address, 0 for no limit
+     */
+    public void setMaxConnectionsPerAddress(int max) {
+        maxConnectionsPerAddress = max;
+    }
+
+    public void addThread(ClientConnectionThread t) {
+        connections.add(t);
+    }
+
+    /**
+     * @return a read-only view of the connections. Iterating it never throws
+     * ConcurrentModificationException, connections added or removed meanwhile
+     * may or may not be seen.
+     */
+    public Set<ClientConnectionThread> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    /**
+     * Makes the connection a subscriber of the document it opened, and no longer
+     * of the document it had open before
+     */
+    public void subscribe(String documentName, ClientConnectionThread t) {
+        String previous = t.getOpenDocument();
+        if (documentName.equals(previous)) {
+            return;
+        }
+        unsubscribe(t);
+        t.setOpenDocument(documentName);
+        getShard(documentName).addSubscriber(documentName, t);
+    }
+
+    /**
+     * Removes the connection from the subscribers of the document it has open,
+     * and its user's cursor from that document
+     */
+    public void unsubscribe(ClientConnectionThread t) {
+        String documentName = t.getOpenDocument();
+        if (documentName == null) {
+            return;
+        }
+        t.setOpenDocument(null);
+        getShard(documentName).removeSubscriber(documentName, t);
+        if (t.getUsername() != null) {
+            presenceManager.remove(documentName, t.getUsername());
+        }
+    }
+
+    /**
+     * @return the connections that have the document open
+     */
+    public Set<ClientConnectionThread> getSubscribers(String documentName) {
+        return getShard(documentName).getSubscribers(documentName);
+    }
+
+    public PresenceManager getPresenceManager() {
+        return presenceManager;
+    }
+
+    /**
+     * Makes the server a node of the cluster, serving only the documents it owns
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @return the cluster the server is a node of, or null if it runs alone
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Makes the server a follower of a primary, read-only until promoted
+     */
+    public void setFollower(ReplicaFollower follower) {
+        this.follower = follower;
+    }
+
+    /**
+     * @return the follower of the primary if this server is one, or null
+     */
+    public ReplicaFollower getFollower() {
+        return follower;
+    }
+
+    /**
+     * @return true if the server is a follower that doesn't accept changes
+     */
+    public boolean isReadOnly() {
+        ReplicaFollower f = follower;
+        return f != null && f.isFollowing();
+    }
+
+    /**
+     * Starts sending the applied edits to a follower. The follower first gets a
+     * copy of every document, taken on the shard of the document so that the
+     * edits queued after it are exactly the ones the copy doesn't contain; the
+     * edits of a document applied before its copy is taken are not sent (see
+     * ReplicationFeed).
+     */
+    public void addFeed(ReplicationFeed feed) {
+        feeds.add(feed);
+        for (DocumentShard shard : shards) {
+            for (String documentName : shard.getDocumentNames()) {
+                shard.call(() -> {
+                    sendReplica(feed, documentName);
+                    return null;
+                });
+            }
+        }
+        feed.start();
+    }
+
+    /**
+     * Queues a new copy of the document for the follower of the connection,
+     * whose copy of the document fell behind
+     */
+    public void resendReplica(ClientConnectionThread connection, String documentName) {
+        for (ReplicationFeed feed : feeds) {
+            if (feed.getConnection() == connection) {
+                callOnShard(documentName, () -> {
+                    if (hasDocument(documentName)) {
+                        sendReplica(feed, documentName);
+                    }
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Queues a copy of the document for the follower. Must be called on the
+     * shard of the document.
+     */
+    private void sendReplica(ReplicationFeed feed, String documentName) {
+        DocumentSnapshot snapshot = getShard(documentName).getSnapshot(documentName);
+        feed.addReplica(documentName, "replica " + documentName + " " + snapshot.getVersion()
+                + " " + Encoding.encode(snapshot.getText()));
+    }
+
+    /**
+     * Sends a message that is not about a document to every follower
+     */
+    public void publish(String message) {
+        for (ReplicationFeed feed : feeds) {
+            feed.add(message);
+        }
+    }
+
+    /**
+     * Sends an edit just applied to the document to every follower that has a
+     * copy of the document. Must be called on the shard of the document, so
+     * the followers get the edits of a document in the order they were applied.
+     */
+    public void publishEdit(String documentName, String message) {
+        for (ReplicationFeed feed : feeds) {
+            feed.addEdit(documentName, message);
+        }
+    }
+
+    /**
+     * Sends a document just created to every follower. Must be called on the
+     * shard of the document.
+     */
+    public void publishNewDocument(String documentName) {
+        for (ReplicationFeed feed : feeds) {
+            sendReplica(feed, documentName);
+        }
     }
 
     /**
-     * "document1 document2 ..."
+     * Replaces the text and version of a document, creating it if needed, and
+     * starts its edit log over. Used by followers.
      */
-    public synchronized String getAllDocuments() {
+    public void replaceDocument(String documentName, String text, int version) {
+        getShard(documentName).addDocument(documentName, text, version);
+        documentNames.add(documentName);
+    }
+
+    public void setIdleTimeoutMillis(int millis) {
+        idleTimeoutMillis = millis;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Limits the messages of the connections made from now on
+     * @param rate  the messages per second a connection may send, 0 for no limit
+     * @param burst the messages a connection may send at once
+     */
+    public void setRateLimit(int rate, int burst) {
+        rateLimit = rate;
+        rateBurst = burst;
+    }
+
+    /**
+     * @return the rate limiter of a new connection, null if there is no limit
+     */
+    public TokenBucket newTokenBucket() {
+        int rate = rateLimit;
+        return rate > 0 ? new TokenBucket(rate, Math.max(1, rateBurst)) : null;
+    }
+
+    /**
+     * Counts a message delayed by the rate limit of its connection
+     */
+    public void recordThrottled(long nanos) {
+        throttledMessages.incrementAndGet();
+        throttledNanos.addAndGet(nanos);
+    }
+
+    public long getThrottledMessages() {
+        return throttledMessages.get();
+    }
+
+    public long getThrottledMillis() {
+        return throttledNanos.get() / 1000000;
+    }
+
+    /**
+     * Closes a dead connection and forgets it, freeing its username
+     */
+    public void evict(ClientConnectionThread t) {
+        System.out.println("Evicting connection " + t.getConnectionId());
+        t.close();
+        removeThread(t);
+    }
+
+    /**
+     * @return a new id, unique among the connections of this server
+     */
+    public int nextConnectionId() {
+        return nextConnectionId.getAndIncrement();
+    }
+
+    /**
+     * Starts recording every message received to the given recorder
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        traceRecorder = recorder;
+    }
+
+    /**
+     * Records the message in the trace if the server is recording
+     * @param connectionId the id of the connection that received the message
+     */
+    public void recordMessage(int connectionId, String message) {
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.record(connectionId, message);
+        }
+    }
+
+    /**
+     * @return true if the document exists
+     */
+    public boolean hasDocument(String documentName) {
+        return getShard(documentName).hasDocument(documentName);
+    }
+
+    public boolean isUsernameAvailable(String name) {
+        return !usernames.contains(name);
+    }
+
+    /**
+     * Claims the username if nobody uses it. Checking and claiming is atomic, so
+     * two clients can't get the same name.
+     * @return true if the username was claimed, false if it is already in use
+     */
+    public boolean claimUsername(String name) {
+        return usernames.add(name);
+    }
+
+    /**
+     * Makes the username available again
+     */
+    public void releaseUsername(String name) {
+        usernames.remove(name);
+    }
+
+    /**
+     * Starts a session for the user, with a new random token
+     */
+    public Session openSession(String username) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        Session session = new Session(token.toString(), username);
+        sessions.put(session.getToken(), session);
+        return session;
+    }
+
+    /**
+     * Keeps a session handed over by a primary shutting down, so its user can
+     * resume it here. It is disconnected until then, and expires like the others.
+     */
+    public void adoptSession(String token, String username) {
+        Session session = new Session(token, username);
+        session.setEndedAt(System.currentTimeMillis());
+        sessions.putIfAbsent(token, session);
+    }
+
+    /**
+     * @return the session of the token, or null if there is none or it expired
+     */
+    public Session getSession(String token) {
+        return sessions.get(token);
+    }
+
+    /**
+     * Forgets the session, after its user said bye
+     */
+    public void closeSession(Session session) {
+        sessions.remove(session.getToken());
+    }
+
+    /**
+     * Forgets the sessions whose connection ended more than sessionTimeoutMillis
+     * ago and wasn't resumed
+     */
+    public void expireSessions(long now) {
+        sessions.values().removeIf(session -> session.getEndedAt() != 0
+                && now - session.getEndedAt() > sessionTimeoutMillis);
+    }
+
+    /**
+     * " document1 document2 ...", the documents of this server only, sorted
+     */
+    public String getAllDocuments() {
         StringBuilder docNames = new StringBuilder();
-        for (String key : documentMap.keySet()) {
+        for (String key : documentNames.getNames()) {
             docNames.append(" ").append(key);
         }
         return docNames.toString();
     }
 
+    /**
+     * @return a page of the sorted names of the documents of this server only
+     * (see DocumentNameIndex)
+     */
+    public DocumentNameIndex.Page listDocuments(String prefix, String after, int limit) {
+        return documentNames.page(prefix, after, limit);
+    }
+
     /**
      * Manage the edit made by a client
      * @param offset the position of the edit
      * @return a string that is transformed message with version and offset
      * corrected to match the current document on server
      */
-    public synchronized String manageEdit(String documentName, int version,
-                                          int offset) {
-        return editManager.manageEdit(documentName, version, offset);
+    public String manageEdit(String documentName, int version, int offset) {
+        return getShard(documentName).manageEdit(documentName, version, offset);
     }
 
-    public synchronized boolean isDocumentMapEmpty() {
-        return documentMap.isEmpty();
+    public boolean isDocumentMapEmpty() {
+        return documentNames.isEmpty();
     }
 
     /**
      * Add the edit to the queue
      */
-    public synchronized void logEdit(Edit edit) {
-        editManager.logEdit(edit);
+    public void logEdit(Edit edit) {
+        getShard(edit.getDocumentName()).logEdit(edit);
+        presenceManager.rebase(edit.getDocumentName(), edit.getOffset(), edit.getLength());
+    }
+
+    /**
+     * Adds an edit undoing (or redoing) an edit to the queue
+     * @param redo true if the edit redoes an undone edit
+     */
+    public void logUndo(Edit edit, boolean redo) {
+        getShard(edit.getDocumentName()).logUndo(edit, redo);
+        presenceManager.rebase(edit.getDocumentName(), edit.getOffset(), edit.getLength());
+    }
+
+    /**
+     * @return the version of the last edit of the user to undo (or redo), or null
+     * if there is none. It can't be undone (or redone) again.
+     */
+    public Integer popUndo(String documentName, String username, boolean redo) {
+        return getShard(documentName).popUndo(documentName, username, redo);
     }
 
-    public synchronized void removeThread(ClientConnectionThread t) {
-        usernameList.remove(t.getUsername());
-        threadList.remove(t);
+    /**
+     * @return the text of the document at a past version, rebuilt from its
+     * checkpoints and edit log, or null if the version is not in its history
+     */
+    public String getTextAt(String documentName, int version) {
+        return getShard(documentName).getTextAt(documentName, version);
+    }
+
+    /**
+     * @return the edits of the document from the version on, or null if its
+     * history doesn't go back to that version
+     */
+    public List<Edit> getEditsFrom(String documentName, int version) {
+        return getShard(documentName).getEditsFrom(documentName, version);
+    }
+
+    /**
+     * Finds the phrase, ignoring case, in all the documents of the server
+     * @param phrase at least 3 characters
+     * @param maxOffsets the maximum number of offsets returned per document
+     * @return maps the name of every document containing the phrase to the
+     * offsets of the phrase in it
+     */
+    public Map<String, List<Integer>> search(String phrase, int maxOffsets) {
+        Map<String, List<Integer>> results = new TreeMap<>();
+        for (DocumentShard shard : shards) {
+            results.putAll(shard.search(phrase, maxOffsets));
+        }
+        return results;
+    }
+
+    /**
+     * Keeps the texts of the documents created from now on outside the heap, so
+     * that the heap doesn't grow with the size of the documents (see
+     * OffHeapDocumentText)
+     */
+    public void setOffHeap(boolean offHeap) {
+        for (DocumentShard shard : shards) {
+            shard.setOffHeap(offHeap);
+        }
+    }
+
+    /**
+     * Sets the number of edits between two checkpoints of a document, which
+     * bounds the time to rebuild a past version (see EditManager)
+     */
+    public void setCheckpointInterval(int interval) {
+        for (DocumentShard shard : shards) {
+            shard.setCheckpointInterval(interval);
+        }
+    }
+
+    /**
+     * @return the edit undoing the edit of the version, to apply to the current
+     * document, or null if it can't be computed (see EditManager.invert)
+     */
+    public Edit invert(String documentName, int version) {
+        return getShard(documentName).invert(documentName, version);
+    }
+
+    /**
+     * Forgets the connection and frees its username. Removing a connection
+     * that was already removed does nothing.
+     */
+    public void removeThread(ClientConnectionThread t) {
+        unsubscribe(t);
+        for (ReplicationFeed feed : feeds) {
+            if (feed.getConnection() == t && feeds.remove(feed)) {
+                feed.interrupt();
+            }
+        }
+        String username = t.getUsername();
+        if (connections.remove(t)) {
+            // replayed connections (see TraceReplay) have no socket
+            if (t.getSocket() != null) {
+                release(t.getSocket().getInetAddress());
+            }
+            Session session = t.getSession();
+            if (session != null) {
+                session.setEndedAt(System.currentTimeMillis());
+            }
+            if (username != null) {
+                usernames.remove(username);
+            }
+        }
     }
 
     /**
-     * Creates a new document and adds it to the documentMap and the
-     * documentVersionMap with version 1.
+     * Creates a new document in its shard with version 1.
      */
-    public synchronized void addNewDocument(String documentName) {
-        documentMap.put(documentName, new StringBuffer());
-        documentVersionMap.put(documentName, 1);
-        editManager.createNewlog(documentName);
+    public void addNewDocument(String documentName) {
+        getShard(documentName).addDocument(documentName, "", 1);
+        documentNames.add(documentName);
     }
 
     /**
-     * Updates the version of the specified documentName in the
-     * documentVersionMap. If documentName is not yet a key in
-     * documentVersionMap, a new key-value pair is added to the map.
+     * Updates the version of the specified documentName. If the document has no
+     * version yet, it is added.
      */
-    public synchronized void updateVersion(String documentName, int version) {
-        documentVersionMap.put(documentName, version);
+    public void updateVersion(String documentName, int version) {
+        getShard(documentName).updateVersion(documentName, version);
     }
 
-    public synchronized int getVersion(String documentName) {
-        return documentVersionMap.get(documentName);
+    public int getVersion(String documentName) {
+        return getShard(documentName).getVersion(documentName);
     }
 
     /**
@@ -147,62 +888,116 @@ public class Server {
      * @param offset       the starting position of the text going to be deleted
      * @param endPosition  the end position of the text going to be deleted
      */
-    public synchronized void delete(String documentName, int offset,
-                                    int endPosition) {
+    public void delete(String documentName, int offset, int endPosition) {
         if (offset < 0 || endPosition < 1) {
             throw new RuntimeException("invalid args");
         }
-        documentMap.get(documentName).delete(offset, endPosition);
+        getShard(documentName).delete(documentName, offset, endPosition);
     }
 
     /**
      * Inserts the text into the specified document at the specified offset
      */
-    public synchronized void insert(String documentName, int offset, String text) {
-        documentMap.get(documentName).insert(offset, text);
+    public void insert(String documentName, int offset, String text) {
+        getShard(documentName).insert(documentName, offset, text);
+    }
+
+    public String getDocumentText(String documentName) {
+        return getShard(documentName).getDocumentText(documentName);
+    }
+
+    /**
+     * @return the text and the version of the document, taken atomically so that
+     * the text is exactly the one of that version
+     */
+    public DocumentSnapshot getSnapshot(String documentName) {
+        return getShard(documentName).getSnapshot(documentName);
+    }
+
+    /**
+     * Like getSnapshot, but only copies the text from start to end (clamped to
+     * the document) out of the document store.
+     */
+    public DocumentSnapshot getRangeSnapshot(String documentName, int start, int end) {
+        return getShard(documentName).getRangeSnapshot(documentName, start, end);
     }
 
-    public synchronized String getDocumentText(String documentName) {
-        String document;
-        document = documentMap.get(documentName).toString();
-        return document;
+    /**
+     * Converts a line and column (from 0) of the document at a version to an
+     * offset
+     * @return the offset, or -1 if the version is not in the history
+     */
+    public int toOffset(String documentName, int version, int line, int column) {
+        return getShard(documentName).toOffset(documentName, version, line, column);
+    }
+
+    /**
+     * @return the offset of the start of the line (from 0) of the document
+     */
+    public int getLineStart(String documentName, int line) {
+        return getShard(documentName).getLineStart(documentName, line);
+    }
+
+    /**
+     * @return the text of the document from start to end, both clamped to the document
+     */
+    public String getDocumentRange(String documentName, int start, int end) {
+        return getShard(documentName).getDocumentRange(documentName, start, end);
     }
 
     /**
      * Returns the length of the specified document
      */
-    public synchronized int getDocumentLength(String documentName) {
-        return documentMap.get(documentName).length();
-    }
-
-    /**
-     * Sends a message from every other thread in the threadList except for the
-     * thread that originally sent the message (no duplicate messages) and
-     * threads that has already closed its on and in (i.e, client disconnects).
-     * @param message the String that the server is going to sent to clients
-     * @param thread  sending thread
-     */
-    public void returnMessageToEveryOtherClient(String message,
-                                                ClientConnectionThread thread) {
-        for (ClientConnectionThread t : threadList) {
-            if (!thread.equals(t) && !t.getSocket().isClosed()) {
-                // if the thread is still alive and it's not the one that sends
-                // the request, send message
-                PrintWriter out;
-                if (t.getSocket().isConnected()) {
-                    synchronized (t) {
-                        try {
-                            // for those threads, open a printWriter and write
-                            // message to its socket.
-                            out = new PrintWriter(t.getSocket()
-                                    .getOutputStream(), true);
-                            out.println(message);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+    public int getDocumentLength(String documentName) {
+        return getShard(documentName).getDocumentLength(documentName);
+    }
+
+    /**
+     * Queues the message of a change just applied to the document for each of
+     * its subscribers, and for the connection that made it: a vchange (see
+     * Viewport) for a connection that has the document open in partial mode,
+     * with the inserted text if any, read and encoded once, or else the change message with the whole text, which is
+     * only read and encoded if some connection needs it, and then once. Must be
+     * called on the shard of the document right after the change is applied;
+     * the messages are sent by flushChanges.
+     * @param requester the connection that made the change, or null if the
+     *                  change comes from the primary
+     */
+    public void broadcastChange(String documentName, String username, int version, int offset,
+                                int length, ClientConnectionThread requester) {
+        DocumentShard shard = getShard(documentName);
+        List<ClientConnectionThread> targets = new ArrayList<>(shard.getSubscribers(documentName));
+        if (requester != null && !targets.contains(requester)) {
+            targets.add(requester);
+        }
+        ChangeOutbox outbox = shard.getOutbox(documentName);
+        Map<Integer, String> insertions = new HashMap<>();
+        EncodedMessage change = null;
+        for (ClientConnectionThread t : targets) {
+            // replayed connections (see TraceReplay) are sent nothing
+            if (t.getSocket() == null) {
+                continue;
+            }
+            String viewportMessage = t.toViewportMessage(documentName, username, version,
+                    offset, length, insertions);
+            if (viewportMessage != null) {
+                outbox.add(t, new EncodedMessage(viewportMessage));
+                continue;
+            }
+            if (change == null) {
+                change = new EncodedMessage("change " + documentName + " " + username + " "
+                        + version + " " + offset + " " + length + " "
+                        + Encoding.encode(shard.getDocumentText(documentName)));
             }
+            outbox.add(t, change);
         }
     }
+
+    /**
+     * Sends the change messages of the document queued by broadcastChange, in
+     * the order of the changes (see ChangeOutbox). Called out of the shard.
+     */
+    public void flushChanges(String documentName) {
+        getShard(documentName).getOutbox(documentName).flush(this);
+    }
 }
@@ -4,23 +4,215 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Starts the server.
+ * Usage: ServerMain [--port 4444] [--record traceFile] [--idle-timeout 30]
+ * [--presence-rate 10] [--shards N] [--cluster host:port,host:port,... [--node host:port]]
+ * [--follow host:port [--promote-after seconds]] [--checkpoint-interval 128]
+ * [--storage heap|offheap] [--rate-limit 200] [--rate-burst 400]
+ * [--max-connections 1000] [--max-connections-per-address 256] [--accept-backlog 50]
+ * [--handoff host:port] [--drain-seconds 10] [--reconnect-spread-seconds 5]
+ * --record writes every message received to the trace file (see TraceRecorder).
+ * --idle-timeout is the number of seconds after which a connection that sent
+ * nothing, not even a heartbeat, is evicted.
+ * --presence-rate is the maximum number of times per second the cursor of a
+ * user is broadcast.
+ * --shards is the number of shards the documents are partitioned in, each
+ * applying the changes of its documents on its own thread. Defaults to the
+ * number of processors.
+ * --cluster makes the server a node of a cluster of the given nodes, which must
+ * be the same on every node. --node is the address of this node in the list,
+ * localhost:port by default.
+ * --follow makes the server a read-only follower of the primary at host:port
+ * (see ReplicaFollower). --promote-after is how long the primary may be
+ * unreachable before the follower becomes a primary itself, never by default.
+ * --checkpoint-interval is the number of edits between two copies of a document
+ * kept to rebuild its past versions (see EditManager).
+ * --storage offheap keeps the texts of the documents outside the heap (see
+ * OffHeapDocumentText), heap by default.
+ * --rate-limit is the number of messages per second a connection may send in
+ * the long run, 0 for no limit, and --rate-burst the number it may send at once
+ * (see TokenBucket). A connection sending faster is read more slowly.
+ * --max-connections is the number of connections beyond which new ones are
+ * refused with an error, and --max-connections-per-address the number of
+ * connections from one address beyond which its new ones are, 0 for no limit.
+ * --accept-backlog is the number of connections queued by the system until
+ * they are accepted.
+ * When the process is asked to stop (SIGTERM, Ctrl-C), the server is drained
+ * before it exits (see Server.drain): the clients are told to reconnect at the
+ * --handoff server, or this address if there is none, at random times over
+ * --reconnect-spread-seconds, and given --drain-seconds to leave. To restart a
+ * server without losing its documents, start the new one with --follow on the
+ * old one, then stop the old one with --handoff on the new one.
+ */
 public class ServerMain {
 	private static final int defaultPort = 4444;
+	private static final int defaultDrainSeconds = 10;
+	private static final int defaultReconnectSpreadSeconds = 5;
+
+	// the options, 0 or null standing for the default of the server unless
+	// said otherwise
+	private int port = defaultPort;
+	private String tracePath = null;
+	private int idleTimeoutSeconds = 0;
+	private int presenceRate = 0;
+	// 0 for one per processor
+	private int shards = 0;
+	private String clusterNodes = null;
+	private String node = null;
+	private String primary = null;
+	// 0 for never
+	private int promoteAfterSeconds = 0;
+	private int checkpointInterval = 0;
+	private boolean offHeap = false;
+	// 0 for no limit, negative for the default
+	private int rateLimit = -1;
+	// 0 for twice the rate limit
+	private int rateBurst = 0;
+	private int maxConnections = 0;
+	// 0 for no limit, negative for the default
+	private int maxConnectionsPerAddress = -1;
+	private int acceptBacklog = 0;
+	// null to reconnect to this server
+	private String handoff = null;
+	private int drainSeconds = defaultDrainSeconds;
+	private int reconnectSpreadSeconds = defaultReconnectSpreadSeconds;
 
 	public static void main(String[] args) {
-		int port = defaultPort;
+		ServerMain main = new ServerMain();
+		main.parseArguments(args);
+		main.run();
+	}
+
+	/**
+	 * Runs a server on the port with the default options
+	 */
+	public static void runServer(int port) {
+		ServerMain main = new ServerMain();
+		main.port = port;
+		main.run();
+	}
 
-		runServer(port);
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for option " + args[i]);
+			}
+			if (args[i].equals("--port")) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--record")) {
+				tracePath = args[i + 1];
+			} else if (args[i].equals("--idle-timeout")) {
+				idleTimeoutSeconds = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--presence-rate")) {
+				presenceRate = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--shards")) {
+				shards = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--cluster")) {
+				clusterNodes = args[i + 1];
+			} else if (args[i].equals("--node")) {
+				node = args[i + 1];
+			} else if (args[i].equals("--follow")) {
+				primary = args[i + 1];
+			} else if (args[i].equals("--promote-after")) {
+				promoteAfterSeconds = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--checkpoint-interval")) {
+				checkpointInterval = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--storage")) {
+				if (!args[i + 1].equals("heap") && !args[i + 1].equals("offheap")) {
+					throw new IllegalArgumentException("Unknown storage " + args[i + 1]);
+				}
+				offHeap = args[i + 1].equals("offheap");
+			} else if (args[i].equals("--rate-limit")) {
+				rateLimit = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--rate-burst")) {
+				rateBurst = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--max-connections")) {
+				maxConnections = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--max-connections-per-address")) {
+				maxConnectionsPerAddress = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--accept-backlog")) {
+				acceptBacklog = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--handoff")) {
+				handoff = args[i + 1];
+			} else if (args[i].equals("--drain-seconds")) {
+				drainSeconds = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--reconnect-spread-seconds")) {
+				reconnectSpreadSeconds = Integer.parseInt(args[i + 1]);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
 	}
 
 	/**
+	 * Creates the server with the options and serves until the process stops.
 	 * Map field is initialized as a empty map as no clients have established connection with
 	 * the server yet.
 	 */
-	public static void runServer(int port) {
+	private void run() {
+		Cluster cluster = null;
+		if (clusterNodes != null) {
+			cluster = Cluster.parse(node != null ? node : "localhost:" + port, clusterNodes);
+		}
 		Map<String, StringBuffer> map = new HashMap<String, StringBuffer>();
 		Map<String, Integer> versions = new HashMap<String, Integer>();
-		Server server = new Server(port, map, versions);
+		int shardCount = shards > 0 ? shards : Server.defaultShardCount();
+		Server server = acceptBacklog > 0
+				? new Server(port, map, versions, shardCount, acceptBacklog)
+				: new Server(port, map, versions, shardCount);
+		if (idleTimeoutSeconds > 0) {
+			server.setIdleTimeoutMillis(idleTimeoutSeconds * 1000);
+		}
+		if (checkpointInterval > 0) {
+			server.setCheckpointInterval(checkpointInterval);
+		}
+		if (offHeap) {
+			server.setOffHeap(true);
+			System.out.println("Keeping documents off the heap");
+		}
+		if (maxConnections > 0) {
+			server.setMaxConnections(maxConnections);
+		}
+		if (maxConnectionsPerAddress >= 0) {
+			server.setMaxConnectionsPerAddress(maxConnectionsPerAddress);
+		}
+		if (rateLimit >= 0) {
+			server.setRateLimit(rateLimit, rateBurst > 0 ? rateBurst : 2 * rateLimit);
+			System.out.println(rateLimit == 0 ? "No rate limit"
+					: "Rate limit: " + rateLimit + " messages/s per connection");
+		}
+		if (presenceRate > 0) {
+			server.getPresenceManager().setRate(presenceRate);
+		}
+		if (cluster != null) {
+			server.setCluster(cluster);
+			System.out.println("Node " + cluster.getSelf() + " of " + cluster.getNodes());
+		}
+		if (primary != null) {
+			int colon = primary.lastIndexOf(':');
+			ReplicaFollower follower = new ReplicaFollower(server, primary.substring(0, colon),
+					Integer.parseInt(primary.substring(colon + 1)), promoteAfterSeconds * 1000L);
+			server.setFollower(follower);
+			follower.start();
+		}
+		if (tracePath != null) {
+			try {
+				TraceRecorder recorder = new TraceRecorder(tracePath);
+				server.setTraceRecorder(recorder);
+				System.out.println("Recording messages to " + tracePath);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		// the trace is closed by the drain, after the last message recorded
+		int drainMillis = drainSeconds * 1000;
+		int spreadMillis = reconnectSpreadSeconds * 1000;
+		Runtime.getRuntime().addShutdownHook(new Thread(
+				() -> {
+					server.drain(handoff, spreadMillis, drainMillis);
+					server.close();
+				}, "drain"));
 		server.serve();
 	}
 }
@@ -0,0 +1,46 @@
+package server;
+
+/**
+ * The session of a user, which outlives its connection: a client that lost its
+ * connection connects again and resumes the session with its token, getting
+ * its username back and only the edits it missed (see ClientConnectionThread).
+ * <p>
+ * token - the secret identifying the session, given to the client when it
+ * named itself
+ * username - the username of the user
+ * endedAt - the time the last connection of the session ended, 0 while it is
+ * connected. The session is forgotten some time after (see ConnectionReaper).
+ */
+public class Session {
+    private final String token;
+    private volatile String username;
+    private volatile long endedAt;
+
+    public Session(String token, String username) {
+        this.token = token;
+        this.username = username;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public long getEndedAt() {
+        return endedAt;
+    }
+
+    /**
+     * Marks the session connected again, or disconnected at the given time
+     */
+    public void setEndedAt(long endedAt) {
+        this.endedAt = endedAt;
+    }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import handlers.Edit;
+import handlers.Edit.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the edits turning a text into another, to resync a client whose text
+ * is many edits behind with fewer characters than the edits themselves (see
+ * ClientConnectionThread.resyncDocument).
+ * <p>
+ * The common beginning and end of the texts are skipped first, then the middle
+ * is compared with Myers' O(ND) algorithm, which finds the fewest characters to
+ * remove and insert in time proportional to the lengths of the texts times that
+ * number D. Its search is stopped after maxDistance characters, and the middle
+ * is then replaced as a whole: a diff is only worth sending when the texts are
+ * close anyway.
+ * <p>
+ * The edits are applied in order, each at a position of the text the previous
+ * ones produced. Characters removed or inserted one after the other are one edit.
+ */
+public class TextDiff {
+
+    private TextDiff() {
+    }
+
+    /**
+     * @param maxDistance the number of characters removed and inserted beyond
+     *                    which the middle of the texts is replaced as a whole
+     * @return the edits turning from into to, inserts with their text and
+     * removes with their negative length and the text they remove
+     */
+    public static List<Edit> diff(String documentName, CharSequence from, CharSequence to,
+                                  int maxDistance) {
+        int prefix = 0;
+        int common = Math.min(from.length(), to.length());
+        while (prefix < common && from.charAt(prefix) == to.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < common - prefix
+                && from.charAt(from.length() - 1 - suffix) == to.charAt(to.length() - 1 - suffix)) {
+            suffix++;
+        }
+        CharSequence a = from.subSequence(prefix, from.length() - suffix);
+        CharSequence b = to.subSequence(prefix, to.length() - suffix);
+        List<Edit> edits = new ArrayList<>();
+        int[][] trace = a.length() == 0 || b.length() == 0 ? null : search(a, b, maxDistance);
+        if (trace == null) {
+            // nothing in common, or too far apart: the middle is replaced
+            if (a.length() > 0) {
+                edits.add(remove(documentName, prefix, a.toString()));
+            }
+            if (b.length() > 0) {
+                edits.add(insert(documentName, prefix, b.toString()));
+            }
+            return edits;
+        }
+        // the path is followed back from the end, each step removing a character
+        // of a (x moves) or inserting one of b (y moves), between the diagonals
+        // of common characters
+        List<int[]> steps = new ArrayList<>();
+        int x = a.length();
+        int y = b.length();
+        for (int d = trace.length - 1; d > 0; d--) {
+            int[] previous = trace[d - 1];
+            int k = x - y;
+            boolean down = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1]);
+            int previousK = down ? k + 1 : k - 1;
+            int previousX = previous[previousK + d - 1];
+            int previousY = previousX - previousK;
+            // a step is taken from (previousX, previousY), then the snake to (x, y)
+            steps.add(new int[] {down ? 1 : 0, previousX, previousY});
+            x = previousX;
+            y = previousY;
+        }
+        // the steps in order, runs of removes or inserts made into one edit
+        for (int i = steps.size() - 1; i >= 0; ) {
+            int[] step = steps.get(i);
+            int end = i;
+            if (step[0] == 0) {
+                while (end > 0 && steps.get(end - 1)[0] == 0
+                        && steps.get(end - 1)[1] == steps.get(end)[1] + 1
+                        && steps.get(end - 1)[2] == step[2]) {
+                    end--;
+                }
+                edits.add(remove(documentName, prefix + step[2],
+                        a.subSequence(step[1], step[1] + i - end + 1).toString()));
+            } else {
+                while (end > 0 && steps.get(end - 1)[0] == 1
+                        && steps.get(end - 1)[2] == steps.get(end)[2] + 1
+                        && steps.get(end - 1)[1] == step[1]) {
+                    end--;
+                }
+                edits.add(insert(documentName, prefix + step[2],
+                        b.subSequence(step[2], step[2] + i - end + 1).toString()));
+            }
+            i = end - 1;
+        }
+        return edits;
+    }
+
+    /**
+     * Myers' greedy search of the shortest path from (0, 0) to (a.length,
+     * b.length), x along a and y along b
+     * @return for each number of steps d, the furthest x reached on each
+     * diagonal k = x - y from -d to d, at index k + d, or null if the path is
+     * longer than maxDistance
+     */
+    private static int[][] search(CharSequence a, CharSequence b, int maxDistance) {
+        int n = a.length();
+        int m = b.length();
+        int max = Math.min(n + m, maxDistance);
+        int[][] trace = new int[max + 1][];
+        for (int d = 0; d <= max; d++) {
+            int[] v = new int[2 * d + 1];
+            int[] previous = d == 0 ? null : trace[d - 1];
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (d == 0) {
+                    x = 0;
+                } else if (k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1])) {
+                    x = previous[k + 1 + d - 1];
+                } else {
+                    x = previous[k - 1 + d - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a.charAt(x) == b.charAt(y)) {
+                    x++;
+                    y++;
+                }
+                v[k + d] = x;
+                if (x >= n && y >= m) {
+                    trace[d] = v;
+                    int[][] path = new int[d + 1][];
+                    System.arraycopy(trace, 0, path, 0, d + 1);
+                    return path;
+                }
+            }
+            trace[d] = v;
+        }
+        return null;
+    }
+
+    private static Edit insert(String documentName, int position, String text) {
+        return new Edit(documentName, Type.INSERT, text, 0, position, text.length());
+    }
+
+    private static Edit remove(String documentName, int position, String text) {
+        return new Edit(documentName, Type.REMOVE, text, 0, position, -text.length());
+    }
+}
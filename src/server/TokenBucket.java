@@ -0,0 +1,66 @@
+package server;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate of the messages of a connection.
+ * <p>
+ * The bucket holds up to burst tokens and is refilled with rate tokens per
+ * second. Each message takes a token; when the bucket is empty, the thread of
+ * the connection waits for the next token before handling the message, so it
+ * stops reading the socket and a client sending too fast is slowed down by TCP
+ * itself instead of getting errors. A client typing, or pasting text split in
+ * a few hundred changes, stays within the burst and is never delayed.
+ * <p>
+ * Not thread safe, used by the thread of one connection.
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate  the number of messages per second allowed in the long run
+     * @param burst the number of messages allowed at once after a pause
+     */
+    public TokenBucket(int rate, int burst) {
+        if (rate < 1 || burst < 1) {
+            throw new IllegalArgumentException("The rate and burst must be positive");
+        }
+        this.tokensPerNano = rate / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token, waiting until there is one
+     * @return the number of nanoseconds waited, 0 if the message wasn't throttled
+     */
+    public long acquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        long wait = (long) Math.ceil((1 - tokens) / tokensPerNano);
+        long start = System.nanoTime();
+        long deadline = start + wait;
+        for (long left = wait; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        refill();
+        tokens--;
+        return System.nanoTime() - start;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a trace file written by TraceRecorder, one record at a time.
+ */
+public class TraceReader implements AutoCloseable {
+    private final DataInputStream in;
+    private final long startTimeMillis;
+    private long time;
+
+    // the fields of the last record read
+    private int connectionId;
+    private String message;
+
+    /**
+     * @param path the trace file
+     * @throws IOException if the file can't be read or is not a trace
+     */
+    public TraceReader(String path) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+        if (in.readInt() != TraceRecorder.magic) {
+            in.close();
+            throw new IOException("Not a trace file: " + path);
+        }
+        byte version = in.readByte();
+        if (version != TraceRecorder.formatVersion) {
+            in.close();
+            throw new IOException("Unsupported trace format version " + version);
+        }
+        startTimeMillis = in.readLong();
+        time = 0;
+    }
+
+    /**
+     * Reads the next record
+     * @return false if the end of the trace has been reached
+     * @throws IOException if the trace is truncated or can't be read
+     */
+    public boolean next() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        time += readVarint(first);
+        connectionId = (int) readVarint(in.readUnsignedByte());
+        byte[] bytes = new byte[(int) readVarint(in.readUnsignedByte())];
+        in.readFully(bytes);
+        message = new String(bytes, StandardCharsets.UTF_8);
+        return true;
+    }
+
+    /** @return the time of the last record read, in nanoseconds since the start of the trace */
+    public long getTimeNanos() {
+        return time;
+    }
+
+    /** @return the connection id of the last record read */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /** @return the message of the last record read */
+    public String getMessage() {
+        return message;
+    }
+
+    /** @return the time the recording started, in milliseconds since the epoch */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private long readVarint(int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated trace");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Records every message the server receives to a compact binary trace file,
+ * so that a workload can be replayed offline with TraceReplay.
+ * <p>
+ * Trace :== Header Record*
+ * Header :== Magic FormatVersion StartTime
+ * Magic :== int 0x43544554 ("CTET")
+ * FormatVersion :== byte
+ * StartTime :== long, milliseconds since the epoch
+ * Record :== DeltaNanos ConnectionId Length Bytes
+ * DeltaNanos :== varint, nanoseconds since the previous record
+ * ConnectionId :== varint
+ * Length :== varint, the number of bytes of the message
+ * Bytes :== the message, UTF-8 encoded
+ * <p>
+ * Varints are unsigned LEB128: 7 bits per byte, least significant group first,
+ * high bit set on every byte but the last.
+ */
+public class TraceRecorder {
+    static final int magic = 0x43544554;
+    static final byte formatVersion = 1;
+
+    private final DataOutputStream out;
+    private long lastTime;
+    private boolean closed;
+
+    /**
+     * Creates the trace file, overwriting it if it exists
+     * @param path the trace file
+     * @throws IOException if the file can't be created
+     */
+    public TraceRecorder(String path) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+        out.writeInt(magic);
+        out.writeByte(formatVersion);
+        out.writeLong(System.currentTimeMillis());
+        lastTime = System.nanoTime();
+        closed = false;
+    }
+
+    /**
+     * Appends a message to the trace. Errors are reported once and stop the recording,
+     * they never affect the connection that sent the message.
+     * @param connectionId the id of the connection that sent the message
+     * @param message      the message as received, without the line terminator
+     */
+    public synchronized void record(int connectionId, String message) {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            writeVarint(now - lastTime);
+            writeVarint(connectionId);
+            writeVarint(bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+        lastTime = now;
+    }
+
+    /**
+     * Flushes and closes the trace file. Further messages are not recorded.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,136 @@
+package server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Replays a trace recorded by TraceRecorder through the request handling of
+ * ClientConnectionThread, without any socket: every recorded connection gets its
+ * own ClientConnectionThread on a fresh server, and its messages are handled in
+ * the recorded order. Broadcasts to other connections are not replayed, since
+ * there are no sockets to write to.
+ * <p>
+ * A connection whose request throws an exception stops being replayed, like its
+ * thread would die on the real server.
+ * <p>
+ * Usage: TraceReplay traceFile [--realtime]
+ * --realtime keeps the recorded pacing between messages instead of replaying as
+ * fast as possible.
+ * <p>
+ * The server of the replay is closed when the replay is (see Server.close).
+ */
+public class TraceReplay implements AutoCloseable {
+    private final Server server;
+    private final Map<Integer, ClientConnectionThread> connections;
+    private final Map<String, long[]> commandStatistics;
+    private long messages;
+    private long failures;
+    private long elapsedNanos;
+
+    public TraceReplay() {
+        server = new Server(new HashMap<String, StringBuffer>(),
+                new HashMap<String, Integer>());
+        connections = new HashMap<>();
+        commandStatistics = new LinkedHashMap<>();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplay traceFile [--realtime]");
+            System.exit(2);
+        }
+        boolean realTime = args.length > 1 && args[1].equals("--realtime");
+        try (TraceReplay replay = new TraceReplay()) {
+            replay.replay(args[0], realTime);
+            System.out.print(replay.summary());
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Replays every message of the trace
+     * @param path     the trace file
+     * @param realTime if true, wait between messages as long as recorded
+     * @throws IOException if the trace can't be read
+     */
+    public void replay(String path, boolean realTime) throws IOException, InterruptedException {
+        try (TraceReader reader = new TraceReader(path)) {
+            long start = System.nanoTime();
+            while (reader.next()) {
+                if (realTime) {
+                    long wait = reader.getTimeNanos() - (System.nanoTime() - start);
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                }
+                handle(reader.getConnectionId(), reader.getMessage());
+            }
+            elapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Handles one message as the connection with the given id would
+     */
+    public void handle(int connectionId, String message) {
+        ClientConnectionThread thread = connections.get(connectionId);
+        if (thread == null) {
+            if (connections.containsKey(connectionId)) {
+                // the connection died or said bye
+                return;
+            }
+            thread = new ClientConnectionThread(null, server);
+            // registered like a real connection, so that its username is freed
+            // when it says bye or fails
+            server.addThread(thread);
+            connections.put(connectionId, thread);
+        }
+        String command = message.trim().split(" ")[0];
+        long start = System.nanoTime();
+        try {
+            String output = thread.handleRequest(message);
+            if (output != null && output.equals("bye")) {
+                server.removeThread(thread);
+                connections.put(connectionId, null);
+            }
+        } catch (RuntimeException e) {
+            failures++;
+            server.removeThread(thread);
+            connections.put(connectionId, null);
+        }
+        long[] statistics = commandStatistics.computeIfAbsent(command, c -> new long[2]);
+        statistics[0]++;
+        statistics[1] += System.nanoTime() - start;
+        messages++;
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    @Override
+    public void close() {
+        server.close();
+    }
+
+    /**
+     * @return the number of messages, the throughput and the time spent per command
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        double seconds = elapsedNanos / 1e9;
+        summary.append(String.format("Replayed %d messages from %d connections in %.3fs (%.0f messages/s), %d failed%n",
+                messages, connections.size(), seconds, seconds > 0 ? messages / seconds : 0, failures));
+        for (Map.Entry<String, long[]> entry : commandStatistics.entrySet()) {
+            long count = entry.getValue()[0];
+            long nanos = entry.getValue()[1];
+            summary.append(String.format("  %-8s count=%d total=%.3fms mean=%.2fus%n", entry.getKey(),
+                    count, nanos / 1e6, nanos / 1e3 / count));
+        }
+        return summary.toString();
+    }
+}
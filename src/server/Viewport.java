@@ -0,0 +1,88 @@
+package server;
+
+import handlers.Encoding;
+import handlers.TextWindow;
+
+import java.util.Map;
+
+/**
+ * The part of a document a client has loaded when it opened the document in
+ * partial mode: the text from start to end (see TextWindow), from the offset
+ * it asked for when it opened the document. The client fetches more with range
+ * requests as it scrolls, which extends the viewport.
+ * <p>
+ * Change messages for the document are sent to such a client as
+ * VChange :== vchange DocumentName Username Version Position Length DocumentLength [InsertedText]
+ * where InsertedText is the encoded text of an insert that is part of the
+ * viewport, and is left out for any other change. The client applies the
+ * change to its text and moves its window by the same rule as the viewport,
+ * so the cost of a change message depends on the size of the change, not of
+ * the viewport nor of the document.
+ */
+public class Viewport {
+    private final String documentName;
+    private final TextWindow window;
+
+    /**
+     * @param documentName the document open in partial mode
+     * @param start        the start of the loaded text
+     * @param end          the end of the loaded text, exclusive
+     */
+    public Viewport(String documentName, int start, int end) {
+        this.documentName = documentName;
+        this.window = new TextWindow(start, end);
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    public synchronized int getStart() {
+        return window.getStart();
+    }
+
+    public synchronized int getEnd() {
+        return window.getEnd();
+    }
+
+    /**
+     * Extends the viewport after the client fetched the text from start to
+     * newEnd, if that text follows on from the viewport
+     */
+    public synchronized void extend(int start, int newEnd) {
+        window.extend(start, newEnd);
+    }
+
+    /**
+     * Makes the vchange message of a change just applied to the document, and
+     * moves the viewport according to the change. Called on the shard of the
+     * document as the change is applied, so the viewport moves with the changes
+     * in order, and the inserted text is read at the version of the change.
+     * @param insertions the encoded texts of the insert already read for this
+     *                   change, by position, shared with the viewports of the
+     *                   other subscribers
+     * @return the vchange message
+     */
+    public synchronized String toViewportMessage(String username, int version, int position,
+                                                 int length, Server server,
+                                                 Map<Integer, String> insertions) {
+        int documentLength = server.getDocumentLength(documentName);
+        boolean affected = window.move(position, length, documentLength);
+        String message = "vchange " + documentName + " " + username + " " + version + " "
+                + position + " " + length + " " + documentLength;
+        if (affected && length > 0) {
+            message += " " + insertions.computeIfAbsent(position, p -> Encoding.encode(
+                    server.getDocumentRange(documentName, p, p + length)));
+        }
+        return message;
+    }
+
+    /**
+     * Moves the viewport according to an edit of the document (see
+     * TextWindow.move)
+     * @return true if the edit changed the text of the viewport
+     */
+    public synchronized boolean move(int position, int length, int documentLength) {
+        return window.move(position, length, documentLength);
+    }
+}
@@ -0,0 +1,130 @@
+package handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import handlers.Edit.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the past versions EditManager rebuilds from its checkpoints and its
+ * column-stored log (see EditHistory) against the texts recorded as random
+ * edits are logged.
+ */
+public class EditManagerTest {
+    private static final String documentName = "document";
+
+    @Test
+    public void pastVersionsMatchRecordedTexts() {
+        Random random = new Random(43);
+        EditManager editManager = new EditManager();
+        editManager.setCheckpointInterval(5);
+        editManager.createNewlog(documentName);
+        // texts.get(i) is the text at version i + 1
+        List<String> texts = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        texts.add(text.toString());
+        for (int version = 1; version <= 2000; version++) {
+            Edit edit;
+            if (text.length() == 0 || random.nextInt(3) > 0) {
+                int offset = random.nextInt(text.length() + 1);
+                String inserted = randomText(random, 1 + random.nextInt(4));
+                text.insert(offset, inserted);
+                edit = new Edit(documentName, Type.INSERT, inserted, version, offset,
+                        inserted.length(), "user" + random.nextInt(3));
+            } else {
+                int offset = random.nextInt(text.length());
+                int end = Math.min(text.length(), offset + 1 + random.nextInt(4));
+                String removed = text.substring(offset, end);
+                text.delete(offset, end);
+                edit = new Edit(documentName, Type.REMOVE, removed, version, offset,
+                        offset - end, "user" + random.nextInt(3));
+            }
+            editManager.logEdit(edit);
+            // like DocumentShard, a checkpoint is taken when one is due
+            if (editManager.isCheckpointDue(documentName)) {
+                editManager.checkpoint(documentName, version + 1, text.toString());
+            }
+            texts.add(text.toString());
+        }
+        int lastVersion = texts.size();
+        for (int version = 1; version <= lastVersion; version++) {
+            String expected = texts.get(version - 1);
+            assertEquals(expected, editManager.getTextAt(documentName, version),
+                    "text at " + version);
+            // the edits from a version turn its text into the current one
+            StringBuilder replayed = new StringBuilder(expected);
+            for (Edit edit : editManager.getEditsFrom(documentName, version)) {
+                if (edit.getType() == Type.INSERT) {
+                    replayed.insert(edit.getOffset(), edit.getText());
+                } else {
+                    replayed.delete(edit.getOffset(), edit.getOffset() - edit.getLength());
+                }
+            }
+            assertEquals(text.toString(), replayed.toString(), "edits from " + version);
+        }
+        assertNull(editManager.getTextAt(documentName, lastVersion + 1));
+        assertNull(editManager.getEditsFrom(documentName, lastVersion + 1));
+        assertNull(editManager.getTextAt(documentName, 0));
+    }
+
+    @Test
+    public void historyKeepsEditsAsLogged() {
+        Random random = new Random(44);
+        EditHistory history = new EditHistory(documentName);
+        List<Edit> edits = new ArrayList<>();
+        for (int version = 1; version <= 500; version++) {
+            String text = randomText(random, random.nextInt(6));
+            String username = random.nextInt(4) == 0 ? null : "user" + random.nextInt(3);
+            Edit edit = random.nextBoolean()
+                    ? new Edit(documentName, Type.INSERT, text, version, random.nextInt(100),
+                    text.length(), username)
+                    : new Edit(documentName, Type.REMOVE, text, version, random.nextInt(100),
+                    -text.length(), username);
+            history.add(edit);
+            edits.add(edit);
+        }
+        assertEquals(edits.size(), history.size());
+        for (int i = 0; i < edits.size(); i++) {
+            Edit expected = edits.get(i);
+            Edit actual = history.get(i);
+            assertEquals(expected.getType(), actual.getType());
+            assertEquals(expected.getText(), actual.getText());
+            assertEquals(expected.getVersion(), actual.getVersion());
+            assertEquals(expected.getOffset(), actual.getOffset());
+            assertEquals(expected.getLength(), actual.getLength());
+            assertEquals(expected.getUsername(), actual.getUsername());
+            assertEquals(i, history.indexOf(expected.getVersion()));
+        }
+    }
+
+    @Test
+    public void outOfDateEditKeepsItsOffset() {
+        EditManager editManager = new EditManager();
+        editManager.createNewlog(documentName);
+        editManager.logEdit(new Edit(documentName, Type.INSERT, "hello", 1, 0, 5, "ann"));
+        editManager.logEdit(new Edit(documentName, Type.INSERT, ", world", 2, 5, 7, "ann"));
+        editManager.logEdit(new Edit(documentName, Type.REMOVE, "h", 3, 0, -1, "bob"));
+        // made on version 2, applied on version 4 where the client made it
+        assertEquals(documentName + " 4 3", editManager.manageEdit(documentName, 2, 3));
+        assertEquals(documentName + " 4 11", editManager.manageEdit(documentName, 1, 11));
+
+        // a log started from a copy of the document, with no edits yet
+        editManager.createNewlog(documentName, 9, "ello, world");
+        assertEquals(documentName + " 9 2", editManager.manageEdit(documentName, 7, 2));
+    }
+
+    /**
+     * @return length lower case letters
+     */
+    private static String randomText(Random random, int length) {
+        return random.ints(length, 'a', 'z' + 1)
+                .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
+                .toString();
+    }
+}
@@ -0,0 +1,145 @@
+package handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import handlers.Edit.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks a LineIndex kept up to date with random inserts and removes against
+ * the lines of the text, and against a LineIndex built from the text.
+ */
+public class LineIndexTest {
+    // pieces of text made mostly of line breaks, so that edits add and join lines
+    private static final String[] pieces = {"\n", "x", "xx\n", "\n\n", "x\nx", "xxx"};
+
+    @Test
+    public void matchesTextAfterRandomEdits() {
+        Random random = new Random(42);
+        for (int run = 0; run < 300; run++) {
+            StringBuilder text = new StringBuilder(pieces(random, random.nextInt(12)));
+            LineIndex lines = new LineIndex(text);
+            for (int i = 0; i < 60; i++) {
+                if (text.length() == 0 || random.nextBoolean()) {
+                    int offset = random.nextInt(text.length() + 1);
+                    String inserted = pieces(random, random.nextInt(3));
+                    text.insert(offset, inserted);
+                    lines.insert(offset, inserted);
+                } else {
+                    int offset = random.nextInt(text.length());
+                    int count = 1 + random.nextInt(Math.min(10, text.length() - offset));
+                    text.delete(offset, offset + count);
+                    lines.remove(offset, count);
+                }
+                assertMatches(text.toString(), lines);
+            }
+        }
+    }
+
+    @Test
+    public void manyLinesInsertedInOneLine() {
+        StringBuilder text = new StringBuilder("first\nlast");
+        LineIndex lines = new LineIndex(text);
+        for (int i = 0; i < 2000; i++) {
+            text.insert(6, "line\n");
+            lines.insert(6, "line\n");
+        }
+        assertMatches(text.toString(), lines);
+        // all the lines joined back into one
+        int count = text.length() - 5;
+        text.delete(3, 3 + count);
+        lines.remove(3, count);
+        assertMatches(text.toString(), lines);
+    }
+
+    /**
+     * Compares every line start, line of an offset and offset of a line and
+     * column with the text and with an index built from it
+     */
+    private static void assertMatches(String text, LineIndex lines) {
+        LineIndex rebuilt = new LineIndex(text);
+        assertEquals(text.length(), lines.getLength());
+        assertEquals(rebuilt.getLineCount(), lines.getLineCount());
+        int line = 0;
+        int lineStart = 0;
+        for (int offset = 0; offset <= text.length(); offset++) {
+            if (offset > 0 && text.charAt(offset - 1) == '\n') {
+                line++;
+                lineStart = offset;
+            }
+            assertEquals(line, lines.lineOf(offset), "line of " + offset + " in " + text);
+            assertEquals(offset - lineStart, lines.columnOf(offset));
+        }
+        assertEquals(line + 1, lines.getLineCount());
+        for (int l = 0; l <= lines.getLineCount(); l++) {
+            assertEquals(rebuilt.lineStart(l), lines.lineStart(l));
+            for (int column = 0; column < 6; column++) {
+                assertEquals(rebuilt.offsetOf(l, column), lines.offsetOf(l, column));
+            }
+        }
+    }
+
+    @Test
+    public void offsetsOfPastVersions() {
+        Random random = new Random(4242);
+        EditManager editManager = new EditManager();
+        editManager.createNewlog("document");
+        StringBuilder text = new StringBuilder();
+        LineIndex lines = new LineIndex(text);
+        // texts.get(v - 1) is the text at version v
+        List<String> texts = new ArrayList<>();
+        texts.add("");
+        for (int version = 1; version <= 300; version++) {
+            int offset = random.nextInt(text.length() + 1);
+            if (text.length() > offset && random.nextInt(3) == 0) {
+                int end = Math.min(text.length(), offset + 1 + random.nextInt(6));
+                String removed = text.substring(offset, end);
+                text.delete(offset, end);
+                lines.remove(offset, removed.length());
+                editManager.logEdit(new Edit("document", Type.REMOVE, removed, version, offset,
+                        -removed.length(), "user"));
+            } else {
+                String inserted = pieces(random, 1 + random.nextInt(2));
+                text.insert(offset, inserted);
+                lines.insert(offset, inserted);
+                editManager.logEdit(new Edit("document", Type.INSERT, inserted, version, offset,
+                        inserted.length(), "user"));
+            }
+            texts.add(text.toString());
+        }
+        for (int version = 1; version <= texts.size(); version += 7) {
+            LineIndex past = new LineIndex(texts.get(version - 1));
+            for (int line = 0; line <= past.getLineCount(); line += 3) {
+                int column = random.nextInt(4);
+                assertEquals(past.offsetOf(line, column),
+                        editManager.offsetAt("document", version, lines, line, column),
+                        "line " + line + " column " + column + " at version " + version);
+            }
+            // the index of the current text was moved back and forth, not changed
+            assertMatches(text.toString(), lines);
+        }
+        // a remove whose text is not known, the past texts are rebuilt instead
+        int version = texts.size();
+        text.delete(0, 2);
+        lines.remove(0, 2);
+        editManager.logEdit(new Edit("document", Type.REMOVE, "", version, 0, -2, "user"));
+        LineIndex past = new LineIndex(texts.get(version - 10));
+        assertEquals(past.offsetOf(2, 1), editManager.offsetAt("document", version - 9, lines, 2, 1));
+        assertMatches(text.toString(), lines);
+        assertEquals(-1, editManager.offsetAt("document", texts.size() + 2, lines, 0, 0));
+        assertEquals(-1, editManager.offsetAt("document", 0, lines, 0, 0));
+    }
+
+    private static String pieces(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a window kept up to date with the changes of a document, as a
+ * client with the document open in partial mode does, always holds the text of
+ * the document between its start and end.
+ */
+public class TextWindowTest {
+
+    @Test
+    public void insertBeforeMovesTheWindow() {
+        StringBuilder text = new StringBuilder("cdef");
+        TextWindow window = new TextWindow(2, 6);
+        // the document is "abcdefgh", the window "cdef"
+        assertFalse(window.apply(text, 1, 2, "XY", 10));
+        assertEquals(4, window.getStart());
+        assertEquals(8, window.getEnd());
+        assertEquals("cdef", text.toString());
+    }
+
+    @Test
+    public void insertAtStartIsInTheWindow() {
+        StringBuilder text = new StringBuilder("cdef");
+        TextWindow window = new TextWindow(2, 6);
+        assertTrue(window.apply(text, 2, 1, "X", 9));
+        assertEquals("Xcdef", text.toString());
+        assertEquals(2, window.getStart());
+        assertEquals(7, window.getEnd());
+    }
+
+    @Test
+    public void insertAtEndIsInTheWindowOnlyAtTheEndOfTheDocument() {
+        TextWindow middle = new TextWindow(2, 6);
+        assertFalse(middle.move(6, 1, 9));
+        assertEquals(6, middle.getEnd());
+        TextWindow last = new TextWindow(2, 8);
+        assertTrue(last.move(8, 1, 9));
+        assertEquals(9, last.getEnd());
+    }
+
+    @Test
+    public void removeAcrossTheStartCutsTheWindow() {
+        // the document is "abcdefgh", the window "cdef"
+        StringBuilder text = new StringBuilder("cdef");
+        TextWindow window = new TextWindow(2, 6);
+        assertTrue(window.apply(text, 1, -3, null, 5));
+        assertEquals("ef", text.toString());
+        assertEquals(1, window.getStart());
+        assertEquals(3, window.getEnd());
+    }
+
+    @Test
+    public void removeOfTheWholeWindowLeavesItEmpty() {
+        StringBuilder text = new StringBuilder("cdef");
+        TextWindow window = new TextWindow(2, 6);
+        assertTrue(window.apply(text, 0, -7, null, 1));
+        assertEquals("", text.toString());
+        assertEquals(0, window.getStart());
+        assertEquals(0, window.getEnd());
+    }
+
+    @Test
+    public void missingInsertedTextLeavesTheWindow() {
+        StringBuilder text = new StringBuilder("cdef");
+        TextWindow window = new TextWindow(2, 6);
+        assertThrows(IllegalArgumentException.class, () -> window.apply(text, 3, 2, null, 10));
+        assertEquals(2, window.getStart());
+        assertEquals(6, window.getEnd());
+        assertEquals("cdef", text.toString());
+    }
+
+    @Test
+    public void extendOnlyFromTheWindow() {
+        TextWindow window = new TextWindow(10, 20);
+        assertFalse(window.extend(21, 30));
+        assertFalse(window.extend(5, 30));
+        assertTrue(window.extend(20, 30));
+        assertEquals(30, window.getEnd());
+    }
+
+    @Test
+    public void windowFollowsTheDocument() {
+        SplittableRandom random = new SplittableRandom(33);
+        for (int run = 0; run < 200; run++) {
+            StringBuilder document = new StringBuilder();
+            for (int i = random.nextInt(80); i > 0; i--) {
+                document.append((char) ('a' + random.nextInt(26)));
+            }
+            int start = random.nextInt(document.length() + 1);
+            int end = start + random.nextInt(document.length() - start + 1);
+            TextWindow window = new TextWindow(start, end);
+            StringBuilder text = new StringBuilder(document.substring(start, end));
+            for (int i = 0; i < 100; i++) {
+                if (document.length() == 0 || random.nextBoolean()) {
+                    int position = random.nextInt(document.length() + 1);
+                    String inserted = Integer.toString(i);
+                    document.insert(position, inserted);
+                    window.apply(text, position, inserted.length(), inserted, document.length());
+                } else {
+                    int position = random.nextInt(document.length());
+                    int count = 1 + random.nextInt(document.length() - position);
+                    document.delete(position, position + count);
+                    window.apply(text, position, -count, null, document.length());
+                }
+                if (random.nextInt(10) == 0) {
+                    // the client fetched the text that follows, like a range request
+                    int to = Math.min(document.length(), window.getEnd() + random.nextInt(10));
+                    text.append(document, window.getEnd(), to);
+                    window.extend(window.getEnd(), to);
+                }
+                assertEquals(document.substring(window.getStart(), window.getEnd()),
+                        text.toString(), "run " + run + " edit " + i);
+            }
+        }
+    }
+}
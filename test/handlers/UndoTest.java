@@ -0,0 +1,183 @@
+package handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import handlers.Edit.Type;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks undo and redo as the server does them (see
+ * ClientConnectionThread.applyUndo): the inverse of an edit is moved through
+ * the edits made after it by any user, and the stacks of each user forget
+ * their redos on a new edit and keep only the last hundred edits.
+ */
+public class UndoTest {
+    private static final String doc = "notes";
+
+    private EditManager manager;
+    private StringBuilder text;
+    private int version;
+
+    @BeforeEach
+    public void newDocument() {
+        manager = new EditManager();
+        manager.createNewlog(doc);
+        text = new StringBuilder();
+        version = 1;
+    }
+
+    @Test
+    public void undoInsertAfterEditsOfAnotherUser() {
+        insert("ann", 0, "hello world");
+        insert("bob", 0, ">> ");
+        remove("bob", 7, 1);
+        insert("bob", text.length(), "!");
+        assertEquals(">> hell world!", text.toString());
+
+        // ann's insert was cut by bob, so undoing it would remove bob's edit
+        // with it: the server refuses, as the text is not the inserted text
+        assertFalse(undo("ann"));
+        assertEquals(">> hell world!", text.toString());
+    }
+
+    @Test
+    public void undoInsertMovedByAnotherUser() {
+        insert("ann", 0, "abc");
+        insert("bob", 0, "xy");
+        insert("bob", 5, "z");
+        assertEquals("xyabcz", text.toString());
+        assertTrue(undo("ann"));
+        assertEquals("xyz", text.toString());
+    }
+
+    @Test
+    public void undoRemoveRestoresTextWhereItWas() {
+        insert("ann", 0, "one two three");
+        remove("ann", 3, 4);
+        insert("bob", 0, "0 ");
+        insert("bob", text.length(), " 4");
+        assertEquals("0 one three 4", text.toString());
+        assertTrue(undo("ann"));
+        assertEquals("0 one two three 4", text.toString());
+    }
+
+    @Test
+    public void redoUndoesTheUndo() {
+        insert("ann", 0, "abc");
+        insert("ann", 3, "def");
+        assertTrue(undo("ann"));
+        assertTrue(undo("ann"));
+        assertEquals("", text.toString());
+        assertTrue(redo("ann"));
+        assertEquals("abc", text.toString());
+        insert("bob", 0, "_");
+        assertTrue(redo("ann"));
+        assertEquals("_abcdef", text.toString());
+        assertFalse(redo("ann"));
+        assertTrue(undo("ann"));
+        assertEquals("_abc", text.toString());
+    }
+
+    @Test
+    public void newEditForgetsTheRedos() {
+        insert("ann", 0, "abc");
+        insert("ann", 3, "def");
+        assertTrue(undo("ann"));
+        insert("bob", 0, "B");
+        // bob's edit does not touch ann's redos
+        assertEquals("Babc", text.toString());
+        insert("ann", 4, "!");
+        assertFalse(redo("ann"));
+        assertEquals("Babc!", text.toString());
+        assertTrue(undo("ann"));
+        assertTrue(undo("ann"));
+        assertEquals("B", text.toString());
+        assertFalse(undo("ann"));
+    }
+
+    @Test
+    public void onlyTheLastHundredEditsCanBeUndone() {
+        for (int i = 0; i < 130; i++) {
+            insert("ann", text.length(), Character.toString((char) ('a' + i % 26)));
+        }
+        insert("bob", 0, "bob");
+        int undone = 0;
+        while (undo("ann")) {
+            undone++;
+        }
+        assertEquals(100, undone);
+        assertEquals(33, text.length());
+        assertTrue(text.toString().startsWith("bob" + "abcdefghijklmnopqrstuvwxyz"));
+
+        int redone = 0;
+        while (redo("ann")) {
+            redone++;
+        }
+        assertEquals(100, redone);
+        assertEquals(133, text.length());
+    }
+
+    @Test
+    public void unknownVersionHasNoInverse() {
+        insert("ann", 0, "abc");
+        assertNull(manager.invert(doc, 7, version));
+        assertNull(manager.invert("other", 1, version));
+    }
+
+    private void insert(String username, int offset, String inserted) {
+        manager.logEdit(new Edit(doc, Type.INSERT, inserted, version, offset,
+                inserted.length(), username));
+        text.insert(offset, inserted);
+        version++;
+    }
+
+    private void remove(String username, int offset, int count) {
+        String removed = text.substring(offset, offset + count);
+        manager.logEdit(new Edit(doc, Type.REMOVE, removed, version, offset, -count, username));
+        text.delete(offset, offset + count);
+        version++;
+    }
+
+    private boolean undo(String username) {
+        return apply(manager.popUndo(doc, username), true);
+    }
+
+    private boolean redo(String username) {
+        return apply(manager.popRedo(doc, username), false);
+    }
+
+    /**
+     * Applies the inverse of the edit of a version, if the text it removes is
+     * still there, and logs it for redo (or for undo again if it is a redo)
+     */
+    private boolean apply(Integer target, boolean undo) {
+        if (target == null) {
+            return false;
+        }
+        Edit inverse = manager.invert(doc, target, version);
+        if (inverse == null) {
+            return false;
+        }
+        int offset = inverse.getOffset();
+        if (inverse.getType() == Type.REMOVE) {
+            int end = offset - inverse.getLength();
+            if (end > text.length() || !text.substring(offset, end).equals(inverse.getText())) {
+                return false;
+            }
+            text.delete(offset, end);
+        } else {
+            if (offset > text.length()) {
+                return false;
+            }
+            text.insert(offset, inverse.getText());
+        }
+        manager.logUndo(inverse, !undo);
+        version++;
+        return true;
+    }
+}
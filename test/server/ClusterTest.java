@@ -0,0 +1,94 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the consistent hashing of Cluster: every node agrees on the owner of
+ * each document, and a node joining takes about its share of the documents,
+ * all of them from the other nodes, the rest staying where they were.
+ */
+public class ClusterTest {
+    private static final List<String> fourNodes = List.of(
+            "alpha:4444", "beta:4444", "gamma:4444", "delta:5555");
+    private static final int documentCount = 20000;
+
+    @Test
+    public void everyNodeAgreesOnTheOwner() {
+        List<String> shuffled = new ArrayList<>(fourNodes);
+        Collections.reverse(shuffled);
+        List<Cluster> views = new ArrayList<>();
+        for (String self : fourNodes) {
+            views.add(new Cluster(self, fourNodes));
+            views.add(new Cluster(self, shuffled));
+        }
+        for (int i = 0; i < documentCount; i++) {
+            String documentName = "doc" + i;
+            String owner = views.get(0).ownerOf(documentName);
+            int owners = 0;
+            for (Cluster view : views) {
+                assertEquals(owner, view.ownerOf(documentName), documentName);
+                if (view.owns(documentName)) {
+                    owners++;
+                }
+            }
+            // each node is in views twice, once per order of the list
+            assertEquals(2, owners, documentName);
+        }
+    }
+
+    @Test
+    public void documentsAreSpreadOverTheNodes() {
+        Map<String, Integer> counts = ownerCounts(new Cluster("alpha:4444", fourNodes));
+        for (String node : fourNodes) {
+            double share = counts.getOrDefault(node, 0) / (double) documentCount;
+            assertTrue(share > 0.15 && share < 0.35, node + " owns " + share);
+        }
+    }
+
+    @Test
+    public void addedNodeOnlyTakesItsShare() {
+        Cluster before = new Cluster("alpha:4444", fourNodes);
+        List<String> fiveNodes = new ArrayList<>(fourNodes);
+        fiveNodes.add("epsilon:4444");
+        Cluster after = new Cluster("alpha:4444", fiveNodes);
+        int moved = 0;
+        for (int i = 0; i < documentCount; i++) {
+            String documentName = "doc" + i;
+            String owner = after.ownerOf(documentName);
+            if (!owner.equals(before.ownerOf(documentName))) {
+                // only to the new node, never between the old ones
+                assertEquals("epsilon:4444", owner, documentName);
+                moved++;
+            }
+        }
+        double share = moved / (double) documentCount;
+        assertTrue(share > 0.1 && share < 0.3, "moved " + share + " of the documents, not about 1/5");
+    }
+
+    @Test
+    public void selfMustBeANode() {
+        assertThrows(IllegalArgumentException.class, () -> new Cluster("omega:4444", fourNodes));
+        assertThrows(IllegalArgumentException.class,
+                () -> Cluster.parse("alpha", "alpha,beta:4444"));
+        Cluster parsed = Cluster.parse("beta:4444", " alpha:4444, beta:4444,,");
+        assertEquals(List.of("alpha:4444", "beta:4444"), parsed.getNodes());
+    }
+
+    private static Map<String, Integer> ownerCounts(Cluster cluster) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < documentCount; i++) {
+            counts.merge(cluster.ownerOf("doc" + i), 1, Integer::sum);
+        }
+        return counts;
+    }
+}
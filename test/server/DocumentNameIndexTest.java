@@ -0,0 +1,101 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that reading the names a page at a time, while other threads add and
+ * remove documents, lists every name that stays in the index exactly once and
+ * in order.
+ */
+public class DocumentNameIndexTest {
+    private static final int nameCount = 4000;
+
+    @Test
+    public void pagesFollowTheCursor() {
+        DocumentNameIndex index = new DocumentNameIndex();
+        for (String name : List.of("b1", "a2", "b3", "a1", "b2", "c")) {
+            index.add(name);
+        }
+        DocumentNameIndex.Page first = index.page("b", null, 2);
+        assertEquals(List.of("b1", "b2"), first.getNames());
+        assertEquals("b2", first.getNext());
+        DocumentNameIndex.Page second = index.page("b", first.getNext(), 2);
+        assertEquals(List.of("b3"), second.getNames());
+        assertNull(second.getNext());
+        // a cursor before the prefix starts at the prefix
+        assertEquals(List.of("b1"), index.page("b", "a9", 1).getNames());
+    }
+
+    @Test
+    public void concurrentChangesNeitherSkipNorRepeatNames() throws InterruptedException {
+        DocumentNameIndex index = new DocumentNameIndex();
+        // even names stay in the index, odd names come and go while it is read
+        for (int i = 0; i < nameCount; i += 2) {
+            index.add(name(i));
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 3; w++) {
+            Thread writer = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    String name = name(2 * random.nextInt(nameCount / 2) + 1);
+                    if (random.nextBoolean()) {
+                        index.add(name);
+                    } else {
+                        index.remove(name);
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        try {
+            for (int pass = 0; pass < 30; pass++) {
+                // doc01000 to doc01999 with the prefix
+                String prefix = pass % 3 == 0 ? "doc01" : "";
+                int limit = 1 + pass % 13;
+                List<String> listed = new ArrayList<>();
+                String after = null;
+                do {
+                    DocumentNameIndex.Page page = index.page(prefix, after, limit);
+                    assertTrue(page.getNames().size() <= limit);
+                    listed.addAll(page.getNames());
+                    after = page.getNext();
+                } while (after != null);
+
+                int stable = 0;
+                for (int i = 0; i < listed.size(); i++) {
+                    String name = listed.get(i);
+                    assertTrue(name.startsWith(prefix), name);
+                    if (i > 0) {
+                        assertTrue(listed.get(i - 1).compareTo(name) < 0,
+                                listed.get(i - 1) + " then " + name);
+                    }
+                    if (Integer.parseInt(name.substring(3)) % 2 == 0) {
+                        stable++;
+                    }
+                }
+                assertEquals(prefix.isEmpty() ? nameCount / 2 : 500, stable, "pass " + pass);
+            }
+        } finally {
+            stop.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+
+    private static String name(int i) {
+        return String.format("doc%05d", i);
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the thread of a shard takes the tasks of its documents in turns:
+ * a document with many tasks waiting gets one of them run, then the next
+ * document does, and the tasks of a document keep their order.
+ */
+public class DocumentShardTest {
+
+    @Test
+    public void documentsTakeTurns() throws InterruptedException {
+        DocumentShard shard = new DocumentShard(0);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread blocker = new Thread(() -> shard.call(() -> {
+            running.countDown();
+            release.await();
+            return null;
+        }));
+        blocker.start();
+        running.await();
+
+        // queued while the thread of the shard is busy, in this order
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> callers = new ArrayList<>();
+        for (String task : List.of("a1", "a2", "a3", "a4", "a5", "b1", "b2", "b3", "c1")) {
+            String documentName = task.substring(0, 1);
+            Thread caller = new Thread(() -> shard.call(documentName, () -> ran.add(task)));
+            caller.start();
+            callers.add(caller);
+            // the caller waits for its task once it is queued
+            while (caller.getState() != Thread.State.WAITING) {
+                Thread.onSpinWait();
+            }
+        }
+        release.countDown();
+        blocker.join();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        shard.shutdown();
+        assertEquals(List.of("a1", "b1", "c1", "a2", "b2", "a3", "b3", "a4", "a5"), ran);
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the gap buffer of OffHeapDocumentText against a StringBuilder given
+ * the same edits: the gap moving both ways, over itself and far, the buffer
+ * growing past its capacity, and removes across the place of the gap.
+ */
+public class OffHeapDocumentTextTest {
+
+    @Test
+    public void gapMovesBothWays() {
+        OffHeapDocumentText text = new OffHeapDocumentText("abcdefgh");
+        text.insert(2, "12");
+        text.insert(9, "34");
+        text.insert(0, "56");
+        text.insert(7, "");
+        assertEquals("56ab12cdefg34h", text.toString());
+        assertEquals('1', text.charAt(4));
+        assertEquals("12cdefg3", text.substring(4, 12));
+    }
+
+    @Test
+    public void moveLongerThanTheGap() {
+        // the chars moved are more than the gap is long, so they are moved onto
+        // part of their own place
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            expected.append((char) ('A' + i % 50));
+        }
+        OffHeapDocumentText text = new OffHeapDocumentText(expected);
+        text.insert(1, "x");
+        expected.insert(1, "x");
+        text.insert(499, "y");
+        expected.insert(499, "y");
+        text.insert(3, "z");
+        expected.insert(3, "z");
+        assertEquals(expected.toString(), text.toString());
+    }
+
+    @Test
+    public void growsPastItsCapacity() {
+        OffHeapDocumentText text = new OffHeapDocumentText("");
+        StringBuilder expected = new StringBuilder();
+        String big = "0123456789".repeat(1000);
+        for (int i = 0; i < 5; i++) {
+            // in the middle, so both sides of the gap are copied to the larger buffer
+            int offset = expected.length() / 2;
+            text.insert(offset, big);
+            expected.insert(offset, big);
+            text.insert(offset + 3, "<>");
+            expected.insert(offset + 3, "<>");
+        }
+        assertEquals(expected.length(), text.length());
+        assertEquals(expected.toString(), text.toString());
+    }
+
+    @Test
+    public void removeAcrossTheGap() {
+        OffHeapDocumentText text = new OffHeapDocumentText("hello world");
+        text.insert(5, ",");
+        // the gap is after the comma, the remove goes over it both ways
+        text.delete(3, 9);
+        assertEquals("helrld", text.toString());
+        text.insert(3, "-");
+        text.delete(1, 100);
+        assertEquals("h", text.toString());
+        assertThrows(StringIndexOutOfBoundsException.class, () -> text.delete(2, 3));
+        assertThrows(StringIndexOutOfBoundsException.class, () -> text.insert(2, "x"));
+    }
+
+    @Test
+    public void copyLeavesTheGapOut() {
+        OffHeapDocumentText text = new OffHeapDocumentText("first last");
+        text.insert(6, "middle ");
+        OffHeapDocumentText copy = OffHeapDocumentText.copyOf(text);
+        assertEquals("first middle last", copy.toString());
+        text.delete(0, 6);
+        assertEquals("first middle last", copy.toString());
+    }
+
+    @Test
+    public void randomEditsMatchAStringBuilder() {
+        SplittableRandom random = new SplittableRandom(44);
+        String alphabet = "abcdefghij\n";
+        for (int run = 0; run < 50; run++) {
+            StringBuilder expected = new StringBuilder();
+            OffHeapDocumentText text = new OffHeapDocumentText("");
+            for (int edit = 0; edit < 400; edit++) {
+                int offset = random.nextInt(expected.length() + 1);
+                int kind = random.nextInt(10);
+                if (kind < 5) {
+                    // mostly short inserts, sometimes one longer than the gap
+                    int length = kind == 0 ? 50 + random.nextInt(200) : 1 + random.nextInt(4);
+                    StringBuilder inserted = new StringBuilder();
+                    while (inserted.length() < length) {
+                        inserted.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                    }
+                    text.insert(offset, inserted.toString());
+                    expected.insert(offset, inserted);
+                } else if (kind < 9) {
+                    int end = offset + random.nextInt(20);
+                    text.delete(offset, end);
+                    expected.delete(offset, Math.min(end, expected.length()));
+                } else {
+                    int end = offset + random.nextInt(expected.length() - offset + 1);
+                    assertEquals(expected.substring(offset, end), text.substring(offset, end));
+                }
+                assertEquals(expected.length(), text.length());
+            }
+            assertEquals(expected.toString(), text.toString(), "run " + run);
+            for (int i = 0; i < expected.length(); i += 7) {
+                assertEquals(expected.charAt(i), text.charAt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the candidates of the trigram index against a scan of the texts, after
+ * random inserts and removes kept up to date with SearchIndex.update.
+ */
+public class SearchIndexTest {
+    // few letters, in both cases, so that trigrams and phrases repeat
+    private static final String alphabet = "abcAB \n";
+
+    @Test
+    public void candidatesMatchScanAfterRandomEdits() {
+        Random random = new Random(40);
+        SearchIndex index = new SearchIndex();
+        Map<String, StringBuilder> texts = new HashMap<>();
+        for (int d = 0; d < 8; d++) {
+            String documentName = "document" + d;
+            StringBuilder text = new StringBuilder(randomText(random, random.nextInt(40)));
+            texts.put(documentName, text);
+            index.index(documentName, text);
+        }
+        List<String> names = new ArrayList<>(texts.keySet());
+        for (int i = 0; i < 5000; i++) {
+            String documentName = names.get(random.nextInt(names.size()));
+            StringBuilder text = texts.get(documentName);
+            int offset = random.nextInt(text.length() + 1);
+            int end = Math.min(text.length(), offset + random.nextInt(5));
+            String removed = text.substring(offset, end);
+            String inserted = random.nextBoolean() ? randomText(random, random.nextInt(5)) : "";
+            text.replace(offset, end, inserted);
+            index.update(documentName, text, offset, removed, inserted.length());
+
+            String phrase = randomText(random, 3 + random.nextInt(3));
+            Set<String> candidates = new HashSet<>(index.candidates(phrase));
+            assertEquals(withAllTrigrams(texts, phrase), candidates, "candidates of " + phrase);
+            for (Map.Entry<String, StringBuilder> document : texts.entrySet()) {
+                if (document.getValue().toString().toLowerCase().contains(phrase.toLowerCase())) {
+                    assertTrue(candidates.contains(document.getKey()),
+                            document.getKey() + " contains " + phrase);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void removedDocumentIsNoCandidate() {
+        SearchIndex index = new SearchIndex();
+        index.index("a", "hello world");
+        index.index("b", "Hello there");
+        assertEquals(Set.of("a", "b"), new HashSet<>(index.candidates("hello")));
+        index.remove("a");
+        assertEquals(List.of("b"), index.candidates("hello"));
+    }
+
+    @Test
+    public void shardSearchReturnsExactOffsets() {
+        DocumentShard shard = new DocumentShard(0);
+        shard.addDocument("poem", "The cat sat on the mat. THE END", 1);
+        shard.addDocument("list", "theme, then, other", 1);
+        shard.addDocument("none", "nothing here", 1);
+        Map<String, List<Integer>> results = shard.search("the", 10);
+        assertEquals(Map.of("poem", List.of(0, 15, 24), "list", List.of(0, 7, 14)), results);
+        assertEquals(List.of(0, 15), shard.search("the", 2).get("poem"));
+        assertEquals(Map.of("poem", List.of(8)), shard.search("SAT ON", 10));
+
+        // the positions were kept since the search, an edit must drop them
+        shard.insert("poem", 4, "black ");
+        shard.delete("list", 0, 7);
+        assertEquals(Map.of("poem", List.of(0, 21, 30), "list", List.of(0, 7)),
+                shard.search("the", 10));
+        assertEquals(Map.of("poem", List.of(4)), shard.search("black cat", 10));
+        assertEquals(Map.of("poem", List.of(10)), shard.search("cat sat", 10));
+        assertEquals(Map.of(), shard.search("theme", 10));
+    }
+
+    @Test
+    public void overlappingOccurrencesAreAllFound() {
+        DocumentShard shard = new DocumentShard(0);
+        shard.addDocument("a", "aaaaAAaa", 1);
+        assertEquals(Map.of("a", List.of(0, 1, 2, 3, 4)), shard.search("aaaa", 10));
+        // twice, the second time from the positions kept by the first
+        assertEquals(Map.of("a", List.of(0, 1, 2, 3, 4)), shard.search("aaaa", 10));
+        assertEquals(Map.of(), shard.search("aab", 10));
+    }
+
+    @Test
+    public void positionsFindWhatIndexOfFinds() {
+        Random random = new Random(4040);
+        for (int run = 0; run < 300; run++) {
+            String text = randomText(random, random.nextInt(200));
+            SearchIndex.Positions positions = SearchIndex.Positions.of(text);
+            String phrase = randomText(random, 3 + random.nextInt(4));
+            List<Integer> expected = new ArrayList<>();
+            String lowerText = text.toLowerCase();
+            for (int i = lowerText.indexOf(phrase.toLowerCase()); i >= 0;
+                 i = lowerText.indexOf(phrase.toLowerCase(), i + 1)) {
+                expected.add(i);
+            }
+            assertEquals(expected, positions.find(phrase, Integer.MAX_VALUE),
+                    phrase + " in " + text);
+        }
+    }
+
+    /**
+     * @return the documents whose text contains every trigram of the phrase,
+     * ignoring case
+     */
+    private static Set<String> withAllTrigrams(Map<String, StringBuilder> texts, String phrase) {
+        Set<String> documents = new HashSet<>();
+        String lowerPhrase = phrase.toLowerCase();
+        for (Map.Entry<String, StringBuilder> document : texts.entrySet()) {
+            String text = document.getValue().toString().toLowerCase();
+            boolean all = true;
+            for (int i = 0; i + 3 <= lowerPhrase.length() && all; i++) {
+                all = text.contains(lowerPhrase.substring(i, i + 3));
+            }
+            if (all) {
+                documents.add(document.getKey());
+            }
+        }
+        return documents;
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+}
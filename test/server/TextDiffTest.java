@@ -0,0 +1,115 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import handlers.Edit;
+import handlers.Edit.Type;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the edits of TextDiff turn a text into the other, for random
+ * texts and random edits of them, near and far apart.
+ */
+public class TextDiffTest {
+    private static final String documentName = "document";
+
+    @Test
+    public void editsOfRandomTextsRoundTrip() {
+        Random random = new Random(50);
+        for (int i = 0; i < 5000; i++) {
+            String from = randomText(random, random.nextInt(60));
+            String to = random.nextInt(4) == 0 ? randomText(random, random.nextInt(60))
+                    : randomEdits(random, from, 1 + random.nextInt(6));
+            int maxDistance = random.nextBoolean() ? 512 : random.nextInt(8);
+            assertEquals(to, apply(from, TextDiff.diff(documentName, from, to, maxDistance)),
+                    "diff of " + from + " and " + to);
+        }
+    }
+
+    @Test
+    public void smallChangeGivesSmallEdits() {
+        StringBuilder from = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            from.append("line ").append(i).append('\n');
+        }
+        String to = from.toString().replace("line 500\n", "line 500 changed\n");
+        List<Edit> edits = TextDiff.diff(documentName, from, to, 512);
+        assertEquals(1, edits.size());
+        assertEquals(" changed", edits.get(0).getText());
+        assertEquals(to, apply(from.toString(), edits));
+    }
+
+    @Test
+    public void farApartTextsReplaceTheMiddle() {
+        String from = "start " + randomText(new Random(1), 200) + " end";
+        String to = "start " + randomText(new Random(2), 200) + " end";
+        List<Edit> edits = TextDiff.diff(documentName, from, to, 4);
+        assertTrue(edits.size() <= 2);
+        assertEquals(to, apply(from, edits));
+    }
+
+    @Test
+    public void removesCarryTheRemovedText() {
+        List<Edit> edits = TextDiff.diff(documentName, "keep this, drop that, keep",
+                "keep this, keep", 512);
+        assertEquals(1, edits.size());
+        assertEquals(Type.REMOVE, edits.get(0).getType());
+        assertEquals("drop that, ", edits.get(0).getText());
+        assertEquals(-11, edits.get(0).getLength());
+
+        // replaced as a whole when too far apart
+        edits = TextDiff.diff(documentName, "[abcdef]", "[uvwxyz]", 2);
+        assertEquals("abcdef", edits.get(0).getText());
+        assertEquals("uvwxyz", edits.get(1).getText());
+    }
+
+    /**
+     * Applies the edits in order, each to the text the previous ones produced,
+     * checking that each remove carries the text it removes
+     */
+    private static String apply(String text, List<Edit> edits) {
+        StringBuilder result = new StringBuilder(text);
+        for (Edit edit : edits) {
+            if (edit.getType() == Type.INSERT) {
+                result.insert(edit.getOffset(), edit.getText());
+            } else {
+                int end = edit.getOffset() - edit.getLength();
+                assertEquals(result.substring(edit.getOffset(), end), edit.getText());
+                result.delete(edit.getOffset(), end);
+            }
+        }
+        return result.toString();
+    }
+
+    private static String randomEdits(Random random, String text, int count) {
+        StringBuilder result = new StringBuilder(text);
+        for (int i = 0; i < count; i++) {
+            int offset = random.nextInt(result.length() + 1);
+            if (result.length() > offset && random.nextBoolean()) {
+                result.delete(offset, Math.min(result.length(), offset + 1 + random.nextInt(5)));
+            } else {
+                result.insert(offset, randomText(random, 1 + random.nextInt(5)));
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return a text made of a few short words, so that random texts have much
+     * in common
+     */
+    private static String randomText(Random random, int length) {
+        String[] words = {"a", "b", "c", " ", "\n", "ab", "ca"};
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]);
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+}
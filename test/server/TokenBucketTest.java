@@ -0,0 +1,62 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the burst and the refill of TokenBucket on the real clock, with rates
+ * slow enough that the few microseconds between two calls don't count.
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void fullBucketLetsTheBurstThrough() {
+        TokenBucket bucket = new TokenBucket(100, 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bucket.acquire(), "message " + i);
+        }
+        // a token every 10 ms after the burst
+        long waited = bucket.acquire();
+        assertTrue(waited > 0 && waited < TimeUnit.MILLISECONDS.toNanos(500), "waited " + waited);
+    }
+
+    @Test
+    public void pauseRefillsUpToTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 10);
+        while (bucket.acquire() == 0) {
+            // empty the bucket
+        }
+        // enough time for 30 tokens, of which the bucket only keeps 10
+        Thread.sleep(300);
+        int immediate = 0;
+        while (bucket.acquire() == 0) {
+            immediate++;
+        }
+        assertEquals(10, immediate);
+    }
+
+    @Test
+    public void rateHoldsInTheLongRun() {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        long start = System.nanoTime();
+        long waited = 0;
+        for (int i = 0; i < 21; i++) {
+            waited += bucket.acquire();
+        }
+        long elapsed = System.nanoTime() - start;
+        // the first token is in the bucket, the 20 others come 10 ms apart
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(190), "took " + elapsed);
+        assertTrue(waited <= elapsed);
+    }
+
+    @Test
+    public void rateAndBurstMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(10, 0));
+    }
+}